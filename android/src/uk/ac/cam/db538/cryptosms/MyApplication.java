@@ -22,9 +22,12 @@ import roboguice.application.RoboApplication;
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.WrongKeyDecryptionException;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionPki;
+import uk.ac.cam.db538.cryptosms.crypto.KeyPairPool;
 import uk.ac.cam.db538.cryptosms.data.PendingParser;
 import uk.ac.cam.db538.cryptosms.state.Pki;
 import uk.ac.cam.db538.cryptosms.state.State;
+import uk.ac.cam.db538.cryptosms.state.State.StateChangeListener;
+import uk.ac.cam.db538.cryptosms.storage.SessionKeys;
 import uk.ac.cam.db538.cryptosms.storage.Storage;
 import android.app.Notification;
 import android.content.Context;
@@ -113,6 +116,21 @@ public class MyApplication extends RoboApplication {
 		Pki.init(this.getApplicationContext());
 		SimCard.init(this.getApplicationContext());
 		PendingParser.init(this.getApplicationContext());
+		
+		// key pairs for key exchanges are generated ahead while the master key is available,
+		// skipped incoming keys are encrypted with it as well
+		State.addListener(new StateChangeListener() {
+			@Override
+			public void onLogin() {
+				KeyPairPool.refill();
+			}
+			
+			@Override
+			public void onLogout() {
+				KeyPairPool.clear();
+				SessionKeys.forgetSkippedKeys();
+			}
+		});
 	}
 	
 	public Notification getNotification() {
@@ -17,6 +17,9 @@ package uk.ac.cam.db538.cryptosms.crypto;
 
 import java.security.SecureRandom;
 
+import org.spongycastle.crypto.Digest;
+import org.spongycastle.crypto.Mac;
+
 import uk.ac.cam.db538.cryptosms.crypto.AesCbc;
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface;
@@ -35,6 +38,14 @@ import uk.ac.cam.dje38.PKIwrapper.PKIwrapper.TimeoutException;
 public final class EncryptionPki implements EncryptionInterface {
 	private EncryptionNone mEncryptionNone = null;
 	
+	// MAC of the decrypted data, one buffer per thread
+	private final ThreadLocal<byte[]> mMacReal = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[Encryption.HMAC_LENGTH];
+		}
+	};
+	
 	/**
 	 * Instantiates a new encryption pki.
 	 */
@@ -131,18 +142,14 @@ public final class EncryptionPki implements EncryptionInterface {
 		data = LowLevel.wrapData(data, getSymmetricAlignedLength(data.length));
 		// generate everything
 		byte[] iv = generateRandomData(Encryption.SYM_IV_LENGTH);
-		byte[] mac = getHash(data);
-		// encrypt
-		byte[] dataEncrypted = AesCbc.encrypt(data, iv, key, true, false);
 		
-		// save everything
-		byte[] result = new byte[dataEncrypted.length + Encryption.SYM_OVERHEAD];
+		byte[] result = new byte[data.length + Encryption.SYM_OVERHEAD];
 		// MAC
-		System.arraycopy(mac, 0, result, 0, Encryption.HMAC_LENGTH);
+		getHash(data, 0, data.length, result, 0);
 		// IV 
 		System.arraycopy(iv, 0, result, Encryption.HMAC_LENGTH, Encryption.SYM_IV_LENGTH);
-		//data
-		System.arraycopy(dataEncrypted, 0, result, Encryption.SYM_OVERHEAD, dataEncrypted.length);
+		// encrypt straight into the result
+		AesCbc.encrypt(data, 0, result, Encryption.SYM_OVERHEAD, data.length, iv, 0, key);
 		
 		return result;
 	}
@@ -183,22 +190,36 @@ public final class EncryptionPki implements EncryptionInterface {
 	public byte[] decryptSymmetric(byte[] data, byte[] key, int blocks)
 			throws EncryptionException {
 		int length = blocks * Encryption.SYM_BLOCK_LENGTH;
-		// cut the file up
-		byte[] macSaved = LowLevel.cutData(data, 0, Encryption.HMAC_LENGTH);
-		byte[] iv = LowLevel.cutData(data, Encryption.HMAC_LENGTH, Encryption.SYM_IV_LENGTH);
-		byte[] dataEncrypted = LowLevel.cutData(data, Encryption.SYM_OVERHEAD, length - Encryption.SYM_OVERHEAD);
-		
-		// decrypt
-		byte[] dataDecrypted = AesCbc.decrypt(dataEncrypted, iv, key, false);
-		// generate new MAC
-		byte[] macReal = getHash(dataDecrypted);
-		
-		// compare MACs
-		if (compareMACs(macSaved, macReal))
+		byte[] dataDecrypted = new byte[length - Encryption.SYM_OVERHEAD];
+		if (decryptSymmetric(data, 0, length, dataDecrypted, 0, key))
 			return dataDecrypted;
 		else
 			throw new WrongKeyDecryptionException();
 	}
+	
+	/**
+	 * Decrypts a range of data with given key straight into the output array and checks the MAC.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 * @return true, if the MAC matched
+	 */
+	@Override
+	public boolean decryptSymmetric(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) {
+		int lengthPlain = length - Encryption.SYM_OVERHEAD;
+		
+		// decrypt straight from the input, MAC and IV are at its beginning
+		AesCbc.decrypt(data, offset + Encryption.SYM_OVERHEAD, out, outOffset, lengthPlain, data, offset + Encryption.HMAC_LENGTH, key);
+		// generate new MAC
+		byte[] macReal = mMacReal.get();
+		getHash(out, outOffset, lengthPlain, macReal, 0);
+		
+		return LowLevel.equalsConstantTime(data, offset, macReal, 0, Encryption.HMAC_LENGTH);
+	}
 
 	/**
 	 * Decrypts data with given key.
@@ -213,14 +234,152 @@ public final class EncryptionPki implements EncryptionInterface {
 		return decryptSymmetric(data, key, data.length / Encryption.SYM_BLOCK_LENGTH);
 	}
 	
-	private boolean compareMACs(byte[] saved, byte[] actual) {
-		// compare MACs
-		boolean isCorrect = true;
-		for (int i = 0; i < Encryption.HMAC_LENGTH; ++i)
-			isCorrect = isCorrect && saved[i] == actual[i];
-		return isCorrect;
+	/**
+	 * Encrypts a range of data with given key in the encrypt-then-MAC mode, straight into the output array.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data, aligned to the block length
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 */
+	@Override
+	public void encryptAuthenticated(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) {
+		byte[] iv = generateRandomData(Encryption.SYM_IV_LENGTH);
+		EncryptThenMac.encrypt(data, offset, length, out, outOffset, iv, 0, key);
+	}
+
+	/**
+	 * Encrypts a range of data with Master Key stored with PKI in the encrypt-then-MAC mode.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data, aligned to the block length
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @throws EncryptionException the encryption exception
+	 */
+	@Override
+	public void encryptAuthenticatedWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException {
+		try {
+			encryptAuthenticated(data, offset, length, out, outOffset, Pki.getMasterKey(false));
+		} catch (PkiNotReadyException e) {
+			throw new EncryptionException(e);
+		}
+	}
+
+	/**
+	 * Checks the MAC and decrypts a range of data encrypted in the encrypt-then-MAC mode.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 * @throws EncryptionException if the MAC doesn't match
+	 */
+	@Override
+	public void decryptAuthenticated(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) throws EncryptionException {
+		if (!EncryptThenMac.decrypt(data, offset, length, out, outOffset, key))
+			throw new EncryptionException(new WrongKeyDecryptionException());
+	}
+
+	/**
+	 * Checks the MAC and decrypts a range of data encrypted in the encrypt-then-MAC mode with Master Key stored with PKI.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @throws EncryptionException if the MAC doesn't match
+	 */
+	@Override
+	public void decryptAuthenticatedWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException {
+		try {
+			decryptAuthenticated(data, offset, length, out, outOffset, Pki.getMasterKey(false));
+		} catch (PkiNotReadyException e) {
+			throw new EncryptionException(e);
+		}
+	}
+
+	/**
+	 * Encrypts a range of data with given key in the authenticated counter mode, straight into the output array.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 */
+	@Override
+	public void encryptCounter(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) {
+		byte[] iv = generateRandomData(Encryption.SYM_IV_LENGTH);
+		EncryptThenMac.encryptCounter(data, offset, length, out, outOffset, iv, 0, key);
+	}
+
+	/**
+	 * Encrypts a range of data with Master Key stored with PKI in the authenticated counter mode.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @throws EncryptionException the encryption exception
+	 */
+	@Override
+	public void encryptCounterWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException {
+		try {
+			encryptCounter(data, offset, length, out, outOffset, Pki.getMasterKey(false));
+		} catch (PkiNotReadyException e) {
+			throw new EncryptionException(e);
+		}
+	}
+
+	/**
+	 * Checks the MAC and decrypts a part of data encrypted in the authenticated counter mode.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param from the offset of the part to decrypt, within the plain data
+	 * @param count the length of the part to decrypt
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 * @throws EncryptionException if the MAC doesn't match
+	 */
+	@Override
+	public void decryptCounter(byte[] data, int offset, int length, int from, int count, byte[] out, int outOffset, byte[] key) throws EncryptionException {
+		if (!EncryptThenMac.decryptCounter(data, offset, length, from, count, out, outOffset, key))
+			throw new EncryptionException(new WrongKeyDecryptionException());
 	}
 
+	/**
+	 * Checks the MAC and decrypts a part of data encrypted in the authenticated counter mode with Master Key stored with PKI.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param from the offset of the part to decrypt, within the plain data
+	 * @param count the length of the part to decrypt
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @throws EncryptionException if the MAC doesn't match
+	 */
+	@Override
+	public void decryptCounterWithMasterKey(byte[] data, int offset, int length, int from, int count, byte[] out, int outOffset) throws EncryptionException {
+		try {
+			decryptCounter(data, offset, length, from, count, out, outOffset, Pki.getMasterKey(false));
+		} catch (PkiNotReadyException e) {
+			throw new EncryptionException(e);
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#sign(byte[])
 	 */
@@ -277,4 +436,36 @@ public final class EncryptionPki implements EncryptionInterface {
 	public byte[] getHMAC(byte[] data, byte[] key) {
 		return mEncryptionNone.getHMAC(data, key);
 	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#getHash(byte[], int, int, byte[], int)
+	 */
+	@Override
+	public void getHash(byte[] data, int offset, int length, byte[] out, int outOffset) {
+		mEncryptionNone.getHash(data, offset, length, out, outOffset);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#getHMAC(byte[], int, int, byte[], byte[], int)
+	 */
+	@Override
+	public void getHMAC(byte[] data, int offset, int length, byte[] key, byte[] out, int outOffset) {
+		mEncryptionNone.getHMAC(data, offset, length, key, out, outOffset);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#createHash()
+	 */
+	@Override
+	public Digest createHash() {
+		return mEncryptionNone.createHash();
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#createHMAC(byte[])
+	 */
+	@Override
+	public Mac createHMAC(byte[] key) {
+		return mEncryptionNone.createHMAC(key);
+	}
 }
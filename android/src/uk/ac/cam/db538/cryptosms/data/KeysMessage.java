@@ -25,6 +25,7 @@ import uk.ac.cam.db538.cryptosms.crypto.EllipticCurveDeffieHellman;
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.WrongKeyDecryptionException;
+import uk.ac.cam.db538.cryptosms.crypto.KeyPairPool;
 import uk.ac.cam.db538.cryptosms.data.PendingParser.ParseResult;
 import uk.ac.cam.db538.cryptosms.data.PendingParser.PendingParseResult;
 import uk.ac.cam.db538.cryptosms.storage.Conversation;
@@ -73,7 +74,7 @@ public class KeysMessage extends Message {
 	public KeysMessage() throws StorageFileException {
 		mIsConfirmation = false;
 		
-		mECDH = new EllipticCurveDeffieHellman();
+		mECDH = KeyPairPool.getKeyPair();
 		mPublicKey = mECDH.getPublicKey();
 		mPrivateKey = mECDH.getPrivateKey();
 		mTimeStamp = System.currentTimeMillis();
@@ -109,7 +110,7 @@ public class KeysMessage extends Message {
 	public KeysMessage(long otherTimeStamp, byte[] otherPublicKey) throws StorageFileException {
 		mIsConfirmation = true;
 		
-		mECDH = new EllipticCurveDeffieHellman();
+		mECDH = KeyPairPool.getKeyPair();
 		mPublicKey = mECDH.getPublicKey();
 		mPrivateKey = mECDH.getPrivateKey();
 		mTimeStamp = System.currentTimeMillis();
@@ -221,6 +222,13 @@ public class KeysMessage extends Message {
 				return new ParseResult(idGroup, PendingParseResult.TIMESTAMP_IN_FUTURE, null);
 			else if (now - timeStamp > HANDSHAKE_VALIDITY_PERIOD) 
 				return new ParseResult(idGroup, PendingParseResult.TIMESTAMP_OLD, null);
+			// check the public key is a point of the curve
+			// (the decoded point is kept for computing the shared key)
+			try {
+				EllipticCurveDeffieHellman.decodePublicKey(publicKey);
+			} catch (IllegalArgumentException e) {
+				return new ParseResult(idGroup, PendingParseResult.COULD_NOT_VERIFY, null);
+			}
 			// chechk that it isn't a replay
 			if (keys != null && 
 				keys.getStatus() == SessionKeysStatus.KEYS_EXCHANGED && 
@@ -291,6 +299,7 @@ public class KeysMessage extends Message {
                     );
                 
                 keys.setSessionKey_Out(keysMsg.getKeyOut());
+                keys.forgetSkippedKeys_In();
                 keys.setSessionKey_In(keysMsg.getKeyIn());
                 keys.setKeysConfirmed(true);
                 keys.setPrivateKey(Encryption.getEncryption().generateRandomData(EllipticCurveDeffieHellman.LENGTH_PRIVATE_KEY));
@@ -344,6 +353,7 @@ public class KeysMessage extends Message {
 	        keys.setKeysSent(true);
 			keys.setKeysConfirmed(true);
 			keys.setSessionKey_Out(this.getKeyOut());
+			keys.forgetSkippedKeys_In();
 			keys.setSessionKey_In(this.getKeyIn());
 			keys.setTimeStamp(this.getTimeStamp());
 		} else {
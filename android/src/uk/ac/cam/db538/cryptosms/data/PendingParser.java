@@ -16,6 +16,7 @@
 package uk.ac.cam.db538.cryptosms.data;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map.Entry;
@@ -214,7 +215,7 @@ public class PendingParser {
 					}
 					
 					mUpdateConversations = false;
-					HashMap<String, Integer> mapToBeHashed = new HashMap<String, Integer>();
+					HashMap<String, BitSet> mapToBeHashed = new HashMap<String, BitSet>();
 					
 					for (ParseResult parseResult : mParseResults) {
 						if (parseResult.getResult() == PendingParseResult.OK_CONFIRM_MESSAGE ||
@@ -228,20 +229,25 @@ public class PendingParser {
 							Pending msgPart = parseResult.mIdGroup.get(0);
 							String sender = msgPart.getSender();
 							int toBeHashed = ((TextMessage) parseResult.getMessage()).getToBeHashed();
-							Integer toBeHashedMax = mapToBeHashed.get(sender);
-							if (toBeHashedMax == null)
-								toBeHashedMax = Integer.valueOf(0);
-							if (toBeHashed > toBeHashedMax)
-								mapToBeHashed.put(sender, toBeHashed);
+							// zero => decrypted with a key skipped earlier
+							if (toBeHashed > 0) {
+								BitSet keysUsed = mapToBeHashed.get(sender);
+								if (keysUsed == null) {
+									keysUsed = new BitSet();
+									mapToBeHashed.put(sender, keysUsed);
+								}
+								keysUsed.set(toBeHashed - 1);
+							}
 						}
 					}
 					
-					// increment key ID to the highest we decoded
-					for (Entry<String, Integer> elem : mapToBeHashed.entrySet()) {
+					// increment key ID to the highest we decoded,
+					// the keys in between that weren't used are kept for messages that arrive later
+					for (Entry<String, BitSet> elem : mapToBeHashed.entrySet()) {
 						try {
 							Conversation conv = Conversation.getConversation(elem.getKey());
 							SessionKeys keys = conv.getSessionKeys(SimCard.getSingleton().getNumber());
-							keys.incrementIn(elem.getValue());
+							keys.incrementIn(elem.getValue().length(), elem.getValue());
 							keys.saveToFile();
 						} catch (StorageFileException ex) {
 							mException = ex;
@@ -25,7 +25,7 @@ import uk.ac.cam.db538.cryptosms.SimCard;
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
-import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.WrongKeyDecryptionException;
+import uk.ac.cam.db538.cryptosms.crypto.KeyRatchet;
 import uk.ac.cam.db538.cryptosms.data.PendingParser.ParseResult;
 import uk.ac.cam.db538.cryptosms.data.PendingParser.PendingParseResult;
 import uk.ac.cam.db538.cryptosms.storage.Conversation;
@@ -49,6 +49,9 @@ public class TextMessage extends Message {
 	protected static final int OFFSET_DATA = OFFSET_INDEX + LENGTH_INDEX;
 	protected static final int LENGTH_DATA = MessageData.LENGTH_MESSAGE - OFFSET_DATA;
 	
+	// how far ahead of the incoming key a message can be
+	private static final int MAX_TO_BE_HASHED = 10;
+	
 	private MessageData mStorage;
 	private int mToBeHashed;
     
@@ -297,6 +300,17 @@ public class TextMessage extends Message {
 		return dataJoined;
 	}
 
+	/**
+	 * Decrypts given number of blocks of the data into the buffer.
+	 * Returns a copy of the plain data, or null if the key is wrong.
+	 */
+	private static byte[] tryDecrypt(EncryptionInterface crypto, byte[] data, int blocks, byte[] key, byte[] buffer) {
+		int length = blocks * Encryption.SYM_BLOCK_LENGTH;
+		if (length > data.length || !crypto.decryptSymmetric(data, 0, length, buffer, 0, key))
+			return null;
+		return LowLevel.cutData(buffer, 0, length - Encryption.SYM_OVERHEAD);
+	}
+
 	/**
 	 * Parses the text message.
 	 *
@@ -352,27 +366,45 @@ public class TextMessage extends Message {
 			int blocksMin = Math.max(blocksTotalMin, (countParts - 1) * LENGTH_DATA / Encryption.SYM_BLOCK_LENGTH);
 			int blocksMax = Math.max(blocksTotalMin, countParts * LENGTH_DATA / Encryption.SYM_BLOCK_LENGTH);
 			
+			// the current key and the next few, hashed only once for all the lengths
+			byte[][] keysIn = new byte[MAX_TO_BE_HASHED][];
+			keysIn[0] = keys.getSessionKey_In();
+			for (int i = 1; i < keysIn.length; ++i)
+				keysIn[i] = KeyRatchet.advance(keysIn[i - 1], 1);
+			
+			// all the attempts decrypt into the same buffer, wrong keys don't allocate anything
+			byte[] buffer = new byte[dataJoined.length];
+			
 			for (int blocks = blocksMin; blocks <= blocksMax; ++blocks) {
 				toBeHashed = 1;
-				byte[] keyIn = keys.getSessionKey_In();
 				// try hashing the key until it fits
-				while (dataDecrypted == null && toBeHashed <= 10) {
-					try {
-						 dataDecrypted = crypto.decryptSymmetric(dataJoined, keyIn, blocks);
-					} catch (EncryptionException e) {
-						// this is bad
-						return new ParseResult(idGroup, PendingParseResult.INTERNAL_ERROR, null);
-					} catch (WrongKeyDecryptionException e) {
+				while (dataDecrypted == null && toBeHashed <= MAX_TO_BE_HASHED) {
+					dataDecrypted = tryDecrypt(crypto, dataJoined, blocks, keysIn[toBeHashed - 1], buffer);
+					if (dataDecrypted == null)
 						// this is OK, we'll just try another one
-						keyIn = crypto.getHash(keyIn);
 						toBeHashed++;
-					}
 				}
 				
 				if (dataDecrypted != null)
 					break;
 			}
 			
+			// the message might have arrived late, with a key the ratchet has already skipped
+			if (dataDecrypted == null) {
+				ArrayList<byte[]> keysSkipped = keys.getSkippedKeys_In();
+				for (int blocks = blocksMin; blocks <= blocksMax && dataDecrypted == null; ++blocks) {
+					for (byte[] keySkipped : keysSkipped) {
+						dataDecrypted = tryDecrypt(crypto, dataJoined, blocks, keySkipped, buffer);
+						if (dataDecrypted == null)
+							continue;
+						// each key decrypts only one message, and the ratchet stays where it is
+						keys.useSkippedKey_In(keySkipped);
+						toBeHashed = 0;
+						break;
+					}
+				}
+			}
+			
 			// was it decrypted?
 			if (dataDecrypted == null)
 				return new ParseResult(idGroup, PendingParseResult.COULD_NOT_DECRYPT, null);
@@ -44,7 +44,7 @@ public class Pki {
 	private static PKIwrapper mPki = null;
 	private static Context mContext = null;
 	
-	private static byte[] mMasterKey = null;
+	private static volatile byte[] mMasterKey = null;
 	private static final String KEY_STORAGE = "CRYPTOSMS_MASTER_KEY";
 
 	private static boolean mMissing = false;
@@ -273,6 +273,17 @@ public class Pki {
 	 * @throws PkiNotReadyException
 	 */
 	public static byte[] getMasterKey(boolean forceLogIn, boolean generateAllow) throws PkiNotReadyException {
+		byte[] masterKey = mMasterKey;
+		if (masterKey != null)
+			return masterKey;
+		
+		// two threads mustn't generate different keys
+		synchronized (Pki.class) {
+			return loadMasterKey(forceLogIn, generateAllow);
+		}
+	}
+	
+	private static byte[] loadMasterKey(boolean forceLogIn, boolean generateAllow) throws PkiNotReadyException {
 		if (mMasterKey != null)
 			return mMasterKey;
 		else if (isLoggedIn()) {
@@ -285,7 +296,7 @@ public class Pki {
 						return mMasterKey;
 				} else if (generateAllow) {
 					mPki.setDataStore(KEY_STORAGE, Encryption.getEncryption().generateRandomData(Encryption.SYM_KEY_LENGTH));
-					return getMasterKey(forceLogIn, false);
+					return loadMasterKey(forceLogIn, false);
 				} else
 					throw new PkiNotReadyException();
 			} catch (NotConnectedException e) {
@@ -302,7 +313,7 @@ public class Pki {
 		} else if (isConnected() && forceLogIn) {
 			Pki.login(true);
 			// no need to alter our own login information - broadcast will be sent by PKI
-			return getMasterKey(false, generateAllow);
+			return loadMasterKey(false, generateAllow);
 		} else
 			throw new PkiNotReadyException();
 	}
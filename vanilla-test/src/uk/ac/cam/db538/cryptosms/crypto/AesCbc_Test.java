@@ -0,0 +1,171 @@
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.util.Random;
+
+import org.spongycastle.crypto.BlockCipher;
+
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
+import uk.ac.cam.db538.cryptosms.utils.LowLevel;
+import junit.framework.TestCase;
+
+public class AesCbc_Test extends TestCase {
+	
+	// NIST SP 800-38A, F.2.1 and F.2.5
+	private static final byte[] KEY_128 = LowLevel.fromHex("2b7e151628aed2a6abf7158809cf4f3c");
+	private static final byte[] KEY_256 = LowLevel.fromHex("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
+	private static final byte[] IV = LowLevel.fromHex("000102030405060708090a0b0c0d0e0f");
+	private static final byte[] PLAIN = LowLevel.fromHex("6bc1bee22e409f96e93d7e117393172a" +
+	                                                     "ae2d8a571e03ac9c9eb76fac45af8e51" +
+	                                                     "30c81c46a35ce411e5fbc1191a0a52ef" +
+	                                                     "f69f2445df4f9b17ad2b417be66c3710");
+	private static final byte[] CIPHER_128 = LowLevel.fromHex("7649abac8119b246cee98e9b12e9197d" +
+	                                                          "5086cb9b507219ee95db113a917678b2" +
+	                                                          "73bed6b8e3c1743b7116e69e22229516" +
+	                                                          "3ff1caa1681fac09120eca307586e1a7");
+	private static final byte[] CIPHER_256 = LowLevel.fromHex("f58c4c04d6e5f1ba779eabfb5f7bfbd6" +
+	                                                          "9cfc4e967edb808d679f777bc6702c7d" +
+	                                                          "39f23369a9d9bacfa530e26304231461" +
+	                                                          "b2eb05e2c39be9fcda6c19078c6a9d1b");
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		AesCbc.setEngineFactory(AesCbc.ENGINE_TABLE);
+	}
+	
+	private void assertVectors() {
+		CustomAsserts.assertArrayEquals(AesCbc.encrypt(PLAIN, IV, KEY_128, false, false), CIPHER_128);
+		CustomAsserts.assertArrayEquals(AesCbc.decrypt(CIPHER_128, IV, KEY_128, false), PLAIN);
+		CustomAsserts.assertArrayEquals(AesCbc.encrypt(PLAIN, IV, KEY_256, false, false), CIPHER_256);
+		CustomAsserts.assertArrayEquals(AesCbc.decrypt(CIPHER_256, IV, KEY_256, false), PLAIN);
+	}
+	
+	public void testTableEngine() {
+		AesCbc.setEngineFactory(AesCbc.ENGINE_TABLE);
+		assertVectors();
+	}
+	
+	public void testReferenceEngine() {
+		AesCbc.setEngineFactory(AesCbc.ENGINE_REFERENCE);
+		assertVectors();
+	}
+	
+	public void testRanges() {
+		// at an offset into a bigger array
+		byte[] buffer = new byte[PLAIN.length + 40];
+		System.arraycopy(IV, 0, buffer, 3, IV.length);
+		AesCbc.encrypt(PLAIN, 0, buffer, 21, PLAIN.length, buffer, 3, KEY_256);
+		CustomAsserts.assertArrayEquals(buffer, 21, CIPHER_256, CIPHER_256.length);
+		byte[] plain = new byte[PLAIN.length + 1];
+		AesCbc.decrypt(buffer, 21, plain, 1, PLAIN.length, buffer, 3, KEY_256);
+		CustomAsserts.assertArrayEquals(plain, 1, PLAIN, PLAIN.length);
+		
+		// in place
+		System.arraycopy(PLAIN, 0, buffer, 5, PLAIN.length);
+		AesCbc.encrypt(buffer, 5, buffer, 5, PLAIN.length, IV, 0, KEY_128);
+		CustomAsserts.assertArrayEquals(buffer, 5, CIPHER_128, CIPHER_128.length);
+		AesCbc.decrypt(buffer, 5, buffer, 5, PLAIN.length, IV, 0, KEY_128);
+		CustomAsserts.assertArrayEquals(buffer, 5, PLAIN, PLAIN.length);
+		
+		try {
+			AesCbc.encrypt(PLAIN, 0, buffer, 0, 15, IV, 0, KEY_128);
+			fail("Unaligned data accepted");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	public void testEnginesAgree() {
+		Random random = new Random(538);
+		for (int i = 0; i < 50; ++i) {
+			byte[] key = new byte[Encryption.SYM_KEY_LENGTH];
+			byte[] iv = new byte[Encryption.SYM_IV_LENGTH];
+			byte[] data = new byte[random.nextInt(300)];
+			random.nextBytes(key);
+			random.nextBytes(iv);
+			random.nextBytes(data);
+			
+			AesCbc.setEngineFactory(AesCbc.ENGINE_REFERENCE);
+			byte[] expected = AesCbc.encrypt(data, iv, key, false, true);
+			AesCbc.setEngineFactory(AesCbc.ENGINE_TABLE);
+			byte[] actual = AesCbc.encrypt(data, iv, key, false, true);
+			CustomAsserts.assertArrayEquals(actual, expected);
+			CustomAsserts.assertArrayEquals(AesCbc.decrypt(actual, iv, key, true), data);
+		}
+	}
+	
+	public void testKeyCache() {
+		final int[] created = new int[1];
+		AesCbc.setEngineFactory(new AesCbc.EngineFactory() {
+			@Override
+			public BlockCipher createEngine() {
+				++created[0];
+				return AesCbc.ENGINE_TABLE.createEngine();
+			}
+		});
+		
+		// each key is expanded once for each direction
+		for (int i = 0; i < 10; ++i) {
+			assertVectors();
+			assertEquals(4, created[0]);
+		}
+		
+		// a new key pushes out the least recently used one
+		byte[] key = KEY_128.clone();
+		for (int i = 0; i < 4; ++i) {
+			++key[0];
+			AesCbc.encrypt(PLAIN, IV, key, false, false);
+		}
+		assertEquals(8, created[0]);
+		CustomAsserts.assertArrayEquals(AesCbc.encrypt(PLAIN, IV, KEY_128, false, false), CIPHER_128);
+		assertEquals(9, created[0]);
+		
+		// the key can change after it was used
+		byte[] keyCopy = key.clone();
+		byte[] encrypted = AesCbc.encrypt(PLAIN, IV, key, false, false);
+		System.arraycopy(KEY_128, 0, key, 0, key.length);
+		CustomAsserts.assertArrayEquals(AesCbc.encrypt(PLAIN, IV, key, false, false), CIPHER_128);
+		CustomAsserts.assertArrayEquals(AesCbc.encrypt(PLAIN, IV, keyCopy, false, false), encrypted);
+	}
+	
+	public void testConcurrent() throws Exception {
+		final Throwable[] failure = new Throwable[1];
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; ++t) {
+			final int seed = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						Random random = new Random(seed);
+						for (int i = 0; i < 500; ++i) {
+							// known vectors interleaved with random keys, so that the keys keep changing
+							if (i % 2 == seed % 2) {
+								CustomAsserts.assertArrayEquals(AesCbc.encrypt(PLAIN, IV, KEY_256, false, false), CIPHER_256);
+								CustomAsserts.assertArrayEquals(AesCbc.decrypt(CIPHER_128, IV, KEY_128, false), PLAIN);
+							} else {
+								byte[] key = new byte[Encryption.SYM_KEY_LENGTH];
+								byte[] data = new byte[random.nextInt(200)];
+								random.nextBytes(key);
+								random.nextBytes(data);
+								byte[] encrypted = AesCbc.encrypt(data, IV, key, false, true);
+								CustomAsserts.assertArrayEquals(AesCbc.decrypt(encrypted, IV, key, true), data);
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (failure) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+		}
+		
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		synchronized (failure) {
+			if (failure[0] != null)
+				throw new AssertionError(failure[0]);
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.util.Random;
+
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
+import uk.ac.cam.db538.cryptosms.utils.LowLevel;
+import junit.framework.TestCase;
+
+public class AesCtr_Test extends TestCase {
+
+	// NIST SP 800-38A, F.5.1 and F.5.5
+	private static final byte[] KEY_128 = LowLevel.fromHex("2b7e151628aed2a6abf7158809cf4f3c");
+	private static final byte[] KEY_256 = LowLevel.fromHex("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
+	private static final byte[] COUNTER = LowLevel.fromHex("f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff");
+	private static final byte[] PLAIN = LowLevel.fromHex("6bc1bee22e409f96e93d7e117393172a" +
+	                                                     "ae2d8a571e03ac9c9eb76fac45af8e51" +
+	                                                     "30c81c46a35ce411e5fbc1191a0a52ef" +
+	                                                     "f69f2445df4f9b17ad2b417be66c3710");
+	private static final byte[] CIPHER_128 = LowLevel.fromHex("874d6191b620e3261bef6864990db6ce" +
+	                                                          "9806f66b7970fdff8617187bb9fffdff" +
+	                                                          "5ae4df3edbd5d35e5b4f09020db03eab" +
+	                                                          "1e031dda2fbe03d1792170a0f3009cee");
+	private static final byte[] CIPHER_256 = LowLevel.fromHex("601ec313775789a5b7a7f504bbf3d228" +
+	                                                          "f443e3ca4d62b59aca84e990cacaf5c5" +
+	                                                          "2b0930daa23de94ce87017ba2d84988d" +
+	                                                          "dfc9c58db67aada613c2dd08457941a6");
+
+	public void testVectors() {
+		byte[] result = new byte[PLAIN.length];
+		AesCtr.process(PLAIN, 0, result, 0, PLAIN.length, COUNTER, 0, KEY_128, 0L);
+		CustomAsserts.assertArrayEquals(result, CIPHER_128);
+		AesCtr.process(PLAIN, 0, result, 0, PLAIN.length, COUNTER, 0, KEY_256, 0L);
+		CustomAsserts.assertArrayEquals(result, CIPHER_256);
+		
+		// the same operation decrypts, also in place
+		AesCtr.process(result, 0, result, 0, result.length, COUNTER, 0, KEY_256, 0L);
+		CustomAsserts.assertArrayEquals(result, PLAIN);
+	}
+
+	public void testRandomAccess() {
+		// any part of the stream, aligned or not, gives the same as the whole
+		for (int from = 0; from < PLAIN.length; from += 5)
+			for (int count = 0; from + count <= PLAIN.length; count += 7) {
+				byte[] result = new byte[count + 3];
+				AesCtr.process(CIPHER_128, from, result, 3, count, COUNTER, 0, KEY_128, from);
+				CustomAsserts.assertArrayEquals(result, 3, PLAIN, from, count);
+			}
+	}
+
+	public void testCounterCarry() {
+		// the counter overflows into the higher bytes
+		byte[] counter = LowLevel.fromHex("000000000000000000000000fffffffe");
+		byte[] data = new byte[5 * 16];
+		new Random(1).nextBytes(data);
+		byte[] whole = new byte[data.length];
+		AesCtr.process(data, 0, whole, 0, data.length, counter, 0, KEY_128, 0L);
+		
+		byte[] counterLater = LowLevel.fromHex("00000000000000000000000100000001");
+		byte[] part = new byte[16];
+		AesCtr.process(data, 3 * 16, part, 0, 16, counterLater, 0, KEY_128, 0L);
+		CustomAsserts.assertArrayEquals(whole, 3 * 16, part, 16);
+	}
+}
@@ -0,0 +1,167 @@
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECPoint;
+
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
+import uk.ac.cam.db538.cryptosms.utils.LowLevel;
+import junit.framework.TestCase;
+
+public class EllipticCurveDeffieHellman_Test extends TestCase {
+
+	// the same curve with the generic arithmetic
+	private static final ECCurve.Fp GENERIC_CURVE = new ECCurve.Fp(EllipticCurveDeffieHellman.ECDH_P, EllipticCurveDeffieHellman.ECDH_A, EllipticCurveDeffieHellman.ECDH_B);
+
+	private static ECPoint copyOfGenerator(ECCurve curve) {
+		ECPoint g = EllipticCurveDeffieHellman.ECDH_PARAMS.getG();
+		return curve.createPoint(g.getX().toBigInteger(), g.getY().toBigInteger(), false);
+	}
+
+	public void testFixedBase() {
+		ECPoint g = EllipticCurveDeffieHellman.ECDH_PARAMS.getG();
+		ECPoint gPlain = copyOfGenerator(GENERIC_CURVE);
+		BigInteger n = EllipticCurveDeffieHellman.ECDH_N;
+		
+		Random random = new Random(7);
+		for (int i = 0; i < 20; ++i) {
+			BigInteger k = new BigInteger(n.bitLength(), random);
+			assertEquals(gPlain.multiply(k).getX().toBigInteger(), g.multiply(k).getX().toBigInteger());
+		}
+		
+		// the edges of the table
+		BigInteger[] edges = new BigInteger[] {
+			BigInteger.ONE,
+			BigInteger.valueOf(15),
+			BigInteger.valueOf(16),
+			n.subtract(BigInteger.ONE),
+			BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE),
+			// longer than the table
+			BigInteger.ONE.shiftLeft(260).add(BigInteger.valueOf(3))
+		};
+		for (BigInteger k : edges)
+			assertEquals(gPlain.multiply(k).getX().toBigInteger(), g.multiply(k).getX().toBigInteger());
+		assertTrue(g.multiply(n).isInfinity());
+		assertTrue(g.multiply(BigInteger.ZERO).isInfinity());
+	}
+
+	public void testCurveArithmetic() {
+		// 2G from the SEC 2 test vectors
+		ECPoint g = copyOfGenerator(EllipticCurveDeffieHellman.ECDH_CURVE);
+		ECPoint g2 = g.multiply(BigInteger.valueOf(2));
+		assertEquals(new BigInteger("7CF27B188D034F7E8A52380304B51AC3C08969E277F21B35A60B48FC47669978", 16), g2.getX().toBigInteger());
+		assertEquals(new BigInteger("07775510DB8ED040293D9AC69F7430DBBA7DADE63CE982299E04B79D227873D1", 16), g2.getY().toBigInteger());
+		
+		// multiples of other points agree with the generic arithmetic
+		ECPoint gPlain = copyOfGenerator(GENERIC_CURVE);
+		BigInteger n = EllipticCurveDeffieHellman.ECDH_N;
+		Random random = new Random(11);
+		for (int i = 0; i < 10; ++i) {
+			BigInteger a = new BigInteger(n.bitLength(), random);
+			BigInteger b = new BigInteger(n.bitLength(), random);
+			ECPoint pPlain = gPlain.multiply(a);
+			ECPoint p = EllipticCurveDeffieHellman.ECDH_CURVE.decodePoint(pPlain.getEncoded());
+			ECPoint expected = pPlain.multiply(b);
+			ECPoint actual = p.multiply(b);
+			assertEquals(expected.getX().toBigInteger(), actual.getX().toBigInteger());
+			assertEquals(expected.getY().toBigInteger(), actual.getY().toBigInteger());
+		}
+		assertTrue(g.multiply(n).isInfinity());
+		assertEquals(g.negate().getY().toBigInteger(), g.multiply(n.subtract(BigInteger.ONE)).getY().toBigInteger());
+	}
+
+	public void testKeys() {
+		// private key one => public key is the generator
+		EllipticCurveDeffieHellman ecdh = new EllipticCurveDeffieHellman(new byte[] { 1 });
+		CustomAsserts.assertArrayEquals(ecdh.getPublicKey(), EllipticCurveDeffieHellman.ECDH_G);
+		
+		// both sides get the same secret
+		EllipticCurveDeffieHellman alice = new EllipticCurveDeffieHellman();
+		EllipticCurveDeffieHellman bob = new EllipticCurveDeffieHellman();
+		assertEquals(EllipticCurveDeffieHellman.LENGTH_PUBLIC_KEY, alice.getPublicKey().length);
+		assertEquals(alice.getSharedKey(bob.getPublicKey()), bob.getSharedKey(alice.getPublicKey()));
+		
+		// and the key pair can be restored from the private key
+		EllipticCurveDeffieHellman restored = new EllipticCurveDeffieHellman(alice.getPrivateKey());
+		CustomAsserts.assertArrayEquals(restored.getPublicKey(), alice.getPublicKey());
+	}
+
+	public void testDecodePublicKey() {
+		EllipticCurveDeffieHellman.clearPublicKeyCache();
+		
+		// decoded only once
+		byte[] publicKey = new EllipticCurveDeffieHellman().getPublicKey();
+		ECPoint point = EllipticCurveDeffieHellman.decodePublicKey(publicKey);
+		assertSame(point, EllipticCurveDeffieHellman.decodePublicKey(publicKey.clone()));
+		CustomAsserts.assertArrayEquals(point.getEncoded(), publicKey);
+		
+		// the cache keeps a copy of the key
+		byte[] changed = publicKey.clone();
+		EllipticCurveDeffieHellman.decodePublicKey(changed);
+		changed[0] ^= 0x01;
+		assertSame(point, EllipticCurveDeffieHellman.decodePublicKey(publicKey));
+		assertEquals(point.negate(), EllipticCurveDeffieHellman.decodePublicKey(changed));
+		
+		// the least recently used keys are dropped
+		for (int i = 0; i < EllipticCurveDeffieHellman.PUBLIC_KEY_CACHE_SIZE; ++i)
+			EllipticCurveDeffieHellman.decodePublicKey(new EllipticCurveDeffieHellman().getPublicKey());
+		ECPoint again = EllipticCurveDeffieHellman.decodePublicKey(publicKey);
+		assertNotSame(point, again);
+		assertEquals(point, again);
+	}
+
+	public void testInvalidPublicKey() {
+		byte[] valid = EllipticCurveDeffieHellman.ECDH_G;
+		byte[][] invalid = new byte[][] {
+			null,
+			new byte[0],
+			new byte[] { 0x00 },
+			LowLevel.cutData(valid, 0, valid.length - 1),
+			// uncompressed
+			copyOfGenerator(EllipticCurveDeffieHellman.ECDH_CURVE).getEncoded(),
+			// x not on the curve
+			null,
+			// x not reduced
+			null
+		};
+		
+		// small x of points and non-points; the points, shifted by p, still fit the key
+		byte[] small = new byte[EllipticCurveDeffieHellman.LENGTH_PUBLIC_KEY];
+		small[0] = 0x02;
+		for (int x = 1; invalid[5] == null; ++x) {
+			small[small.length - 1] = (byte) x;
+			try {
+				EllipticCurveDeffieHellman.decodePublicKey(small);
+			} catch (IllegalArgumentException e) {
+				invalid[5] = small.clone();
+			}
+		}
+		for (int x = 1; ; ++x) {
+			small[small.length - 1] = (byte) x;
+			try {
+				EllipticCurveDeffieHellman.decodePublicKey(small);
+				break;
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		byte[] shifted = EllipticCurveDeffieHellman.ECDH_P.add(new BigInteger(1, LowLevel.cutData(small, 1, small.length - 1))).toByteArray();
+		invalid[6] = small.clone();
+		System.arraycopy(shifted, shifted.length - 32, invalid[6], 1, 32);
+		
+		for (int i = 0; i < invalid.length; ++i) {
+			try {
+				EllipticCurveDeffieHellman.decodePublicKey(invalid[i]);
+				fail("Key " + i + " accepted");
+			} catch (IllegalArgumentException e) {
+			}
+		}
+		
+		try {
+			new EllipticCurveDeffieHellman().getSharedKey(new byte[] { 0x00 });
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+}
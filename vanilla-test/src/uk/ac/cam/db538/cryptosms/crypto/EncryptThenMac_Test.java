@@ -0,0 +1,151 @@
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
+import junit.framework.TestCase;
+
+public class EncryptThenMac_Test extends TestCase {
+
+	private Random mRandom = new Random(42);
+	
+	private byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		mRandom.nextBytes(data);
+		return data;
+	}
+
+	public void testRoundTrip() {
+		byte[] key = randomData(Encryption.SYM_KEY_LENGTH);
+		byte[] iv = randomData(Encryption.SYM_IV_LENGTH);
+		byte[] data = randomData(13 * Encryption.SYM_BLOCK_LENGTH);
+		
+		byte[] encrypted = new byte[data.length + Encryption.SYM_OVERHEAD + 5];
+		EncryptThenMac.encrypt(data, 0, data.length, encrypted, 5, iv, 0, key);
+		CustomAsserts.assertArrayEquals(encrypted, 5 + Encryption.HMAC_LENGTH, iv, Encryption.SYM_IV_LENGTH);
+		assertFalse(Arrays.equals(data, Arrays.copyOfRange(encrypted, 5 + Encryption.SYM_OVERHEAD, encrypted.length)));
+		
+		byte[] decrypted = new byte[data.length + 3];
+		assertTrue(EncryptThenMac.decrypt(encrypted, 5, data.length + Encryption.SYM_OVERHEAD, decrypted, 3, key));
+		CustomAsserts.assertArrayEquals(decrypted, 3, data, data.length);
+		
+		// the same IV gives the same result
+		byte[] encryptedOther = new byte[data.length + Encryption.SYM_OVERHEAD];
+		EncryptThenMac.encrypt(data, 0, data.length, encryptedOther, 0, iv, 0, key);
+		CustomAsserts.assertArrayEquals(encryptedOther, 0, Arrays.copyOfRange(encrypted, 5, encrypted.length), encryptedOther.length);
+	}
+
+	public void testInPlace() {
+		byte[] key = randomData(Encryption.SYM_KEY_LENGTH);
+		byte[] iv = randomData(Encryption.SYM_IV_LENGTH);
+		byte[] data = randomData(4 * Encryption.SYM_BLOCK_LENGTH);
+		
+		byte[] buffer = new byte[data.length + Encryption.SYM_OVERHEAD];
+		System.arraycopy(data, 0, buffer, Encryption.SYM_OVERHEAD, data.length);
+		EncryptThenMac.encrypt(buffer, Encryption.SYM_OVERHEAD, data.length, buffer, 0, iv, 0, key);
+		
+		byte[] expected = new byte[buffer.length];
+		EncryptThenMac.encrypt(data, 0, data.length, expected, 0, iv, 0, key);
+		CustomAsserts.assertArrayEquals(buffer, expected);
+		
+		assertTrue(EncryptThenMac.decrypt(buffer, 0, buffer.length, buffer, Encryption.SYM_OVERHEAD, key));
+		CustomAsserts.assertArrayEquals(buffer, Encryption.SYM_OVERHEAD, data, data.length);
+	}
+
+	public void testFailedCall() {
+		byte[] key = randomData(Encryption.SYM_KEY_LENGTH);
+		byte[] iv = randomData(Encryption.SYM_IV_LENGTH);
+		byte[] data = randomData(2 * Encryption.SYM_BLOCK_LENGTH);
+		byte[] encrypted = new byte[data.length + Encryption.SYM_OVERHEAD];
+		
+		// fails after it started computing the MAC
+		try {
+			EncryptThenMac.encrypt(data, 0, data.length - 1, encrypted, 0, iv, 0, key);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		
+		// which doesn't affect the following calls with the same key
+		EncryptThenMac.encrypt(data, 0, data.length, encrypted, 0, iv, 0, key);
+		byte[] decrypted = new byte[data.length];
+		assertTrue(EncryptThenMac.decrypt(encrypted, 0, encrypted.length, decrypted, 0, key));
+		CustomAsserts.assertArrayEquals(decrypted, data);
+	}
+
+	public void testTampering() {
+		byte[] key = randomData(Encryption.SYM_KEY_LENGTH);
+		byte[] iv = randomData(Encryption.SYM_IV_LENGTH);
+		byte[] data = randomData(2 * Encryption.SYM_BLOCK_LENGTH);
+		byte[] encrypted = new byte[data.length + Encryption.SYM_OVERHEAD];
+		EncryptThenMac.encrypt(data, 0, data.length, encrypted, 0, iv, 0, key);
+		
+		// any changed byte, be it in the MAC, the IV or the ciphertext, is detected
+		for (int i = 0; i < encrypted.length; ++i) {
+			byte[] tampered = encrypted.clone();
+			tampered[i] ^= 0x01;
+			byte[] out = new byte[data.length];
+			assertFalse(EncryptThenMac.decrypt(tampered, 0, tampered.length, out, 0, key));
+			// and nothing is decrypted
+			CustomAsserts.assertArrayEquals(out, new byte[data.length]);
+		}
+		
+		// and so is a wrong key
+		byte[] keyWrong = key.clone();
+		keyWrong[0] ^= 0x01;
+		assertFalse(EncryptThenMac.decrypt(encrypted, 0, encrypted.length, new byte[data.length], 0, keyWrong));
+		assertTrue(EncryptThenMac.decrypt(encrypted, 0, encrypted.length, new byte[data.length], 0, key));
+	}
+
+	public void testCounter() {
+		byte[] key = randomData(Encryption.SYM_KEY_LENGTH);
+		byte[] iv = randomData(Encryption.SYM_IV_LENGTH);
+		byte[] data = randomData(13 * Encryption.SYM_BLOCK_LENGTH - 5);
+		
+		byte[] encrypted = new byte[data.length + Encryption.SYM_OVERHEAD];
+		EncryptThenMac.encryptCounter(data, 0, data.length, encrypted, 0, iv, 0, key);
+		CustomAsserts.assertArrayEquals(encrypted, Encryption.HMAC_LENGTH, iv, Encryption.SYM_IV_LENGTH);
+		
+		byte[] decrypted = new byte[data.length];
+		assertTrue(EncryptThenMac.decryptCounter(encrypted, 0, encrypted.length, 0, data.length, decrypted, 0, key));
+		CustomAsserts.assertArrayEquals(decrypted, data);
+		
+		// only a part of it
+		byte[] part = new byte[4];
+		assertTrue(EncryptThenMac.decryptCounter(encrypted, 0, encrypted.length, 100, 4, part, 0, key));
+		CustomAsserts.assertArrayEquals(part, 0, data, 100, 4);
+		
+		// which is still authenticated as a whole
+		byte[] tampered = encrypted.clone();
+		tampered[tampered.length - 1] ^= 0x01;
+		assertFalse(EncryptThenMac.decryptCounter(tampered, 0, tampered.length, 100, 4, part, 0, key));
+		
+		try {
+			EncryptThenMac.decryptCounter(encrypted, 0, encrypted.length, data.length - 2, 4, part, 0, key);
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+		}
+	}
+
+	public void testModesApart() {
+		byte[] key = randomData(Encryption.SYM_KEY_LENGTH);
+		byte[] iv = randomData(Encryption.SYM_IV_LENGTH);
+		byte[] data = randomData(2 * Encryption.SYM_BLOCK_LENGTH);
+		
+		// data encrypted in one mode don't pass as the other
+		byte[] encrypted = new byte[data.length + Encryption.SYM_OVERHEAD];
+		EncryptThenMac.encrypt(data, 0, data.length, encrypted, 0, iv, 0, key);
+		assertFalse(EncryptThenMac.decryptCounter(encrypted, 0, encrypted.length, 0, data.length, new byte[data.length], 0, key));
+		EncryptThenMac.encryptCounter(data, 0, data.length, encrypted, 0, iv, 0, key);
+		assertFalse(EncryptThenMac.decrypt(encrypted, 0, encrypted.length, new byte[data.length], 0, key));
+		
+		// not even when the IV starts with what could be the mode byte
+		// and the rest is shifted by one byte
+		iv[0] = 'C';
+		EncryptThenMac.encrypt(data, 0, data.length, encrypted, 0, iv, 0, key);
+		byte[] shifted = new byte[encrypted.length - 1];
+		System.arraycopy(encrypted, 0, shifted, 0, Encryption.HMAC_LENGTH);
+		System.arraycopy(encrypted, Encryption.HMAC_LENGTH + 1, shifted, Encryption.HMAC_LENGTH, shifted.length - Encryption.HMAC_LENGTH);
+		assertFalse(EncryptThenMac.decryptCounter(shifted, 0, shifted.length, 0, data.length - 1, new byte[data.length], 0, key));
+	}
+}
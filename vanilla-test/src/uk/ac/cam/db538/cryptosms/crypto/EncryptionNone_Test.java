@@ -0,0 +1,159 @@
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.util.Random;
+
+import org.spongycastle.crypto.Digest;
+import org.spongycastle.crypto.Mac;
+
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
+import uk.ac.cam.db538.cryptosms.utils.LowLevel;
+import junit.framework.TestCase;
+
+public class EncryptionNone_Test extends TestCase {
+	
+	// FIPS 180-2, B.1
+	private static final byte[] HASH_ABC = LowLevel.fromHex("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+	
+	// RFC 4231, test cases 1 and 2
+	private static final byte[] KEY_1 = LowLevel.fromHex("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b");
+	private static final byte[] DATA_1 = "Hi There".getBytes();
+	private static final byte[] HMAC_1 = LowLevel.fromHex("b0344c61d8db38535ca8afceaf0bf12b881dc200c9833da726e9376c2e32cff7");
+	private static final byte[] KEY_2 = "Jefe".getBytes();
+	private static final byte[] DATA_2 = "what do ya want for nothing?".getBytes();
+	private static final byte[] HMAC_2 = LowLevel.fromHex("5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843");
+	
+	private EncryptionNone mCrypto;
+	
+	protected void setUp() throws Exception {
+		super.setUp();
+		mCrypto = new EncryptionNone();
+	}
+	
+	public void testVectors() {
+		CustomAsserts.assertArrayEquals(mCrypto.getHash("abc".getBytes()), HASH_ABC);
+		
+		// alternating keys
+		for (int i = 0; i < 3; ++i) {
+			CustomAsserts.assertArrayEquals(mCrypto.getHMAC(DATA_1, KEY_1), HMAC_1);
+			CustomAsserts.assertArrayEquals(mCrypto.getHMAC(DATA_2, KEY_2), HMAC_2);
+		}
+	}
+	
+	public void testRanges() {
+		byte[] data = new byte[DATA_2.length + 10];
+		System.arraycopy(DATA_2, 0, data, 7, DATA_2.length);
+		byte[] out = new byte[Encryption.HMAC_LENGTH + 5];
+		
+		mCrypto.getHMAC(data, 7, DATA_2.length, KEY_2, out, 5);
+		CustomAsserts.assertArrayEquals(out, 5, HMAC_2, Encryption.HMAC_LENGTH);
+		
+		System.arraycopy("abc".getBytes(), 0, data, 1, 3);
+		mCrypto.getHash(data, 1, 3, out, 2);
+		CustomAsserts.assertArrayEquals(out, 2, HASH_ABC, Encryption.HASH_LENGTH);
+		
+		// the key array can change after it was used
+		byte[] key = KEY_1.clone();
+		CustomAsserts.assertArrayEquals(mCrypto.getHMAC(DATA_1, key), HMAC_1);
+		key[0] = 0x42;
+		CustomAsserts.assertArrayEquals(mCrypto.getHMAC(DATA_1, KEY_1), HMAC_1);
+	}
+	
+	public void testIncremental() {
+		Random random = new Random(538);
+		byte[] key = new byte[Encryption.SYM_KEY_LENGTH];
+		random.nextBytes(key);
+		Mac mac = mCrypto.createHMAC(key);
+		Digest digest = mCrypto.createHash();
+		byte[] out = new byte[Encryption.HMAC_LENGTH];
+		
+		// reused for several messages, fed in pieces
+		for (int i = 0; i < 10; ++i) {
+			byte[] data = new byte[random.nextInt(300)];
+			random.nextBytes(data);
+			int split = random.nextInt(data.length + 1);
+			
+			mac.update(data, 0, split);
+			mac.update(data, split, data.length - split);
+			mac.doFinal(out, 0);
+			CustomAsserts.assertArrayEquals(out, mCrypto.getHMAC(data, key));
+			
+			digest.update(data, 0, split);
+			digest.update(data, split, data.length - split);
+			digest.doFinal(out, 0);
+			CustomAsserts.assertArrayEquals(out, mCrypto.getHash(data));
+		}
+		
+		// reset in the middle
+		mac.update(DATA_1, 0, DATA_1.length);
+		mac.reset();
+		mac.update(DATA_2, 0, DATA_2.length);
+		mac.doFinal(out, 0);
+		CustomAsserts.assertArrayEquals(out, mCrypto.getHMAC(DATA_2, key));
+	}
+	
+	public void testDecryptSymmetric() throws Exception {
+		Random random = new Random(25);
+		byte[] key = new byte[Encryption.SYM_KEY_LENGTH];
+		random.nextBytes(key);
+		byte[] data = new byte[100];
+		random.nextBytes(data);
+		
+		byte[] dataEncrypted = mCrypto.encryptSymmetric(data, key);
+		int length = dataEncrypted.length;
+		byte[] buffer = new byte[length + 7];
+		System.arraycopy(dataEncrypted, 0, buffer, 7, length);
+		byte[] out = new byte[length];
+		
+		// wrong keys are only refused, with any of the bytes changed
+		for (int i = 0; i < key.length; ++i) {
+			byte[] keyWrong = key.clone();
+			keyWrong[i] ^= 0x01;
+			assertFalse(mCrypto.decryptSymmetric(buffer, 7, length, out, 3, keyWrong));
+		}
+		assertTrue(mCrypto.decryptSymmetric(buffer, 7, length, out, 3, key));
+		CustomAsserts.assertArrayEquals(out, 3, data, data.length);
+		CustomAsserts.assertArrayEquals(mCrypto.decryptSymmetric(dataEncrypted, key), 0, data, data.length);
+		
+		// and so is a changed MAC
+		buffer[7 + Encryption.HMAC_LENGTH - 1] ^= 0x01;
+		assertFalse(mCrypto.decryptSymmetric(buffer, 7, length, out, 3, key));
+		try {
+			mCrypto.decryptSymmetric(LowLevel.cutData(buffer, 7, length), key);
+			fail();
+		} catch (EncryptionInterface.EncryptionException e) {
+		}
+	}
+	
+	public void testDecryptAuthenticated() throws Exception {
+		Random random = new Random(17);
+		byte[] key = new byte[Encryption.SYM_KEY_LENGTH];
+		random.nextBytes(key);
+		byte[] data = new byte[64];
+		random.nextBytes(data);
+		int length = data.length + Encryption.SYM_OVERHEAD;
+		byte[] authenticated = new byte[length + 5];
+		byte[] counter = new byte[length + 5];
+		byte[] out = new byte[data.length + 3];
+		
+		mCrypto.encryptAuthenticated(data, 0, data.length, authenticated, 5, key);
+		mCrypto.encryptCounter(data, 0, data.length, counter, 5, key);
+		mCrypto.decryptAuthenticated(authenticated, 5, length, out, 3, key);
+		CustomAsserts.assertArrayEquals(out, 3, data, data.length);
+		mCrypto.decryptCounter(counter, 5, length, 10, 20, out, 0, key);
+		CustomAsserts.assertArrayEquals(out, 0, data, 10, 20);
+		
+		// the last byte of the MAC is checked as well
+		authenticated[5 + Encryption.HMAC_LENGTH - 1] ^= 0x01;
+		counter[5 + Encryption.HMAC_LENGTH - 1] ^= 0x01;
+		try {
+			mCrypto.decryptAuthenticated(authenticated, 5, length, out, 3, key);
+			fail();
+		} catch (EncryptionInterface.EncryptionException e) {
+		}
+		try {
+			mCrypto.decryptCounter(counter, 5, length, 0, data.length, out, 0, key);
+			fail();
+		} catch (EncryptionInterface.EncryptionException e) {
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.util.Arrays;
+
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
+import junit.framework.TestCase;
+
+public class KeyPairPool_Test extends TestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		EncryptionNone.initEncryption();
+		KeyPairPool.setDepth(0);
+		KeyPairPool.clear();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		KeyPairPool.setDepth(KeyPairPool.DEFAULT_DEPTH);
+	}
+
+	private static void waitForDepth() throws InterruptedException {
+		for (int i = 0; i < 500 && KeyPairPool.getAvailable() < KeyPairPool.getDepth(); ++i)
+			Thread.sleep(10);
+		assertEquals(KeyPairPool.getDepth(), KeyPairPool.getAvailable());
+	}
+
+	public void testGetKeyPair() throws Exception {
+		KeyPairPool.setDepth(4);
+		waitForDepth();
+
+		// pairs are valid and different
+		EllipticCurveDeffieHellman first = KeyPairPool.getKeyPair();
+		EllipticCurveDeffieHellman second = KeyPairPool.getKeyPair();
+		EllipticCurveDeffieHellman restored = new EllipticCurveDeffieHellman(first.getPrivateKey());
+		CustomAsserts.assertArrayEquals(restored.getPublicKey(), first.getPublicKey());
+		assertFalse(Arrays.equals(first.getPublicKey(), second.getPublicKey()));
+		assertEquals(first.getSharedKey(second.getPublicKey()), second.getSharedKey(first.getPublicKey()));
+
+		// and the pool refills itself
+		waitForDepth();
+	}
+
+	public void testEmpty() throws Exception {
+		// generated on the spot
+		assertEquals(0, KeyPairPool.getAvailable());
+		EllipticCurveDeffieHellman ecdh = KeyPairPool.getKeyPair();
+		assertEquals(EllipticCurveDeffieHellman.LENGTH_PUBLIC_KEY, ecdh.getPublicKey().length);
+		assertEquals(0, KeyPairPool.getAvailable());
+	}
+
+	public void testClear() throws Exception {
+		KeyPairPool.setDepth(3);
+		KeyPairPool.fill();
+		assertEquals(3, KeyPairPool.getAvailable());
+
+		KeyPairPool.setDepth(0);
+		KeyPairPool.clear();
+		assertEquals(0, KeyPairPool.getAvailable());
+	}
+}
@@ -0,0 +1,119 @@
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.WrongKeyDecryptionException;
+import junit.framework.TestCase;
+
+public class KeyRatchet_Test extends TestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		EncryptionNone.initEncryption();
+	}
+
+	private static byte[] hash(byte[] key, int count) {
+		for (int i = 0; i < count; ++i)
+			key = Encryption.getEncryption().getHash(key);
+		return key;
+	}
+
+	public void testAdvance() {
+		byte[] key = Encryption.getEncryption().generateRandomData(Encryption.SYM_KEY_LENGTH);
+		byte[] copy = key.clone();
+		
+		CustomAsserts.assertArrayEquals(KeyRatchet.advance(key, 0), key);
+		CustomAsserts.assertArrayEquals(KeyRatchet.advance(key, 1), hash(key, 1));
+		CustomAsserts.assertArrayEquals(KeyRatchet.advance(key, 1000), hash(key, 1000));
+		// the original stays
+		CustomAsserts.assertArrayEquals(key, copy);
+		
+		KeyRatchet.advanceInPlace(copy, 5);
+		CustomAsserts.assertArrayEquals(copy, hash(key, 5));
+	}
+
+	public void testSkipped() {
+		KeyRatchet ratchet = new KeyRatchet(4);
+		byte[] key = Encryption.getEncryption().generateRandomData(Encryption.SYM_KEY_LENGTH);
+		
+		// the second one was used, the third one is the last one used
+		BitSet used = new BitSet();
+		used.set(1);
+		used.set(2);
+		byte[] result = ratchet.advance("a", key, 3, used);
+		CustomAsserts.assertArrayEquals(result, hash(key, 3));
+		assertEquals(1, ratchet.size());
+		ArrayList<byte[]> skipped = ratchet.getSkipped("a");
+		assertEquals(1, skipped.size());
+		CustomAsserts.assertArrayEquals(skipped.get(0), key);
+		assertEquals(0, ratchet.getSkipped("b").size());
+		
+		// used only once
+		assertFalse(ratchet.removeSkipped("b", key));
+		assertTrue(ratchet.removeSkipped("a", key));
+		assertFalse(ratchet.removeSkipped("a", key));
+		assertEquals(0, ratchet.size());
+	}
+
+	public void testCapacity() {
+		KeyRatchet ratchet = new KeyRatchet(4);
+		byte[] key = Encryption.getEncryption().generateRandomData(Encryption.SYM_KEY_LENGTH);
+		
+		// a large gap keeps only the most recent keys
+		byte[] result = ratchet.advance("a", key, 1000, null);
+		CustomAsserts.assertArrayEquals(result, hash(key, 1000));
+		ArrayList<byte[]> skipped = ratchet.getSkipped("a");
+		assertEquals(4, skipped.size());
+		for (int i = 0; i < 4; ++i)
+			CustomAsserts.assertArrayEquals(skipped.get(i), hash(key, 999 - i));
+		
+		// and older chains make room for newer
+		ratchet.advance("b", key, 2, null);
+		assertEquals(2, ratchet.getSkipped("a").size());
+		assertEquals(2, ratchet.getSkipped("b").size());
+		
+		ratchet.clear();
+		assertEquals(0, ratchet.size());
+	}
+
+	public void testClearChain() {
+		KeyRatchet ratchet = new KeyRatchet(8);
+		byte[] key = Encryption.getEncryption().generateRandomData(Encryption.SYM_KEY_LENGTH);
+		ratchet.advance("a", key, 2, null);
+		ratchet.advance("b", key, 3, null);
+		
+		ratchet.clear("a");
+		assertEquals(0, ratchet.getSkipped("a").size());
+		assertEquals(3, ratchet.getSkipped("b").size());
+	}
+
+	public void testMasterKeyUnavailable() {
+		KeyRatchet ratchet = new KeyRatchet(8);
+		byte[] key = Encryption.getEncryption().generateRandomData(Encryption.SYM_KEY_LENGTH);
+		ratchet.advance("a", key, 3, null);
+		
+		// the keys are kept until they can be decrypted again
+		Encryption.setEncryption(new EncryptionNone() {
+			@Override
+			public void decryptAuthenticatedWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException {
+				throw new EncryptionException(new Exception("Not ready"));
+			}
+		});
+		assertEquals(0, ratchet.getSkipped("a").size());
+		assertFalse(ratchet.removeSkipped("a", key));
+		assertEquals(3, ratchet.size());
+		
+		// but forgotten once they are encrypted with another master key
+		Encryption.setEncryption(new EncryptionNone() {
+			@Override
+			public void decryptAuthenticatedWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException {
+				throw new EncryptionException(new WrongKeyDecryptionException());
+			}
+		});
+		assertEquals(0, ratchet.getSkipped("a").size());
+		assertEquals(0, ratchet.size());
+	}
+}
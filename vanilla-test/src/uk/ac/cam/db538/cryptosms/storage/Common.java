@@ -23,11 +23,13 @@ public class Common {
 		
 		// clear caches
 		Header.forceClearCache();
+		FreeSpaceMap.forceClearCache();
 		Empty.forceClearCache();
 		Conversation.forceClearCache();
 		SessionKeys.forceClearCache();
 		MessageData.forceClearCache();
 		MessageDataPart.forceClearCache();
+		EntryPrefetcher.forceClearCache();
 		
 		// free the singleton
 		Storage.freeSingleton();
@@ -49,6 +51,7 @@ public class Common {
 		
 		// clear caches
 		Header.forceClearCache();
+		FreeSpaceMap.forceClearCache();
 		Empty.forceClearCache();
 		Conversation.forceClearCache();
 		SessionKeys.forceClearCache();
@@ -75,6 +78,22 @@ public class Common {
 			empty = empty.getNextEmpty();
 		}
 		
+		// free space map
+		FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+		if (map != null) {
+			for (long index : map.getChunkIndices()) {
+				if (visitedEntries[(int) index])
+					multiplePointers = true;
+				visitedEntries[(int) index] = true;
+			}
+			for (int i = 1; i < countEntries; ++i)
+				if (map.isFree(i)) {
+					if (visitedEntries[i])
+						multiplePointers = true;
+					visitedEntries[i] = true;
+				}
+		}
+		
 		// conversation
 		Conversation conv = header.getFirstConversation();
 		long convPrevious = 0L;
@@ -0,0 +1,215 @@
+package uk.ac.cam.db538.cryptosms.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionNone;
+import junit.framework.TestCase;
+
+public class Compactor_Test extends TestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		EncryptionNone.initEncryption();
+		Common.clearStorageFile();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		Common.closeStorageFile();
+	}
+
+	private ArrayList<byte[]> createParts(int count, int seed) {
+		ArrayList<byte[]> parts = new ArrayList<byte[]>();
+		for (int i = 0; i < count; ++i) {
+			byte[] data = new byte[100];
+			for (int j = 0; j < data.length; ++j)
+				data[j] = (byte) (seed + i + j);
+			parts.add(data);
+		}
+		return parts;
+	}
+
+	private void fragmentFile(Conversation conv1, Conversation conv2) throws StorageFileException {
+		Empty.addEmptyEntries(200);
+
+		// interleave the entries of both conversations
+		for (int i = 0; i < 6; ++i) {
+			MessageData msg1 = MessageData.createMessageData(conv1);
+			msg1.setAllPartData(createParts(1 + i % 3, i));
+			MessageData msg2 = MessageData.createMessageData(conv2);
+			msg2.setAllPartData(createParts(2, 100 + i));
+			if (i % 2 == 0)
+				SessionKeys.createSessionKeys(conv2);
+		}
+
+		// and leave holes in between
+		MessageData msg = conv1.getFirstMessageData();
+		while (msg != null) {
+			MessageData next = msg.getNextMessageData();
+			if (next != null)
+				next = next.getNextMessageData();
+			msg.delete();
+			msg = next;
+		}
+	}
+
+	private void assertContiguous() throws StorageFileException {
+		long expected = 1L;
+		Conversation conv = Header.getHeader().getFirstConversation();
+		while (conv != null) {
+			assertEquals(expected++, conv.getEntryIndex());
+			SessionKeys keys = conv.getFirstSessionKeys();
+			while (keys != null) {
+				assertEquals(expected++, keys.getEntryIndex());
+				keys = keys.getNextSessionKeys();
+			}
+			MessageData msg = conv.getFirstMessageData();
+			while (msg != null) {
+				assertEquals(expected++, msg.getEntryIndex());
+				MessageDataPart part = msg.getFirstMessageDataPart();
+				while (part != null) {
+					assertEquals(expected++, part.getEntryIndex());
+					part = part.getNextMessageDataPart();
+				}
+				msg = msg.getNextMessageData();
+			}
+			conv = conv.getNextConversation();
+		}
+	}
+
+	public void testCompact() throws Exception {
+		Storage storage = Storage.getStorage();
+		Conversation conv1 = Conversation.createConversation();
+		conv1.setPhoneNumber("+441234567890");
+		conv1.saveToFile();
+		Conversation conv2 = Conversation.createConversation();
+		conv2.setPhoneNumber("+440987654321");
+		conv2.saveToFile();
+		fragmentFile(conv1, conv2);
+		int countMessages1 = conv1.getMessages().size();
+		long countEntries = storage.getEntriesCount();
+		assertTrue(Common.checkStructure());
+		conv1 = Conversation.getConversation("+441234567890");
+
+		Compactor compactor = Compactor.compact();
+		assertTrue(compactor.isFinished());
+		assertTrue(compactor.getEntriesMoved() > 0);
+		assertTrue(storage.getEntriesCount() < countEntries);
+		assertEquals(0L, storage.getEntriesCount() % (Storage.ALIGN_SIZE / Storage.CHUNK_SIZE));
+		assertEquals((countEntries - storage.getEntriesCount()) * Storage.CHUNK_SIZE, compactor.getBytesReclaimed());
+
+		// instances in use were moved along
+		assertSame(conv1, Conversation.getConversation("+441234567890"));
+		assertEquals(countMessages1, conv1.getMessages().size());
+
+		assertTrue(Common.checkStructure());
+		assertContiguous();
+
+		// nothing got lost
+		Conversation conv = Conversation.getConversation("+440987654321");
+		assertNotNull(conv);
+		int countKeys = 0;
+		for (SessionKeys keys = conv.getFirstSessionKeys(); keys != null; keys = keys.getNextSessionKeys())
+			++countKeys;
+		assertEquals(3, countKeys);
+		MessageData msg = conv.getFirstMessageData();
+		for (int i = 5; i >= 0; --i) {
+			ArrayList<byte[]> expected = createParts(2, 100 + i);
+			ArrayList<byte[]> actual = msg.getAllPartData();
+			assertEquals(expected.size(), actual.size());
+			for (int j = 0; j < expected.size(); ++j)
+				assertTrue(Arrays.equals(expected.get(j), actual.get(j)));
+			msg = msg.getNextMessageData();
+		}
+		assertNull(msg);
+
+		// compacting a compact file changes nothing
+		countEntries = storage.getEntriesCount();
+		compactor = Compactor.compact();
+		assertEquals(0, compactor.getEntriesMoved());
+		assertEquals(0L, compactor.getBytesReclaimed());
+		assertEquals(countEntries, storage.getEntriesCount());
+	}
+
+	public void testIncremental() throws Exception {
+		Storage storage = Storage.getStorage();
+		Conversation conv1 = Conversation.createConversation();
+		Conversation conv2 = Conversation.createConversation();
+		fragmentFile(conv1, conv2);
+		long countEntries = storage.getEntriesCount();
+
+		Compactor compactor = new Compactor();
+		int steps = 0;
+		while (!compactor.step(0)) {
+			// the file is consistent and can be modified between steps
+			if (++steps == 3) {
+				assertTrue(Common.checkStructure());
+				conv1 = Header.getHeader().getFirstConversation();
+				MessageData.createMessageData(conv1).setAllPartData(createParts(2, 42));
+			} else if (steps == 6) {
+				// conversations the plan doesn't know about, or that are gone
+				Conversation.createConversation().saveToFile();
+				conv2.getFirstMessageData().delete();
+			} else if (steps == 9) {
+				Conversation.createConversation().delete();
+				conv1.delete();
+			}
+		}
+		assertTrue(steps > 9);
+		assertTrue(storage.getEntriesCount() < countEntries);
+		assertTrue(compactor.getTimeSpent() >= 0L);
+		assertTrue(Common.checkStructure());
+		assertContiguous();
+	}
+
+	public void testPlanningSteps() throws Exception {
+		Conversation conv1 = Conversation.createConversation();
+		Conversation conv2 = Conversation.createConversation();
+		fragmentFile(conv1, conv2);
+		for (int i = 0; i < 20; ++i)
+			MessageData.createMessageData(Conversation.createConversation()).setAllPartData(createParts(1, i));
+
+		// the structure is read one conversation per step, nothing is moved meanwhile
+		Compactor compactor = new Compactor();
+		for (int i = 0; i < 21; ++i) {
+			assertFalse(compactor.step(0));
+			assertEquals(0, compactor.getEntriesMoved());
+			if (i == 5) {
+				// a conversation already read is written, so the list is read again
+				Conversation conv = Header.getHeader().getFirstConversation();
+				conv.setPhoneNumber("+441234567890");
+				conv.saveToFile();
+			} else if (i == 10)
+				// one that hasn't been read yet
+				conv1.delete();
+		}
+
+		while (!compactor.step(0))
+			;
+		assertTrue(compactor.getEntriesMoved() > 0);
+		assertTrue(Common.checkStructure());
+		assertContiguous();
+		assertNotNull(Conversation.getConversation("+441234567890"));
+	}
+
+	public void testEmptyList() throws Exception {
+		Storage storage = Storage.getStorage();
+		boolean listMode = (FreeSpaceMap.getFreeSpaceMap() == null);
+		Conversation conv1 = Conversation.createConversation();
+		Conversation conv2 = Conversation.createConversation();
+		fragmentFile(conv1, conv2);
+		long countEntries = storage.getEntriesCount();
+
+		// the file stays in the mode it was in
+		Compactor.compact();
+		assertEquals(listMode, FreeSpaceMap.getFreeSpaceMap() == null);
+		assertTrue(storage.getEntriesCount() < countEntries);
+		assertTrue(Common.checkStructure());
+		assertContiguous();
+
+		// and survives being reopened
+		Storage.freeSingleton();
+		assertTrue(Common.checkStructure());
+	}
+}
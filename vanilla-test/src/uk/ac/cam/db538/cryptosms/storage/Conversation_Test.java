@@ -12,10 +12,10 @@ import uk.ac.cam.db538.cryptosms.storage.SessionKeys;
 import uk.ac.cam.db538.cryptosms.storage.Storage;
 import uk.ac.cam.db538.cryptosms.storage.StorageFileException;
 import uk.ac.cam.db538.cryptosms.utils.Charset;
-import uk.ac.cam.db538.cryptosms.crypto.Encryption;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionNone;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
 import uk.ac.cam.db538.cryptosms.utils.LowLevel;
+import uk.ac.cam.db538.cryptosms.utils.SimNumber;
 import junit.framework.TestCase;
 
 public class Conversation_Test extends TestCase {
@@ -210,7 +210,7 @@ public class Conversation_Test extends TestCase {
 		assertEquals(dataEncrypted.length, Storage.CHUNK_SIZE);
 		
 		// decrypt the encoded part
-		byte[] dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
+		byte[] dataPlain = Storage.decryptEntry(dataEncrypted);
 		
 		// check the data
 		assertEquals(flags, dataPlain[0]);
@@ -237,7 +237,7 @@ public class Conversation_Test extends TestCase {
 		System.arraycopy(LowLevel.getBytesUnsignedInt(indexNext), 0, dataPlain, Storage.ENCRYPTED_ENTRY_SIZE - 4, 4);
 		
 		// encrypt it and inject it into the file
-		byte[] dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(dataPlain);
+		byte[] dataEncrypted = Storage.encryptEntry(dataPlain);
 		Storage.getStorage().setEntry(index, dataEncrypted);
 
 		// have it parsed
@@ -263,4 +263,59 @@ public class Conversation_Test extends TestCase {
 		// check structure
 		assertTrue(Common.checkStructure());
 	}
+
+	public void testGetConversationByPhoneNumber() throws StorageFileException, IOException {
+		Conversation conv1 = Conversation.createConversation();
+		conv1.setPhoneNumber("+447896512369");
+		conv1.saveToFile();
+		Conversation conv2 = Conversation.createConversation();
+		conv2.setPhoneNumber("+447000012369"); // same last digits as conv1
+		conv2.saveToFile();
+
+		// index gets built from the file
+		Conversation.forceClearCache();
+		Conversation found = Conversation.getConversation("07896512369");
+		assertNotNull(found);
+		assertEquals(conv1.getEntryIndex(), found.getEntryIndex());
+		found = Conversation.getConversation("+447000012369");
+		assertEquals(conv2.getEntryIndex(), found.getEntryIndex());
+		assertNull(Conversation.getConversation("+447896500000"));
+
+		// created after the index has been built
+		Conversation conv3 = Conversation.createConversation();
+		conv3.setPhoneNumber("12345");
+		conv3.saveToFile();
+		assertSame(conv3, Conversation.getConversation("123-45"));
+
+		// phone number changed
+		conv3.setPhoneNumber("+447111111111");
+		conv3.saveToFile();
+		assertNull(Conversation.getConversation("12345"));
+		assertSame(conv3, Conversation.getConversation("+447111111111"));
+
+		// deleted
+		conv3.delete();
+		assertNull(Conversation.getConversation("+447111111111"));
+		assertNotNull(Conversation.getConversation("+447896512369"));
+
+		assertTrue(Common.checkStructure());
+	}
+
+	public void testChangeAllSessionKeys() throws StorageFileException, IOException {
+		Conversation conv = Conversation.createConversation();
+		SessionKeys keys = SessionKeys.createSessionKeys(conv);
+		SimNumber simNumber = new SimNumber("+447123456789", false);
+		keys.setSimNumber(simNumber);
+		keys.saveToFile();
+
+		// nothing to replace, mustn't spoil the transaction
+		Conversation.changeAllSessionKeys(simNumber, simNumber);
+		assertEquals(simNumber, conv.getFirstSessionKeys().getSimNumber());
+
+		SimNumber replacement = new SimNumber("+447000000000", false);
+		Conversation.changeAllSessionKeys(simNumber, replacement);
+		assertEquals(replacement, conv.getFirstSessionKeys().getSimNumber());
+
+		assertTrue(Common.checkStructure());
+	}
 }
@@ -71,7 +71,7 @@ public class Empty_Test extends TestCase {
 		assertEquals(dataEncrypted.length, Storage.CHUNK_SIZE);
 		
 		// decrypt the encoded part
-		byte[] dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
+		byte[] dataPlain = Storage.decryptEntry(dataEncrypted);
 		
 		// check the indices
 		assertEquals(LowLevel.getUnsignedInt(dataPlain, Storage.CHUNK_SIZE - Encryption.SYM_OVERHEAD - 4), indexNext);
@@ -88,7 +88,7 @@ public class Empty_Test extends TestCase {
 		System.arraycopy(LowLevel.getBytesUnsignedInt(indexNext), 0, dataPlain, Storage.ENCRYPTED_ENTRY_SIZE - 4, 4);
 		
 		// encrypt it and insert it in the file
-		byte[] dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(dataPlain);
+		byte[] dataEncrypted = Storage.encryptEntry(dataPlain);
 		Storage.getStorage().setEntry(index, dataEncrypted);
 		
 		// have it parsed
@@ -114,4 +114,19 @@ public class Empty_Test extends TestCase {
 			assertTrue(e.getMessage(), false);
 		}
 	}
+
+	public void testEmptyRun() throws StorageFileException, IOException {
+		Storage storage = Storage.getStorage();
+		long countEntries = storage.getEntriesCount();
+		
+		// appended to the end of the file, which stays aligned
+		long start = Empty.getEmptyRun(5, 0L);
+		if (FreeSpaceMap.getFreeSpaceMap() == null)
+			assertEquals(countEntries, start);
+		assertEquals(0L, storage.getEntriesCount() % (Storage.ALIGN_SIZE / Storage.CHUNK_SIZE));
+		
+		for (int i = 0; i < 5; ++i)
+			Empty.replaceWithEmpty(start + i);
+		assertTrue(Common.checkStructure());
+	}
 }
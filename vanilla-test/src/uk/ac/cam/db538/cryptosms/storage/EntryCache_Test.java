@@ -0,0 +1,129 @@
+package uk.ac.cam.db538.cryptosms.storage;
+
+import junit.framework.TestCase;
+
+public class EntryCache_Test extends TestCase {
+
+	public void testPutGetRemove() {
+		EntryCache<String> cache = new EntryCache<String>();
+
+		assertNull(cache.get(1L));
+		cache.put(1L, "a");
+		cache.put(2L, "b");
+		assertEquals("a", cache.get(1L));
+		assertEquals("b", cache.get(2L));
+		assertEquals(2, cache.size());
+
+		// replacing doesn't change the size
+		cache.put(1L, "c");
+		assertEquals("c", cache.get(1L));
+		assertEquals(2, cache.size());
+
+		cache.remove(1L);
+		assertNull(cache.get(1L));
+		assertEquals("b", cache.get(2L));
+		assertEquals(1, cache.size());
+
+		// removing non-existent entry
+		cache.remove(1L);
+		assertEquals(1, cache.size());
+
+		cache.clear();
+		assertNull(cache.get(2L));
+		assertEquals(0, cache.size());
+
+		// index 0 is reserved for the header
+		assertNull(cache.get(0L));
+		try {
+			cache.put(0L, "x");
+			fail("Should not accept index 0");
+		} catch (IllegalArgumentException ex) {
+		}
+	}
+
+	public void testManyEntries() {
+		EntryCache<Long> cache = new EntryCache<Long>();
+		final int count = 5000;
+
+		// enough to trigger several resizes
+		for (long i = 1; i <= count; ++i)
+			cache.put(i, Long.valueOf(i * 3));
+		assertEquals(count, cache.size());
+		for (long i = 1; i <= count; ++i)
+			assertEquals(Long.valueOf(i * 3), cache.get(i));
+
+		// remove every other entry, the rest has to stay reachable
+		for (long i = 1; i <= count; i += 2)
+			cache.remove(i);
+		assertEquals(count / 2, cache.size());
+		for (long i = 1; i <= count; ++i) {
+			if (i % 2 == 1)
+				assertNull(cache.get(i));
+			else
+				assertEquals(Long.valueOf(i * 3), cache.get(i));
+		}
+
+		// large indices
+		cache.put(0xFFFFFFFFL, Long.valueOf(7L));
+		assertEquals(Long.valueOf(7L), cache.get(0xFFFFFFFFL));
+	}
+
+	public void testEviction() {
+		EntryCache<Object> cache = new EntryCache<Object>(2);
+		Object a = new Object(), b = new Object(), c = new Object();
+
+		cache.put(1L, a);
+		cache.put(2L, b);
+		assertSame(a, cache.get(1L)); // 2 is now least recently used
+		cache.put(3L, c);
+		assertEquals(1L, cache.getStatistics().getEvictions());
+
+		// evicted instance is still returned while it's in use
+		assertSame(b, cache.get(2L));
+		assertSame(a, cache.get(1L));
+		assertSame(c, cache.get(3L));
+		assertEquals(4L, cache.getStatistics().getHits());
+		// each of them pushed out the least recently used one
+		assertEquals(4L, cache.getStatistics().getEvictions());
+
+		assertNull(cache.get(4L));
+		assertEquals(1L, cache.getStatistics().getMisses());
+
+		cache.resetStatistics();
+		assertEquals(0L, cache.getStatistics().getHits());
+		assertEquals(0L, cache.getStatistics().getMisses());
+		assertEquals(0L, cache.getStatistics().getEvictions());
+	}
+
+	public void testPinning() {
+		EntryCache<Object> cache = new EntryCache<Object>(1);
+		Object a = new Object(), b = new Object(), c = new Object();
+
+		cache.put(1L, a);
+		cache.pin(1L, a);
+		cache.put(2L, b);
+		cache.put(3L, c);
+		// only 2 could have been evicted
+		assertEquals(1L, cache.getStatistics().getEvictions());
+
+		// unpinning makes it the most recently used, so 3 goes
+		cache.unpin(1L);
+		assertEquals(2L, cache.getStatistics().getEvictions());
+
+		cache.put(4L, new Object());
+		assertEquals(3L, cache.getStatistics().getEvictions());
+	}
+
+	public void testUnusedAreCollected() throws InterruptedException {
+		EntryCache<Object> cache = new EntryCache<Object>(10);
+		for (long i = 1; i <= 1000; ++i)
+			cache.put(i, new Object());
+
+		// nothing holds the evicted ones, so the size has to drop eventually
+		for (int i = 0; i < 50 && cache.size() > 10; ++i) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertEquals(10, cache.size());
+	}
+}
@@ -0,0 +1,191 @@
+package uk.ac.cam.db538.cryptosms.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionNone;
+import junit.framework.TestCase;
+
+public class EntryPrefetcher_Test extends TestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		EncryptionNone.initEncryption();
+		Common.clearStorageFile();
+		Storage.setDecryptionThreads(4);
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		Common.closeStorageFile();
+		Storage.setDecryptionThreads(Runtime.getRuntime().availableProcessors());
+	}
+
+	private Conversation createConversation(int countMessages) throws StorageFileException {
+		Conversation conv = Conversation.createConversation();
+		conv.setPhoneNumber("+441234567890");
+		conv.saveToFile();
+		for (int i = 0; i < countMessages; ++i) {
+			MessageData msg = MessageData.createMessageData(conv);
+			ArrayList<byte[]> parts = new ArrayList<byte[]>();
+			for (int j = 0; j <= i % 3; ++j)
+				parts.add(("Message " + i + ", part " + j).getBytes());
+			msg.setAllPartData(parts);
+		}
+		return conv;
+	}
+	
+	private ArrayList<ArrayList<byte[]>> readAll() throws StorageFileException {
+		// everything has to be read from the file
+		Conversation.forceClearCache();
+		MessageData.forceClearCache();
+		MessageDataPart.forceClearCache();
+		EntryPrefetcher.forceClearCache();
+		
+		ArrayList<ArrayList<byte[]>> result = new ArrayList<ArrayList<byte[]>>();
+		for (MessageData msg : Conversation.getConversation("+441234567890").getMessages())
+			result.add(msg.getAllPartData());
+		return result;
+	}
+
+	public void testGetEntries() throws Exception {
+		Storage storage = Storage.getStorage();
+		createConversation(10);
+		long[] indices = new long[] { 1L, 2L, 3L, 5L, 6L, 9L, 15L };
+		byte[] dirty = new byte[Storage.CHUNK_SIZE];
+		Arrays.fill(dirty, (byte) 0x42);
+
+		storage.beginTransaction();
+		try {
+			// write-back cache in the middle of a run
+			storage.setEntry(5L, dirty);
+			byte[][] entries = storage.getEntries(indices);
+			assertEquals(indices.length, entries.length);
+			for (int i = 0; i < indices.length; ++i)
+				CustomAsserts.assertArrayEquals(entries[i], storage.getEntry(indices[i]));
+			CustomAsserts.assertArrayEquals(entries[3], dirty);
+		} finally {
+			storage.rollback();
+		}
+
+		try {
+			storage.getEntries(new long[] { 1L, storage.getEntriesCount() });
+			fail("Index out of bounds accepted");
+		} catch (StorageFileException e) {
+		}
+	}
+
+	public void testSameAsSerial() throws Exception {
+		createConversation(40);
+		
+		Storage.setDecryptionThreads(1);
+		assertTrue(Common.checkStructure());
+		ArrayList<ArrayList<byte[]>> expected = readAll();
+
+		Storage.setDecryptionThreads(4);
+		assertTrue(Common.checkStructure());
+		ArrayList<ArrayList<byte[]>> actual = readAll();
+		
+		assertEquals(40, actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).size(), actual.get(i).size());
+			for (int j = 0; j < expected.get(i).size(); ++j)
+				CustomAsserts.assertArrayEquals(actual.get(i).get(j), expected.get(i).get(j));
+		}
+	}
+	
+	public void testGetDecryptedEntries() throws Exception {
+		Storage storage = Storage.getStorage();
+		createConversation(10);
+		long[] indices = new long[] { 9L, 2L, 5L, 2L, 1L };
+		
+		// in the given order, partly decrypted ahead
+		EntryPrefetcher.prefetch(new long[] { 5L });
+		byte[][] entries = EntryPrefetcher.getDecryptedEntries(indices);
+		assertEquals(indices.length, entries.length);
+		for (int i = 0; i < indices.length; ++i)
+			CustomAsserts.assertArrayEquals(entries[i], Storage.decryptEntry(storage.getEntry(indices[i])));
+		
+		// but all of them have to decrypt
+		byte[] garbage = new byte[Storage.CHUNK_SIZE];
+		Arrays.fill(garbage, (byte) 0x13);
+		storage.setEntry(storage.getEntriesCount() - 1, garbage);
+		try {
+			EntryPrefetcher.getDecryptedEntries(new long[] { 1L, storage.getEntriesCount() - 1 });
+			fail("Garbage decrypted");
+		} catch (StorageFileException e) {
+		}
+	}
+	
+	public void testGetConversations() throws Exception {
+		Conversation conv1 = createConversation(0);
+		Conversation conv2 = Conversation.createConversation();
+		conv2.setPhoneNumber("+440987654321");
+		conv2.saveToFile();
+		long index1 = conv1.getEntryIndex();
+		long index2 = conv2.getEntryIndex();
+		
+		// one of them has to be read from the file
+		Conversation.forceClearCache();
+		conv2 = Conversation.getConversation(index2);
+		ArrayList<Conversation> convs = Conversation.getConversations(new long[] { index2, 0L, index1 });
+		assertEquals(3, convs.size());
+		assertSame(conv2, convs.get(0));
+		assertNull(convs.get(1));
+		assertEquals("+441234567890", convs.get(2).getPhoneNumber());
+		assertSame(convs.get(2), Conversation.getConversation(index1));
+	}
+	
+	public void testReadAhead() throws Exception {
+		createConversation(60);
+		
+		// the windows behind the walk are read in the background
+		Storage.setDecryptionThreads(4);
+		ArrayList<ArrayList<byte[]>> actual = readAll();
+		Storage.setDecryptionThreads(1);
+		ArrayList<ArrayList<byte[]>> expected = readAll();
+		
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			assertEquals(expected.get(i).size(), actual.get(i).size());
+			for (int j = 0; j < expected.get(i).size(); ++j)
+				CustomAsserts.assertArrayEquals(actual.get(i).get(j), expected.get(i).get(j));
+		}
+	}
+	
+	public void testModified() throws Exception {
+		Conversation conv = createConversation(5);
+		long index = conv.getFirstMessageData().getEntryIndex();
+		
+		// decrypted ahead, then changed in the file
+		EntryPrefetcher.prefetch(new long[] { index, index + 1 });
+		ArrayList<byte[]> parts = new ArrayList<byte[]>();
+		parts.add("Changed".getBytes());
+		conv.getFirstMessageData().setAllPartData(parts);
+		
+		byte[] expected = Storage.decryptEntry(Storage.getStorage().getEntry(index));
+		CustomAsserts.assertArrayEquals(EntryPrefetcher.getDecryptedEntry(index), expected);
+		
+		// and the other way round
+		EntryPrefetcher.prefetch(new long[] { index });
+		CustomAsserts.assertArrayEquals(EntryPrefetcher.getDecryptedEntry(index), expected);
+	}
+	
+	public void testUndecryptable() throws Exception {
+		Storage storage = Storage.getStorage();
+		createConversation(3);
+		long index = storage.getEntriesCount() - 1;
+		byte[] garbage = new byte[Storage.CHUNK_SIZE];
+		Arrays.fill(garbage, (byte) 0x13);
+		storage.setEntry(index, garbage);
+		
+		// left out of the batch, the error comes with the actual read
+		EntryPrefetcher.prefetch(new long[] { 1L, index });
+		try {
+			EntryPrefetcher.getDecryptedEntry(index);
+			fail("Garbage decrypted");
+		} catch (StorageFileException e) {
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package uk.ac.cam.db538.cryptosms.storage;
+
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionNone;
+import junit.framework.TestCase;
+
+public class FreeSpaceMap_Test extends TestCase {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		EncryptionNone.initEncryption();
+		Storage.setFreeSpaceMap(true);
+		Common.clearStorageFile();
+	}
+
+	protected void tearDown() throws Exception {
+		super.tearDown();
+		Common.closeStorageFile();
+		Storage.setFreeSpaceMap(false);
+	}
+
+	public void testNewFile() throws Exception {
+		Storage storage = Storage.getStorage();
+		FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+		assertNotNull(map);
+		assertEquals(0L, Header.getHeader().getIndexEmpty());
+		assertEquals(Header.CURRENT_VERSION, Header.getHeader().getVersion());
+
+		// aligned, all free but the header and the map
+		assertEquals(Storage.ALIGN_SIZE / Storage.CHUNK_SIZE, storage.getEntriesCount());
+		assertEquals(storage.getEntriesCount() - 2, Empty.getEmptyEntriesCount());
+		assertTrue(Common.checkStructure());
+	}
+
+	public void testAllocation() throws Exception {
+		Storage storage = Storage.getStorage();
+		int countFree = Empty.getEmptyEntriesCount();
+
+		// lowest indices first
+		long[] indices = Empty.getEmptyIndices(3);
+		assertEquals(countFree - 3, Empty.getEmptyEntriesCount());
+		assertTrue(indices[0] < indices[1] && indices[1] < indices[2]);
+
+		Empty.replaceWithEmpty(indices[1]);
+		assertEquals(countFree - 2, Empty.getEmptyEntriesCount());
+		assertEquals(indices[1], Empty.getEmptyIndex());
+
+		// more than there is => file grows, still aligned
+		long countEntries = storage.getEntriesCount();
+		Empty.getEmptyIndices(countFree + 10);
+		assertTrue(storage.getEntriesCount() > countEntries);
+		assertEquals(0L, storage.getEntriesCount() % (Storage.ALIGN_SIZE / Storage.CHUNK_SIZE));
+
+		// persisted
+		FreeSpaceMap.forceClearCache();
+		int countNow = Empty.getEmptyEntriesCount();
+		FreeSpaceMap.forceClearCache();
+		assertEquals(countNow, Empty.getEmptyEntriesCount());
+	}
+
+	public void testRuns() throws Exception {
+		FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+
+		// fragment the beginning of the file
+		long[] indices = Empty.getEmptyIndices(Empty.getEmptyEntriesCount());
+		for (int i = 0; i < indices.length; i += 2)
+			Empty.replaceWithEmpty(indices[i]);
+
+		// no run of 3 there => taken from the end of the file
+		long start = map.allocateRun(3);
+		assertTrue(start > indices[indices.length - 1]);
+		for (int i = 0; i < 3; ++i)
+			assertFalse(map.isFree(start + i));
+
+		// free a run in the middle and get it back
+		Empty.replaceWithEmpty(indices[1]);
+		Empty.replaceWithEmpty(indices[3]);
+		assertEquals(indices[0], map.allocateRun(5));
+	}
+
+	public void testLargeFile() throws Exception {
+		// needs more than one chunk of the map
+		Storage storage = Storage.getStorage();
+		Empty.addEmptyEntries(FreeSpaceMap.ENTRIES_PER_CHUNK * 2);
+		assertTrue(storage.getEntriesCount() > FreeSpaceMap.ENTRIES_PER_CHUNK * 2);
+		assertEquals(3, FreeSpaceMap.getFreeSpaceMap().getChunkIndices().length);
+		assertTrue(Common.checkStructure());
+
+		Conversation conv = Conversation.createConversation();
+		MessageData msg = MessageData.createMessageData(conv);
+		msg.setNumberOfParts(10);
+		assertTrue(Common.checkStructure());
+	}
+
+	public void testConversion() throws Exception {
+		Conversation conv = Conversation.createConversation();
+		MessageData msg = MessageData.createMessageData(conv);
+		msg.setNumberOfParts(5);
+		int countFree = Empty.getEmptyEntriesCount();
+		assertTrue(Common.checkStructure());
+
+		// back to the linked list, the chunk of the map becomes free as well
+		Storage.setFreeSpaceMap(false);
+		Storage.freeSingleton();
+		Storage.getStorage();
+		assertNull(FreeSpaceMap.getFreeSpaceMap());
+		assertEquals(countFree + 1, Empty.getEmptyEntriesCount());
+		assertTrue(Common.checkStructure());
+
+		// and to the map again
+		Storage.setFreeSpaceMap(true);
+		Storage.freeSingleton();
+		Storage.getStorage();
+		assertNotNull(FreeSpaceMap.getFreeSpaceMap());
+		assertEquals(countFree, Empty.getEmptyEntriesCount());
+		assertTrue(Common.checkStructure());
+	}
+
+	public void testLocality() throws Exception {
+		Conversation conv1 = Conversation.createConversation();
+		Conversation conv2 = Conversation.createConversation();
+
+		// leave holes all over the file
+		long[] indices = Empty.getEmptyIndices(Empty.getEmptyEntriesCount());
+		for (int i = 0; i < indices.length; i += 3)
+			Empty.replaceWithEmpty(indices[i]);
+
+		// messages of one conversation go next to each other
+		MessageData msg1 = MessageData.createMessageData(conv1);
+		MessageData msg2 = MessageData.createMessageData(conv2);
+		MessageData msg3 = MessageData.createMessageData(conv1);
+		assertTrue(msg3.getEntryIndex() > msg1.getEntryIndex());
+		assertTrue(msg2.getEntryIndex() < msg3.getEntryIndex() || msg2.getEntryIndex() > msg3.getEntryIndex() + 1);
+
+		// parts of a message are consecutive if there's room
+		for (int i = indices.length - 3; i < indices.length; ++i)
+			if (!FreeSpaceMap.getFreeSpaceMap().isFree(indices[i]))
+				Empty.replaceWithEmpty(indices[i]);
+		msg3.setNumberOfParts(4);
+		long previous = msg3.getFirstMessageDataPart().getEntryIndex();
+		MessageDataPart part = msg3.getFirstMessageDataPart().getNextMessageDataPart();
+		while (part != null) {
+			assertEquals(previous + 1, part.getEntryIndex());
+			previous = part.getEntryIndex();
+			part = part.getNextMessageDataPart();
+		}
+
+		// explicit run
+		long start = Empty.getEmptyRun(5, conv1.getEntryIndex());
+		FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+		for (int i = 0; i < 5; ++i) {
+			assertFalse(map.isFree(start + i));
+			Empty.replaceWithEmpty(start + i);
+		}
+
+		// give back the entries that weren't holes
+		for (int i = 0; i < indices.length - 3; ++i)
+			if (i % 3 != 0)
+				Empty.replaceWithEmpty(indices[i]);
+		assertTrue(Common.checkStructure());
+	}
+}
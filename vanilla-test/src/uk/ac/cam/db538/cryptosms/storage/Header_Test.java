@@ -1,7 +1,6 @@
 package uk.ac.cam.db538.cryptosms.storage;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 import uk.ac.cam.db538.cryptosms.storage.Header;
 import uk.ac.cam.db538.cryptosms.storage.Storage;
@@ -107,9 +106,8 @@ public class Header_Test extends TestCase {
 		assertEquals(dataAll[3], (byte) version); // Version
 		
 		// decrypt the encoded part
-		ByteBuffer buf = ByteBuffer.allocate(Storage.CHUNK_SIZE - 16);
-		buf.put(dataAll, 16, Storage.CHUNK_SIZE - 16);
-		byte[] dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(buf.array());
+		byte[] dataPlain = new byte[Storage.CHUNK_SIZE - 16 - Encryption.SYM_OVERHEAD];
+		Encryption.getEncryption().decryptAuthenticatedWithMasterKey(dataAll, 16, Storage.CHUNK_SIZE - 16, dataPlain, 0);
 		
 		// check the keyId
 		assertEquals(LowLevel.getUnsignedByte(dataPlain[0]), keyId);
@@ -129,10 +127,8 @@ public class Header_Test extends TestCase {
 		dataPlain[0] = (byte)keyId;
 		System.arraycopy(LowLevel.getBytesUnsignedInt(indexFree), 0, dataPlain, Storage.CHUNK_SIZE - 16 - Encryption.SYM_OVERHEAD - 8, 4);
 		System.arraycopy(LowLevel.getBytesUnsignedInt(indexConversation), 0, dataPlain, Storage.CHUNK_SIZE - 16 - Encryption.SYM_OVERHEAD - 4, 4);
-		byte[] dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(dataPlain);
-		
 		byte[] dataAll = new byte[Storage.CHUNK_SIZE];
-		System.arraycopy(dataEncrypted, 0, dataAll, 16, Storage.CHUNK_SIZE - 16);
+		Encryption.getEncryption().encryptAuthenticatedWithMasterKey(dataPlain, 0, dataPlain.length, dataAll, 16);
 
 		// wrong header (SMS)
 		dataAll[0] = 0x53; // S
@@ -9,7 +9,6 @@ import uk.ac.cam.db538.cryptosms.storage.MessageDataPart;
 import uk.ac.cam.db538.cryptosms.storage.Storage;
 import uk.ac.cam.db538.cryptosms.storage.StorageFileException;
 import uk.ac.cam.db538.cryptosms.CustomAsserts;
-import uk.ac.cam.db538.cryptosms.crypto.Encryption;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionNone;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
 import uk.ac.cam.db538.cryptosms.utils.LowLevel;
@@ -109,7 +108,7 @@ public class MessageDataPart_Test extends TestCase {
 		assertEquals(dataEncrypted.length, Storage.CHUNK_SIZE);
 		
 		// decrypt the encoded part
-		byte[] dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
+		byte[] dataPlain = Storage.decryptEntry(dataEncrypted);
 		
 		// check the data
 		assertEquals(dataPlain[0], flags);
@@ -134,7 +133,7 @@ public class MessageDataPart_Test extends TestCase {
 		System.arraycopy(LowLevel.getBytesUnsignedInt(indexNext), 0, dataPlain, Storage.ENCRYPTED_ENTRY_SIZE - 4, 4);
 		
 		// encrypt it
-		byte[] dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(dataPlain);
+		byte[] dataEncrypted = Storage.encryptEntry(dataPlain);
 
 		// inject it into the file
 		Storage.getStorage().setEntry(index, dataEncrypted);
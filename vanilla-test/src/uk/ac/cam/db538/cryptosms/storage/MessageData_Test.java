@@ -1,6 +1,7 @@
 package uk.ac.cam.db538.cryptosms.storage;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeComparator;
@@ -280,6 +281,52 @@ public class MessageData_Test extends TestCase {
 		assertEquals(false, msg.getPartDelivered(2));
 	}
 	
+	public void testAllPartData() throws StorageFileException, IOException {
+		Conversation conv = Conversation.createConversation();
+		MessageData msg = MessageData.createMessageData(conv);
+		long index = msg.getEntryIndex();
+		
+		ArrayList<byte[]> data = new ArrayList<byte[]>();
+		for (int i = 0; i < 5; ++i)
+			data.add(Encryption.getEncryption().generateRandomData(100 + i));
+		data.add(Encryption.getEncryption().generateRandomData(280));
+		
+		msg.setPartDelivered(0, true);
+		msg.setAllPartData(data);
+		assertTrue(Common.checkStructure());
+		
+		msg = MessageData.getMessageData(index); // because checkStructure clears cache
+		assertEquals(6, msg.getNumberOfParts());
+		ArrayList<byte[]> result = msg.getAllPartData();
+		assertEquals(6, result.size());
+		for (int i = 0; i < 5; ++i) {
+			CustomAsserts.assertArrayEquals(data.get(i), result.get(i));
+			CustomAsserts.assertArrayEquals(data.get(i), msg.getPartData(i));
+		}
+		CustomAsserts.assertArrayEquals(LowLevel.cutData(data.get(5), 0, 133), result.get(5));
+		assertEquals(true, msg.getPartDelivered(0));
+		
+		// shrink, the remaining parts have to be reachable
+		data.remove(5);
+		data.remove(0);
+		msg.setAllPartData(data);
+		assertTrue(Common.checkStructure());
+		msg = MessageData.getMessageData(index);
+		assertEquals(4, msg.getNumberOfParts());
+		for (int i = 0; i < 4; ++i)
+			CustomAsserts.assertArrayEquals(data.get(i), msg.getPartData(i));
+		try {
+			msg.getPartData(4);
+			fail("Should not reach here");
+		} catch (IndexOutOfBoundsException e) {
+		}
+		
+		// deleting a part directly
+		msg.getFirstMessageDataPart().delete();
+		assertEquals(3, msg.getNumberOfParts());
+		CustomAsserts.assertArrayEquals(data.get(2), msg.getPartData(1));
+	}
+	
 	public void testCreateData() throws StorageFileException, IOException, EncryptionException {
 		// set data
 		Conversation conv = Conversation.createConversation();
@@ -303,7 +350,7 @@ public class MessageData_Test extends TestCase {
 		assertEquals(dataEncrypted.length, Storage.CHUNK_SIZE);
 		
 		// decrypt the encoded part
-		byte[] dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
+		byte[] dataPlain = Storage.decryptEntry(dataEncrypted);
 		
 		// check the data
 		assertEquals(dataPlain[0], flags);
@@ -343,7 +390,7 @@ public class MessageData_Test extends TestCase {
 		System.arraycopy(LowLevel.getBytesUnsignedInt(indexNext), 0, dataPlain, Storage.ENCRYPTED_ENTRY_SIZE - 4, 4);
 		
 		// encrypt it
-		byte[] dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(dataPlain);
+		byte[] dataEncrypted = Storage.encryptEntry(dataPlain);
 	
 		// inject it in the file
 		Storage.getStorage().setEntry(index, dataEncrypted);
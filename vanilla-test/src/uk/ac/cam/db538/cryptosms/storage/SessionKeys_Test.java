@@ -121,7 +121,7 @@ public class SessionKeys_Test extends TestCase {
 		assertEquals(dataEncrypted.length, Storage.CHUNK_SIZE);
 		
 		// decrypt the encoded part
-		byte[] dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
+		byte[] dataPlain = Storage.decryptEntry(dataEncrypted);
 		
 		// check the data
 		assertEquals(flags, dataPlain[0]);
@@ -153,7 +153,7 @@ public class SessionKeys_Test extends TestCase {
 		System.arraycopy(LowLevel.getBytesUnsignedInt(indexNext), 0, dataPlain, Storage.ENCRYPTED_ENTRY_SIZE - 4, 4);
 		
 		// encrypt it
-		byte[] dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(dataPlain);
+		byte[] dataEncrypted = Storage.encryptEntry(dataPlain);
 
 		// inject it into the file
 		Storage.getStorage().setEntry(index, dataEncrypted);
@@ -1,8 +1,13 @@
 package uk.ac.cam.db538.cryptosms.storage;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
 import junit.framework.TestCase;
+import uk.ac.cam.db538.cryptosms.CustomAsserts;
 import uk.ac.cam.db538.cryptosms.crypto.EncryptionNone;
 import uk.ac.cam.db538.cryptosms.storage.Storage;
 import uk.ac.cam.db538.cryptosms.storage.StorageFileException;
@@ -35,4 +40,387 @@ public class Storage_Test extends TestCase {
 			assertTrue(e.getMessage(), false);
 		}
 	}
+
+	public void testBackends() throws StorageFileException, IOException {
+		// write through the mapped backend, including an unaligned tail
+		Storage.setMemoryMapped(true);
+		Header.getHeader();
+		Empty.createEmpty();
+		long index = Storage.getStorage().getEntriesCount() - 1;
+		byte[] data = new byte[Storage.CHUNK_SIZE];
+		for (int i = 0; i < data.length; ++i)
+			data[i] = (byte) i;
+		Storage.getStorage().setEntry(index, data);
+		Storage.getStorage().setEntry(1L, data);
+		Storage.getStorage().closeFile();
+		assertEquals(new File(Common.TESTING_FILE).length(), Storage.ALIGN_SIZE + Storage.CHUNK_SIZE);
+		
+		// read it back through the RandomAccessFile one
+		Storage.freeSingleton();
+		Storage.setMemoryMapped(false);
+		try {
+			assertEquals(index + 1, Storage.getStorage().getEntriesCount());
+			CustomAsserts.assertArrayEquals(Storage.getStorage().getEntry(index), data);
+			CustomAsserts.assertArrayEquals(Storage.getStorage().getEntry(1L), data);
+		} finally {
+			Storage.setMemoryMapped(true);
+		}
+	}
+
+	private static byte[] readFromDisk(long index) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(Common.TESTING_FILE, "r");
+		try {
+			byte[] data = new byte[Storage.CHUNK_SIZE];
+			file.seek(index * Storage.CHUNK_SIZE);
+			file.readFully(data);
+			return data;
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void writeToDisk(long index, byte[] data) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(Common.TESTING_FILE, "rw");
+		try {
+			file.seek(index * Storage.CHUNK_SIZE);
+			file.write(data);
+		} finally {
+			file.close();
+		}
+	}
+
+	public void testWriteBack() throws StorageFileException, IOException {
+		Header.getHeader();
+		Storage storage = Storage.getStorage();
+		byte[] original = readFromDisk(1L);
+		byte[] first = new byte[Storage.CHUNK_SIZE];
+		byte[] second = new byte[Storage.CHUNK_SIZE];
+		for (int i = 0; i < Storage.CHUNK_SIZE; ++i) {
+			first[i] = (byte) i;
+			second[i] = (byte) (i + 1);
+		}
+		
+		storage.beginTransaction();
+		storage.beginTransaction();
+		storage.setEntry(1L, first);
+		storage.setEntry(1L, second);
+		// reads see the latest write, the file doesn't
+		CustomAsserts.assertArrayEquals(storage.getEntry(1L), second);
+		CustomAsserts.assertArrayEquals(readFromDisk(1L), original);
+		storage.commit();
+		CustomAsserts.assertArrayEquals(readFromDisk(1L), original);
+		storage.commit();
+		// outermost transaction committed => written
+		CustomAsserts.assertArrayEquals(readFromDisk(1L), second);
+	}
+	
+	public void testRollback() throws StorageFileException, IOException {
+		Header.getHeader();
+		Storage storage = Storage.getStorage();
+		byte[] original = readFromDisk(1L);
+		byte[] data = new byte[Storage.CHUNK_SIZE];
+		
+		storage.beginTransaction();
+		storage.beginTransaction();
+		storage.setEntry(1L, data);
+		storage.rollback();
+		try {
+			storage.commit();
+			assertTrue(false);
+		} catch (StorageFileException ex) {
+		}
+		CustomAsserts.assertArrayEquals(storage.getEntry(1L), original);
+		CustomAsserts.assertArrayEquals(readFromDisk(1L), original);
+		
+		// structure stays consistent when an operation fails halfway
+		Conversation conv = Conversation.createConversation();
+		storage.beginTransaction();
+		MessageData.createMessageData(conv);
+		storage.rollback();
+		assertTrue(Common.checkStructure());
+		assertFalse(Header.getHeader().getFirstConversation().hasMessageData());
+	}
+	
+	public void testRollbackPrefetched() throws StorageFileException, IOException {
+		Storage storage = Storage.getStorage();
+		Conversation conv = Conversation.createConversation();
+		conv.setPhoneNumber("+441111111111");
+		conv.saveToFile();
+		long index = conv.getEntryIndex();
+		
+		// decrypted ahead inside the transaction
+		storage.beginTransaction();
+		conv.setPhoneNumber("+442222222222");
+		conv.saveToFile();
+		EntryPrefetcher.prefetch(new long[] { index });
+		storage.rollback();
+		
+		CustomAsserts.assertArrayEquals(EntryPrefetcher.getDecryptedEntries(new long[] { index })[0], Storage.decryptEntry(readFromDisk(index)));
+		assertEquals("+441111111111", Conversation.getConversation(index).getPhoneNumber());
+	}
+	
+	public void testTransactionOwner() throws Exception {
+		Header.getHeader();
+		final Storage storage = Storage.getStorage();
+		byte[] original = readFromDisk(1L);
+		final byte[] other = new byte[Storage.CHUNK_SIZE];
+		for (int i = 0; i < Storage.CHUNK_SIZE; ++i)
+			other[i] = (byte) i;
+		
+		storage.beginTransaction();
+		storage.setEntry(1L, new byte[Storage.CHUNK_SIZE]);
+		
+		// write of another thread waits for the transaction
+		final StorageFileException[] error = new StorageFileException[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					storage.setEntry(1L, other);
+				} catch (StorageFileException e) {
+					error[0] = e;
+				}
+			}
+		};
+		thread.start();
+		for (int i = 0; i < 500 && thread.getState() != Thread.State.WAITING; ++i)
+			Thread.sleep(10);
+		assertEquals(Thread.State.WAITING, thread.getState());
+		CustomAsserts.assertArrayEquals(readFromDisk(1L), original);
+		
+		// and doesn't get rolled back with it
+		storage.rollback();
+		thread.join();
+		assertNull(error[0]);
+		CustomAsserts.assertArrayEquals(readFromDisk(1L), other);
+	}
+	
+	public void testModifiedEntries() throws StorageFileException, IOException {
+		Header.getHeader();
+		Storage storage = Storage.getStorage();
+		long modificationCount = storage.getModificationCount();
+		byte[] data = new byte[Storage.CHUNK_SIZE];
+		
+		storage.setEntry(3L, data);
+		storage.setEntry(1L, data);
+		long[] modified = storage.getModifiedEntries(modificationCount);
+		assertEquals(2, modified.length);
+		assertEquals(3L, modified[0]);
+		assertEquals(1L, modified[1]);
+		assertEquals(0, storage.getModifiedEntries(storage.getModificationCount()).length);
+		
+		// too long ago
+		for (int i = 0; i < Storage.MODIFICATION_LOG_SIZE; ++i)
+			storage.setEntry(2L, data);
+		assertNull(storage.getModifiedEntries(modificationCount));
+		
+		// or truncated
+		modificationCount = storage.getModificationCount();
+		storage.truncateEntries(storage.getEntriesCount() - 1);
+		assertNull(storage.getModifiedEntries(modificationCount));
+	}
+	
+	public void testJournalReplay() throws StorageFileException, IOException {
+		Header.getHeader();
+		long countEntries = Storage.getStorage().getEntriesCount();
+		Storage.getStorage().closeFile();
+		Storage.freeSingleton();
+		
+		// journal of a commit interrupted after syncing the journal,
+		// which also appends a new entry
+		byte[] first = new byte[Storage.CHUNK_SIZE];
+		byte[] second = new byte[Storage.CHUNK_SIZE];
+		for (int i = 0; i < Storage.CHUNK_SIZE; ++i) {
+			first[i] = (byte) i;
+			second[i] = (byte) (i + 1);
+		}
+		ByteBuffer journal = ByteBuffer.allocate(Storage.JOURNAL_HEADER_SIZE + 2 * Storage.JOURNAL_RECORD_SIZE + Storage.JOURNAL_CHECKSUM_SIZE);
+		journal.putInt(Storage.JOURNAL_MAGIC);
+		journal.putInt(2);
+		journal.putInt(1);
+		journal.put(first);
+		journal.putInt((int) countEntries);
+		journal.put(second);
+		CRC32 crc = new CRC32();
+		crc.update(journal.array(), 0, journal.position());
+		journal.putLong(crc.getValue());
+		
+		File journalFile = new File(Common.TESTING_FILE + Storage.JOURNAL_SUFFIX);
+		FileOutputStream out = new FileOutputStream(journalFile);
+		out.write(journal.array());
+		out.close();
+		
+		// gets replayed on open
+		Storage storage = Storage.getStorage();
+		assertEquals(countEntries + 1, storage.getEntriesCount());
+		CustomAsserts.assertArrayEquals(storage.getEntry(1L), first);
+		CustomAsserts.assertArrayEquals(storage.getEntry(countEntries), second);
+		assertEquals(0L, journalFile.length());
+		storage.closeFile();
+		Storage.freeSingleton();
+		
+		// torn journal gets thrown away
+		out = new FileOutputStream(journalFile);
+		out.write(journal.array(), 0, journal.capacity() - 1);
+		out.close();
+		storage = Storage.getStorage();
+		assertEquals(countEntries + 1, storage.getEntriesCount());
+		assertEquals(0L, journalFile.length());
+	}
+	/**
+	 * Re-encrypts the entries from given index on in the format of given version.
+	 * Free entries of the free space map only hold random data, so they are left alone.
+	 */
+	private static void encryptEntries(long from, int version) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+		for (long index = from; index < storage.getEntriesCount(); ++index)
+			if (map == null || !map.isFree(index))
+				storage.setEntry(index, Storage.encryptEntry(Storage.decryptEntry(storage.getEntry(index)), version));
+	}
+	
+	public void testUpdateFormat() throws StorageFileException, IOException {
+		// write a file in the format of the previous version
+		Conversation conv = Conversation.createConversation();
+		conv.setPhoneNumber("+441234567890");
+		conv.saveToFile();
+		long index = conv.getEntryIndex();
+		encryptEntries(1L, Header.VERSION_FREE_SPACE_MAP);
+		Header header = Header.getHeader();
+		header.setVersion(Header.VERSION_FREE_SPACE_MAP);
+		header.saveToFile();
+		byte[] dataOld = Storage.getStorage().getEntry(index);
+		Storage.decryptEntry(dataOld, Header.VERSION_FREE_SPACE_MAP);
+		try {
+			Storage.decryptEntry(dataOld, Storage.getFormatVersion());
+			fail();
+		} catch (StorageFileException e) {
+		}
+		
+		// reopen it
+		Storage.freeSingleton();
+		Header.forceClearCache();
+		Conversation.forceClearCache();
+		EntryPrefetcher.forceClearCache();
+		assertEquals(Storage.getFormatVersion(), Header.getHeader().getVersion());
+		
+		// entries were re-encrypted
+		Storage.decryptEntry(Storage.getStorage().getEntry(index), Storage.getFormatVersion());
+		assertEquals("+441234567890", Conversation.getConversation("+441234567890").getPhoneNumber());
+		assertTrue(Common.checkStructure());
+		
+		// and it stays in the new format when reopened again
+		Storage.freeSingleton();
+		Header.forceClearCache();
+		assertEquals(Storage.getFormatVersion(), Header.getHeader().getVersion());
+		assertEquals(0L, Header.getHeader().getIndexConversion());
+		assertTrue(Common.checkStructure());
+	}
+
+	public void testUpdateFormatResumed() throws StorageFileException, IOException {
+		for (int i = 0; i < 3 * Storage.CONVERSION_BATCH; ++i)
+			Conversation.createConversation().saveToFile();
+		Conversation conv = Conversation.createConversation();
+		conv.setPhoneNumber("+441234567890");
+		conv.saveToFile();
+		
+		// conversion interrupted halfway through the file
+		long half = Storage.getStorage().getEntriesCount() / 2;
+		encryptEntries(half, Header.VERSION_FREE_SPACE_MAP);
+		Header header = Header.getHeader();
+		header.setConversion(Header.VERSION_FREE_SPACE_MAP, half);
+		header.saveToFile();
+		
+		// continues when reopened
+		reopen();
+		assertEquals(Storage.getFormatVersion(), Header.getHeader().getVersion());
+		assertEquals(0L, Header.getHeader().getIndexConversion());
+		Storage.decryptEntry(Storage.getStorage().getEntry(conv.getEntryIndex()), Storage.getFormatVersion());
+		assertEquals("+441234567890", Conversation.getConversation("+441234567890").getPhoneNumber());
+		assertTrue(Common.checkStructure());
+	}
+
+	public void testUpdateFormatCorrupted() throws StorageFileException, IOException {
+		Conversation conv = Conversation.createConversation();
+		conv.saveToFile();
+		encryptEntries(1L, Header.VERSION_FREE_SPACE_MAP);
+		Header header = Header.getHeader();
+		header.setVersion(Header.VERSION_FREE_SPACE_MAP);
+		header.saveToFile();
+		
+		// an entry in use that doesn't decrypt isn't skipped
+		byte[] data = Storage.getStorage().getEntry(conv.getEntryIndex());
+		data[data.length - 1] ^= 0x01;
+		Storage.getStorage().setEntry(conv.getEntryIndex(), data);
+		reopen();
+		try {
+			Storage.getStorage();
+			fail();
+		} catch (StorageFileException e) {
+		}
+		
+		// the half-converted file isn't used, it's tried again
+		try {
+			Header.getHeader();
+			fail();
+		} catch (StorageFileException e) {
+		}
+		
+		// and the conversion stops before it, so it resumes once the entry is repaired
+		data[data.length - 1] ^= 0x01;
+		writeToDisk(conv.getEntryIndex(), data);
+		reopen();
+		assertEquals(Storage.getFormatVersion(), Header.getHeader().getVersion());
+		assertEquals(0L, Header.getHeader().getIndexConversion());
+		Storage.decryptEntry(Storage.getStorage().getEntry(conv.getEntryIndex()), Storage.getFormatVersion());
+		assertTrue(Common.checkStructure());
+	}
+
+	public void testCounterMode() throws StorageFileException, IOException {
+		Conversation conv = Conversation.createConversation();
+		conv.setPhoneNumber("+441234567890");
+		conv.saveToFile();
+		long countEmpty = Empty.getEmptyEntriesCount();
+		int versionOld = Header.getHeader().getVersion();
+		
+		try {
+			// convert to the counter mode
+			Storage.setCounterMode(true);
+			reopen();
+			assertEquals(Header.VERSION_COUNTER_MODE, Header.getHeader().getVersion());
+			Storage.decryptEntry(Storage.getStorage().getEntry(conv.getEntryIndex()), Header.VERSION_COUNTER_MODE);
+			assertEquals("+441234567890", Conversation.getConversation("+441234567890").getPhoneNumber());
+			assertEquals(countEmpty, Empty.getEmptyEntriesCount());
+			assertTrue(Common.checkStructure());
+			
+			// parts of entries can be decrypted
+			byte[] dataEncrypted = Storage.getStorage().getEntry(conv.getEntryIndex());
+			byte[] dataPlain = Storage.decryptEntry(dataEncrypted);
+			byte[] dataPart = Storage.decryptEntryPart(dataEncrypted, 100, 8);
+			CustomAsserts.assertArrayEquals(dataPart, 0, dataPlain, 100, 8);
+			dataEncrypted[dataEncrypted.length - 1] ^= 0x01;
+			try {
+				Storage.decryptEntryPart(dataEncrypted, 100, 8);
+				fail();
+			} catch (StorageFileException e) {
+			}
+		} finally {
+			Storage.setCounterMode(false);
+		}
+		
+		// and back
+		reopen();
+		assertEquals(versionOld, Header.getHeader().getVersion());
+		assertEquals("+441234567890", Conversation.getConversation("+441234567890").getPhoneNumber());
+		assertEquals(countEmpty, Empty.getEmptyEntriesCount());
+		assertTrue(Common.checkStructure());
+	}
+	
+	private void reopen() {
+		Storage.freeSingleton();
+		Header.forceClearCache();
+		Conversation.forceClearCache();
+		Empty.forceClearCache();
+		EntryPrefetcher.forceClearCache();
+	}
 }
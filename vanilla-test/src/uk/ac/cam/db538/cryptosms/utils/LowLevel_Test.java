@@ -73,5 +73,17 @@ public class LowLevel_Test extends TestCase {
 		assertEquals((byte)0x91, LowLevel.getBytesUnsignedByte(145));
 		assertEquals((byte)0x15, LowLevel.getBytesUnsignedByte(21));
 	}
+	
+	public void testEqualsConstantTime() {
+		byte[] a = new byte[] { 0x00, 0x01, 0x02, 0x03, 0x04, 0x05 };
+		byte[] b = new byte[] { 0x7F, 0x02, 0x03, 0x04 };
+		
+		assertTrue(LowLevel.equalsConstantTime(a, 2, b, 1, 3));
+		assertTrue(LowLevel.equalsConstantTime(a, 0, b, 0, 0));
+		assertFalse(LowLevel.equalsConstantTime(a, 1, b, 1, 3));
+		// the difference in the last byte
+		b[3] = 0x05;
+		assertFalse(LowLevel.equalsConstantTime(a, 2, b, 1, 3));
+	}
 
 }
@@ -30,6 +30,28 @@ public abstract class ECCurve
         return b;
     }
 
+    /**
+     * Returns the multiplier for points of this curve, or null for the
+     * default one of the point type.
+     */
+    ECMultiplier getMultiplier()
+    {
+        return null;
+    }
+
+    /**
+     * Adds up the given points.
+     */
+    ECPoint sum(ECPoint[] points, int count)
+    {
+        ECPoint q = getInfinity();
+        for (int i = 0; i < count; i++)
+        {
+            q = q.add(points[i]);
+        }
+        return q;
+    }
+
     /**
      * Elliptic curve over Fp
      */
@@ -322,7 +322,8 @@ public abstract class ECPoint
         {
             if (this.multiplier == null)
             {
-                this.multiplier = new WNafMultiplier();
+                ECMultiplier curveMultiplier = curve.getMultiplier();
+                this.multiplier = (curveMultiplier != null) ? curveMultiplier : new WNafMultiplier();
             }
         }
 
@@ -0,0 +1,98 @@
+package org.spongycastle.math.ec;
+
+import java.math.BigInteger;
+
+/**
+ * Class implementing the fixed-base window multiplication. Meant for points
+ * that are multiplied over and over again, such as the generator of a curve.
+ * <p>
+ * The multiples <code>j * 2<sup>w * i</sup> * P</code> are computed once
+ * for every window <code>i</code> of the multiplicator and every digit
+ * <code>j</code>. A multiplication then takes one addition per non-zero
+ * digit and no doublings, e.g. at most 64 additions for 256-bit numbers
+ * and <code>w = 4</code>, instead of about 256 doublings and 50 additions
+ * of the WNAF multiplication.
+ */
+public class FixedPointMultiplier implements ECMultiplier
+{
+    /**
+     * Precomputes the multiples of a point for multiplicators as long as
+     * the field size of its curve, and makes it use them in all the
+     * following calls to <code>multiply()</code>. Has to be called before
+     * the point is shared with other threads.
+     * @param p The point.
+     * @param width The window width in bits, the table holds
+     * <code>(2<sup>width</sup> - 1) * ceil(fieldSize / width)</code> points.
+     */
+    public static void precompute(ECPoint p, int width)
+    {
+        if (width < 1 || width > 8)
+        {
+            throw new IllegalArgumentException("Window width must be between 1 and 8");
+        }
+        if (p.isInfinity())
+        {
+            return;
+        }
+
+        int windows = (p.getCurve().getFieldSize() + width - 1) / width;
+        int digits = (1 << width) - 1;
+        ECPoint[][] table = new ECPoint[windows][digits];
+        ECPoint base = p;
+        for (int i = 0; i < windows; i++)
+        {
+            table[i][0] = base;
+            for (int j = 1; j < digits; j++)
+            {
+                table[i][j] = table[i][j - 1].add(base);
+            }
+            // 2^width * base
+            base = table[i][digits - 1].add(base);
+        }
+
+        p.setPreCompInfo(new FixedPointPreCompInfo(width, table));
+        synchronized (p)
+        {
+            p.multiplier = new FixedPointMultiplier();
+        }
+    }
+
+    public ECPoint multiply(ECPoint p, BigInteger k, PreCompInfo preCompInfo)
+    {
+        if (!(preCompInfo instanceof FixedPointPreCompInfo))
+        {
+            throw new IllegalArgumentException("Point wasn't precomputed");
+        }
+
+        FixedPointPreCompInfo info = (FixedPointPreCompInfo)preCompInfo;
+        int width = info.getWidth();
+        ECPoint[][] table = info.getTable();
+        if (k.bitLength() > table.length * width)
+        {
+            // too long for the table, multiply a copy the usual way
+            ECPoint copy = p.getCurve().createPoint(p.getX().toBigInteger(), p.getY().toBigInteger(), false);
+            return copy.multiply(k);
+        }
+
+        int windows = (k.bitLength() + width - 1) / width;
+        ECPoint[] terms = new ECPoint[windows];
+        int count = 0;
+        for (int i = 0; i < windows; i++)
+        {
+            int digit = 0;
+            for (int j = width - 1; j >= 0; j--)
+            {
+                digit <<= 1;
+                if (k.testBit(i * width + j))
+                {
+                    digit |= 1;
+                }
+            }
+            if (digit != 0)
+            {
+                terms[count++] = table[i][digit - 1];
+            }
+        }
+        return p.getCurve().sum(terms, count);
+    }
+}
@@ -0,0 +1,35 @@
+package org.spongycastle.math.ec;
+
+/**
+ * Class holding precomputation data for the fixed-base window
+ * multiplication of a point that doesn't change, such as the generator.
+ */
+class FixedPointPreCompInfo implements PreCompInfo
+{
+    /**
+     * Window width in bits.
+     */
+    private final int width;
+
+    /**
+     * <code>table[i][j - 1] = j * 2<sup>width * i</sup> * P</code>
+     * for every window <code>i</code> and every non-zero digit <code>j</code>.
+     */
+    private final ECPoint[][] table;
+
+    FixedPointPreCompInfo(int width, ECPoint[][] table)
+    {
+        this.width = width;
+        this.table = table;
+    }
+
+    int getWidth()
+    {
+        return width;
+    }
+
+    ECPoint[][] getTable()
+    {
+        return table;
+    }
+}
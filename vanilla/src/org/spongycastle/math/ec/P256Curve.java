@@ -0,0 +1,34 @@
+package org.spongycastle.math.ec;
+
+import java.math.BigInteger;
+
+/**
+ * The NIST P-256 curve (also secp256r1), with point multiplication done by
+ * dedicated field arithmetic in Jacobian coordinates instead of
+ * <code>BigInteger</code>s in affine coordinates.
+ * Otherwise the same as the generic <code>ECCurve.Fp</code>.
+ */
+public class P256Curve extends ECCurve.Fp
+{
+    private static final BigInteger A = new BigInteger(
+        "FFFFFFFF00000001000000000000000000000000FFFFFFFFFFFFFFFFFFFFFFFC", 16);
+    private static final BigInteger B = new BigInteger(
+        "5AC635D8AA3A93E7B3EBBD55769886BC651D06B0CC53B0F63BCE3C3E27D2604B", 16);
+
+    private final ECMultiplier multiplier = new P256Multiplier();
+
+    public P256Curve()
+    {
+        super(P256Field.P_BIG, A, B);
+    }
+
+    ECMultiplier getMultiplier()
+    {
+        return multiplier;
+    }
+
+    ECPoint sum(ECPoint[] points, int count)
+    {
+        return P256Multiplier.sum(this, points, count);
+    }
+}
@@ -0,0 +1,282 @@
+package org.spongycastle.math.ec;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic modulo the NIST P-256 prime
+ * <code>p = 2<sup>256</sup> - 2<sup>224</sup> + 2<sup>192</sup> + 2<sup>96</sup> - 1</code>
+ * on eight 32-bit limbs, least significant first. Products are reduced with
+ * the fast reduction of FIPS 186-3, D.2.3, so no division is needed.
+ * Products take a scratch array of <code>2 * SIZE</code> longs, so that
+ * loops over them don't allocate anything. All the results are fully
+ * reduced. The result may be one of the operands.
+ */
+final class P256Field
+{
+    static final int SIZE = 8;
+
+    private static final long M = 0xFFFFFFFFL;
+
+    static final int[] P = new int[]{ 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0x00000000,
+        0x00000000, 0x00000000, 0x00000001, 0xFFFFFFFF };
+
+    static final BigInteger P_BIG = new BigInteger(
+        "FFFFFFFF00000001000000000000000000000000FFFFFFFFFFFFFFFFFFFFFFFF", 16);
+
+    private P256Field()
+    {
+    }
+
+    static int[] create()
+    {
+        return new int[SIZE];
+    }
+
+    static int[] fromBigInteger(BigInteger x)
+    {
+        if (x.signum() < 0 || x.compareTo(P_BIG) >= 0)
+        {
+            x = x.mod(P_BIG);
+        }
+        int[] z = new int[SIZE];
+        byte[] bytes = x.toByteArray();
+        for (int i = 0; i < bytes.length && i < 4 * SIZE; i++)
+        {
+            int b = bytes[bytes.length - 1 - i] & 0xFF;
+            z[i >>> 2] |= b << ((i & 3) << 3);
+        }
+        return z;
+    }
+
+    static BigInteger toBigInteger(int[] x)
+    {
+        byte[] bytes = new byte[4 * SIZE];
+        for (int i = 0; i < SIZE; i++)
+        {
+            int w = x[i];
+            int off = 4 * (SIZE - 1 - i);
+            bytes[off] = (byte)(w >>> 24);
+            bytes[off + 1] = (byte)(w >>> 16);
+            bytes[off + 2] = (byte)(w >>> 8);
+            bytes[off + 3] = (byte)w;
+        }
+        return new BigInteger(1, bytes);
+    }
+
+    static void copy(int[] x, int[] z)
+    {
+        System.arraycopy(x, 0, z, 0, SIZE);
+    }
+
+    static void setOne(int[] z)
+    {
+        z[0] = 1;
+        for (int i = 1; i < SIZE; i++)
+        {
+            z[i] = 0;
+        }
+    }
+
+    static boolean isZero(int[] x)
+    {
+        int bits = 0;
+        for (int i = 0; i < SIZE; i++)
+        {
+            bits |= x[i];
+        }
+        return bits == 0;
+    }
+
+    static boolean equal(int[] x, int[] y)
+    {
+        int diff = 0;
+        for (int i = 0; i < SIZE; i++)
+        {
+            diff |= x[i] ^ y[i];
+        }
+        return diff == 0;
+    }
+
+    /**
+     * Subtracts p if <code>carry * 2<sup>256</sup> + z &gt;= p</code>.
+     */
+    private static void reduceOnce(int carry, int[] z)
+    {
+        // compare from the top
+        boolean geq = carry != 0;
+        if (!geq)
+        {
+            geq = true;
+            for (int i = SIZE - 1; i >= 0; i--)
+            {
+                long zi = z[i] & M, pi = P[i] & M;
+                if (zi != pi)
+                {
+                    geq = zi > pi;
+                    break;
+                }
+            }
+        }
+        if (geq)
+        {
+            long c = 0;
+            for (int i = 0; i < SIZE; i++)
+            {
+                c += (z[i] & M) - (P[i] & M);
+                z[i] = (int)c;
+                c >>= 32;
+            }
+        }
+    }
+
+    static void add(int[] x, int[] y, int[] z)
+    {
+        long c = 0;
+        for (int i = 0; i < SIZE; i++)
+        {
+            c += (x[i] & M) + (y[i] & M);
+            z[i] = (int)c;
+            c >>>= 32;
+        }
+        reduceOnce((int)c, z);
+    }
+
+    static void subtract(int[] x, int[] y, int[] z)
+    {
+        long c = 0;
+        for (int i = 0; i < SIZE; i++)
+        {
+            c += (x[i] & M) - (y[i] & M);
+            z[i] = (int)c;
+            c >>= 32;
+        }
+        if (c != 0)
+        {
+            // went below zero, add p back
+            c = 0;
+            for (int i = 0; i < SIZE; i++)
+            {
+                c += (z[i] & M) + (P[i] & M);
+                z[i] = (int)c;
+                c >>>= 32;
+            }
+        }
+    }
+
+    static void twice(int[] x, int[] z)
+    {
+        add(x, x, z);
+    }
+
+    static long[] createScratch()
+    {
+        return new long[2 * SIZE];
+    }
+
+    static void multiply(int[] x, int[] y, int[] z, long[] t)
+    {
+        long x0 = x[0] & M, x1 = x[1] & M, x2 = x[2] & M, x3 = x[3] & M;
+        long x4 = x[4] & M, x5 = x[5] & M, x6 = x[6] & M, x7 = x[7] & M;
+        for (int i = 0; i < 2 * SIZE; i++)
+        {
+            t[i] = 0;
+        }
+        for (int j = 0; j < SIZE; j++)
+        {
+            long yj = y[j] & M;
+            long c;
+            c = t[j] + x0 * yj;                          t[j] = c & M;     c >>>= 32;
+            c += t[j + 1] + x1 * yj;                     t[j + 1] = c & M; c >>>= 32;
+            c += t[j + 2] + x2 * yj;                     t[j + 2] = c & M; c >>>= 32;
+            c += t[j + 3] + x3 * yj;                     t[j + 3] = c & M; c >>>= 32;
+            c += t[j + 4] + x4 * yj;                     t[j + 4] = c & M; c >>>= 32;
+            c += t[j + 5] + x5 * yj;                     t[j + 5] = c & M; c >>>= 32;
+            c += t[j + 6] + x6 * yj;                     t[j + 6] = c & M; c >>>= 32;
+            c += t[j + 7] + x7 * yj;                     t[j + 7] = c & M; c >>>= 32;
+            t[j + 8] = c;
+        }
+        reduce(t, z);
+    }
+
+    static void square(int[] x, int[] z, long[] t)
+    {
+        multiply(x, x, z, t);
+    }
+
+    /**
+     * Reduces a 512-bit product given as sixteen 32-bit words.
+     */
+    private static void reduce(long[] c, int[] z)
+    {
+        long c0 = c[0], c1 = c[1], c2 = c[2], c3 = c[3], c4 = c[4], c5 = c[5], c6 = c[6], c7 = c[7];
+        long c8 = c[8], c9 = c[9], c10 = c[10], c11 = c[11], c12 = c[12], c13 = c[13], c14 = c[14], c15 = c[15];
+
+        // s1 + 2 s2 + 2 s3 + s4 + s5 - d1 - d2 - d3 - d4, word by word
+        long acc;
+        acc = c0 + c8 + c9 - c11 - c12 - c13 - c14;
+        z[0] = (int)acc; acc >>= 32;
+        acc += c1 + c9 + c10 - c12 - c13 - c14 - c15;
+        z[1] = (int)acc; acc >>= 32;
+        acc += c2 + c10 + c11 - c13 - c14 - c15;
+        z[2] = (int)acc; acc >>= 32;
+        acc += c3 + 2 * (c11 + c12) + c13 - c15 - c8 - c9;
+        z[3] = (int)acc; acc >>= 32;
+        acc += c4 + 2 * (c12 + c13) + c14 - c9 - c10;
+        z[4] = (int)acc; acc >>= 32;
+        acc += c5 + 2 * (c13 + c14) + c15 - c10 - c11;
+        z[5] = (int)acc; acc >>= 32;
+        acc += c6 + 3 * c14 + 2 * c15 + c13 - c8 - c9;
+        z[6] = (int)acc; acc >>= 32;
+        acc += c7 + 3 * c15 + c8 - c10 - c11 - c12 - c13;
+        z[7] = (int)acc; acc >>= 32;
+
+        // fold the overflow back in, 2^256 = 2^224 - 2^192 - 2^96 + 1 (mod p)
+        while (acc != 0)
+        {
+            long carry = acc;
+            acc = (z[0] & M) + carry;
+            z[0] = (int)acc; acc >>= 32;
+            acc += z[1] & M;
+            z[1] = (int)acc; acc >>= 32;
+            acc += z[2] & M;
+            z[2] = (int)acc; acc >>= 32;
+            acc += (z[3] & M) - carry;
+            z[3] = (int)acc; acc >>= 32;
+            acc += z[4] & M;
+            z[4] = (int)acc; acc >>= 32;
+            acc += z[5] & M;
+            z[5] = (int)acc; acc >>= 32;
+            acc += (z[6] & M) - carry;
+            z[6] = (int)acc; acc >>= 32;
+            acc += (z[7] & M) + carry;
+            z[7] = (int)acc; acc >>= 32;
+        }
+        reduceOnce(0, z);
+    }
+
+    /**
+     * Computes the inverse as <code>x<sup>p - 2</sup></code>. Zero stays zero.
+     */
+    static void invert(int[] x, int[] z)
+    {
+        int[] r = create();
+        setOne(r);
+        int[] b = create();
+        copy(x, b);
+        long[] t = createScratch();
+        // the bits of p - 2, from the lowest
+        for (int i = 0; i < SIZE; i++)
+        {
+            int w = (i == 0) ? P[0] - 2 : P[i];
+            for (int j = 0; j < 32; j++)
+            {
+                if (((w >>> j) & 1) != 0)
+                {
+                    multiply(r, b, r, t);
+                }
+                square(b, b, t);
+            }
+        }
+        copy(r, z);
+    }
+}
@@ -0,0 +1,198 @@
+package org.spongycastle.math.ec;
+
+import java.math.BigInteger;
+
+/**
+ * Point arithmetic on P-256 in Jacobian coordinates, where
+ * <code>(X, Y, Z)</code> stands for the affine point
+ * <code>(X / Z<sup>2</sup>, Y / Z<sup>3</sup>)</code> and <code>Z = 0</code>
+ * for the point at infinity. Additions and doublings need no inversion,
+ * only the final conversion back to affine coordinates does.
+ * <p>
+ * Points are arrays of three field elements. An instance holds the scratch
+ * space of one computation and must not be shared between threads.
+ */
+final class P256Jacobian
+{
+    private static final int[] ZERO = P256Field.create();
+
+    private final int[] t1 = P256Field.create();
+    private final int[] t2 = P256Field.create();
+    private final int[] t3 = P256Field.create();
+    private final int[] t4 = P256Field.create();
+    private final int[] t5 = P256Field.create();
+    private final int[] t6 = P256Field.create();
+    private final int[] t7 = P256Field.create();
+    private final long[] tt = P256Field.createScratch();
+
+    static int[][] createPoint()
+    {
+        return new int[][]{ P256Field.create(), P256Field.create(), P256Field.create() };
+    }
+
+    static boolean isInfinity(int[][] p)
+    {
+        return P256Field.isZero(p[2]);
+    }
+
+    static void setInfinity(int[][] p)
+    {
+        P256Field.setOne(p[0]);
+        P256Field.setOne(p[1]);
+        for (int i = 0; i < P256Field.SIZE; i++)
+        {
+            p[2][i] = 0;
+        }
+    }
+
+    static void copy(int[][] p, int[][] r)
+    {
+        P256Field.copy(p[0], r[0]);
+        P256Field.copy(p[1], r[1]);
+        P256Field.copy(p[2], r[2]);
+    }
+
+    /**
+     * <code>r = -p</code>. The result may be the operand.
+     */
+    static void negate(int[][] p, int[][] r)
+    {
+        P256Field.copy(p[0], r[0]);
+        P256Field.subtract(ZERO, p[1], r[1]);
+        P256Field.copy(p[2], r[2]);
+    }
+
+    /**
+     * Converts an affine point, with <code>Z = 1</code>.
+     */
+    static int[][] fromAffine(ECPoint p)
+    {
+        int[][] r = createPoint();
+        if (p.isInfinity())
+        {
+            setInfinity(r);
+        }
+        else
+        {
+            r[0] = P256Field.fromBigInteger(p.getX().toBigInteger());
+            r[1] = P256Field.fromBigInteger(p.getY().toBigInteger());
+            P256Field.setOne(r[2]);
+        }
+        return r;
+    }
+
+    /**
+     * Converts back to an affine point, with a single inversion.
+     */
+    ECPoint toAffine(ECCurve curve, int[][] p, boolean withCompression)
+    {
+        if (isInfinity(p))
+        {
+            return curve.getInfinity();
+        }
+        P256Field.invert(p[2], t1);
+        P256Field.square(t1, t2, tt);
+        P256Field.multiply(p[0], t2, t3, tt);
+        P256Field.multiply(t2, t1, t2, tt);
+        P256Field.multiply(p[1], t2, t4, tt);
+        BigInteger x = P256Field.toBigInteger(t3);
+        BigInteger y = P256Field.toBigInteger(t4);
+        return curve.createPoint(x, y, withCompression);
+    }
+
+    /**
+     * <code>r = 2 * p</code>, for curves with <code>a = -3</code>.
+     */
+    void twice(int[][] p, int[][] r)
+    {
+        int[] x = p[0], y = p[1], z = p[2];
+
+        P256Field.square(z, t1, tt);           // delta = Z^2
+        P256Field.square(y, t2, tt);           // gamma = Y^2
+        P256Field.multiply(x, t2, t3, tt);     // beta = X * gamma
+        P256Field.subtract(x, t1, t4);
+        P256Field.add(x, t1, t5);
+        P256Field.multiply(t4, t5, t4, tt);
+        P256Field.twice(t4, t5);
+        P256Field.add(t4, t5, t4);             // alpha = 3 * (X - delta) * (X + delta)
+
+        P256Field.add(y, z, t5);
+        P256Field.square(t5, t5, tt);
+        P256Field.subtract(t5, t2, t5);
+        P256Field.subtract(t5, t1, r[2]);      // Z3 = (Y + Z)^2 - gamma - delta
+
+        P256Field.twice(t3, t3);
+        P256Field.twice(t3, t3);               // 4 * beta
+        P256Field.square(t4, t6, tt);
+        P256Field.twice(t3, t7);
+        P256Field.subtract(t6, t7, r[0]);      // X3 = alpha^2 - 8 * beta
+
+        P256Field.subtract(t3, r[0], t3);
+        P256Field.multiply(t4, t3, t3, tt);
+        P256Field.square(t2, t2, tt);
+        P256Field.twice(t2, t2);
+        P256Field.twice(t2, t2);
+        P256Field.twice(t2, t2);
+        P256Field.subtract(t3, t2, r[1]);      // Y3 = alpha * (4 * beta - X3) - 8 * gamma^2
+    }
+
+    /**
+     * <code>r = a + b</code>. The result may be one of the operands.
+     */
+    void add(int[][] a, int[][] b, int[][] r)
+    {
+        if (isInfinity(a))
+        {
+            copy(b, r);
+            return;
+        }
+        if (isInfinity(b))
+        {
+            copy(a, r);
+            return;
+        }
+
+        P256Field.square(a[2], t1, tt);        // Z1Z1
+        P256Field.square(b[2], t2, tt);        // Z2Z2
+        P256Field.multiply(a[0], t2, t3, tt);  // U1 = X1 * Z2Z2
+        P256Field.multiply(b[0], t1, t4, tt);  // U2 = X2 * Z1Z1
+        P256Field.multiply(b[2], t2, t2, tt);
+        P256Field.multiply(a[1], t2, t2, tt);  // S1 = Y1 * Z2 * Z2Z2
+        P256Field.multiply(a[2], t1, t1, tt);
+        P256Field.multiply(b[1], t1, t1, tt);  // S2 = Y2 * Z1 * Z1Z1
+
+        P256Field.subtract(t4, t3, t4);        // H = U2 - U1
+        P256Field.subtract(t1, t2, t1);        // R = S2 - S1
+        if (P256Field.isZero(t4))
+        {
+            if (P256Field.isZero(t1))
+            {
+                twice(a, r);
+            }
+            else
+            {
+                setInfinity(r);
+            }
+            return;
+        }
+
+        P256Field.multiply(a[2], b[2], t5, tt);
+        P256Field.multiply(t5, t4, t5, tt);    // Z3 = Z1 * Z2 * H
+
+        P256Field.square(t4, t6, tt);          // HH
+        P256Field.multiply(t4, t6, t7, tt);    // HHH = H * HH
+        P256Field.multiply(t3, t6, t6, tt);    // V = U1 * HH
+
+        P256Field.square(t1, t3, tt);
+        P256Field.subtract(t3, t7, t3);
+        P256Field.subtract(t3, t6, t3);
+        P256Field.subtract(t3, t6, t3);        // X3 = R^2 - HHH - 2 * V
+
+        P256Field.subtract(t6, t3, t6);
+        P256Field.multiply(t1, t6, t6, tt);
+        P256Field.multiply(t2, t7, t7, tt);
+        P256Field.subtract(t6, t7, r[1]);      // Y3 = R * (V - X3) - S1 * HHH
+        P256Field.copy(t3, r[0]);
+        P256Field.copy(t5, r[2]);
+    }
+}
@@ -0,0 +1,99 @@
+package org.spongycastle.math.ec;
+
+import java.math.BigInteger;
+
+/**
+ * Multiplication of P-256 points in Jacobian coordinates on 32-bit limbs,
+ * see <code>P256Field</code>, by the Window NAF method. No <code>BigInteger</code> is involved
+ * between the conversion of the point and the conversion of the result.
+ */
+class P256Multiplier implements ECMultiplier
+{
+    private static final WNafMultiplier WNAF = new WNafMultiplier();
+
+    /**
+     * Width of the Window NAF for multiplicators of given length. Wider
+     * windows mean fewer additions, but more odd multiples to precompute.
+     */
+    static int getWindowWidth(int bits)
+    {
+        if (bits < 14)
+        {
+            return 2;
+        }
+        else if (bits < 50)
+        {
+            return 3;
+        }
+        else if (bits < 140)
+        {
+            return 4;
+        }
+        else if (bits < 380)
+        {
+            return 5;
+        }
+        return 6;
+    }
+
+    public ECPoint multiply(ECPoint p, BigInteger k, PreCompInfo preCompInfo)
+    {
+        int width = getWindowWidth(k.bitLength());
+        byte[] wnaf = WNAF.windowNaf((byte)width, k);
+
+        // odd multiples P, 3P, 5P, ... and their negations
+        P256Jacobian jacobian = new P256Jacobian();
+        int count = 1 << (width - 2);
+        int[][][] odd = new int[count][][];
+        int[][][] oddNegated = new int[count][][];
+        odd[0] = P256Jacobian.fromAffine(p);
+        int[][] twiceP = P256Jacobian.createPoint();
+        jacobian.twice(odd[0], twiceP);
+        for (int i = 1; i < count; i++)
+        {
+            odd[i] = P256Jacobian.createPoint();
+            jacobian.add(odd[i - 1], twiceP, odd[i]);
+        }
+        for (int i = 0; i < count; i++)
+        {
+            oddNegated[i] = P256Jacobian.createPoint();
+            P256Jacobian.negate(odd[i], oddNegated[i]);
+        }
+
+        // from the top digit, which isn't zero
+        int[][] q = P256Jacobian.createPoint();
+        P256Jacobian.setInfinity(q);
+        for (int i = wnaf.length - 1; i >= 0; i--)
+        {
+            if (!P256Jacobian.isInfinity(q))
+            {
+                jacobian.twice(q, q);
+            }
+            int digit = wnaf[i];
+            if (digit > 0)
+            {
+                jacobian.add(q, odd[(digit - 1) >> 1], q);
+            }
+            else if (digit < 0)
+            {
+                jacobian.add(q, oddNegated[(-digit - 1) >> 1], q);
+            }
+        }
+        return jacobian.toAffine(p.getCurve(), q, p.withCompression);
+    }
+
+    /**
+     * Adds up affine points, with a single inversion at the end.
+     */
+    static ECPoint sum(ECCurve curve, ECPoint[] points, int count)
+    {
+        P256Jacobian jacobian = new P256Jacobian();
+        int[][] q = P256Jacobian.createPoint();
+        P256Jacobian.setInfinity(q);
+        for (int i = 0; i < count; i++)
+        {
+            jacobian.add(q, P256Jacobian.fromAffine(points[i]), q);
+        }
+        return jacobian.toAffine(curve, q, false);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.CipherParameters;
+import org.spongycastle.crypto.DataLengthException;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/*
+ * BlockCipher wrapper of the byte-oriented AesAlgorithm.
+ * Much slower than the table-driven engine, only kept for cross-checking.
+ */
+class AesAlgorithmEngine implements BlockCipher {
+	private static final int AES_BLOCKSIZE = AesAlgorithm.BLOCK_SIZE;
+	
+	private AesAlgorithm mAes = new AesAlgorithm();
+	private boolean mForEncryption;
+	private boolean mInitialised = false;
+
+	@Override
+	public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+		if (!(params instanceof KeyParameter))
+			throw new IllegalArgumentException("Invalid parameter passed to AES init - " + params.getClass().getName());
+		mAes.setKey(((KeyParameter) params).getKey());
+		mForEncryption = forEncryption;
+		mInitialised = true;
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return "AES";
+	}
+
+	@Override
+	public int getBlockSize() {
+		return AES_BLOCKSIZE;
+	}
+
+	@Override
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) throws DataLengthException, IllegalStateException {
+		if (!mInitialised)
+			throw new IllegalStateException("AES engine not initialised");
+		if (inOff + AES_BLOCKSIZE > in.length)
+			throw new DataLengthException("input buffer too short");
+		if (outOff + AES_BLOCKSIZE > out.length)
+			throw new DataLengthException("output buffer too short");
+		
+		byte[] block = new byte[AES_BLOCKSIZE];
+		System.arraycopy(in, inOff, block, 0, AES_BLOCKSIZE);
+		block = mForEncryption ? mAes.encrypt(block) : mAes.decrypt(block);
+		System.arraycopy(block, 0, out, outOff, AES_BLOCKSIZE);
+		return AES_BLOCKSIZE;
+	}
+
+	@Override
+	public void reset() {
+	}
+}
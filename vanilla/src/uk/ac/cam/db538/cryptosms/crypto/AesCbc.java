@@ -18,15 +18,155 @@ package uk.ac.cam.db538.cryptosms.crypto;
 import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.Mac;
+import org.spongycastle.crypto.engines.AESFastEngine;
 import org.spongycastle.crypto.params.KeyParameter;
-import org.spongycastle.crypto.params.ParametersWithIV;
 
 /*
- * Class with static methods for AES/CBC encryption/decryption
+ * Class with static methods for AES/CBC encryption/decryption.
+ * Safe to call from multiple threads at once, every thread works with its own engines and buffers.
  */
 public class AesCbc {
 	private static final int AES_BLOCKSIZE = 16;
+	private static final int KEY_CACHE_SIZE = 4;
+	
+	/*
+	 * Creates instances of the AES block cipher the CBC mode runs on
+	 */
+	public static interface EngineFactory {
+		
+		/**
+		 * Creates a new uninitialised engine.
+		 *
+		 * @return the block cipher
+		 */
+		public BlockCipher createEngine();
+	}
+	
+	/**
+	 * Table-driven engine working on 32-bit words. The default.
+	 */
+	public static final EngineFactory ENGINE_TABLE = new EngineFactory() {
+		@Override
+		public BlockCipher createEngine() {
+			return new AESFastEngine();
+		}
+	};
+	
+	/**
+	 * The original byte-oriented AesAlgorithm. Slow, only meant for cross-checking.
+	 */
+	public static final EngineFactory ENGINE_REFERENCE = new EngineFactory() {
+		@Override
+		public BlockCipher createEngine() {
+			return new AesAlgorithmEngine();
+		}
+	};
+	
+	private static volatile EngineFactory mEngineFactory = ENGINE_TABLE;
+	
+	/*
+	 * Engines initialised with one key, each created when first needed
+	 */
+	private static class KeySchedule {
+		byte[] key;
+		BlockCipher encryption;
+		BlockCipher decryption;
+	}
+	
+	/*
+	 * Expanded keys and scratch buffers reused by all the calls on one thread.
+	 * Almost all the calls use the master key, so a few most recently used keys are enough.
+	 */
+	private static class CipherState {
+		EngineFactory factory;
+		KeySchedule[] schedules = new KeySchedule[KEY_CACHE_SIZE]; // most recently used first
+		byte[] chain = new byte[AES_BLOCKSIZE];
+		byte[] block = new byte[AES_BLOCKSIZE];
+	}
+	
+	private static final ThreadLocal<CipherState> mState = new ThreadLocal<CipherState>() {
+		@Override
+		protected CipherState initialValue() {
+			return new CipherState();
+		}
+	};
+	
+	/**
+	 * Sets the AES implementation used for all the following encryption and decryption.
+	 *
+	 * @param factory the engine factory
+	 */
+	public static void setEngineFactory(EngineFactory factory) {
+		if (factory == null)
+			throw new NullPointerException();
+		mEngineFactory = factory;
+	}
+	
+	/**
+	 * Returns the AES implementation in use.
+	 *
+	 * @return the engine factory
+	 */
+	public static EngineFactory getEngineFactory() {
+		return mEngineFactory;
+	}
+	
+	/**
+	 * Returns an engine initialised with given key, expanding the key 
+	 * only if it isn't among the recently used ones.
+	 */
+	private static BlockCipher getEngine(CipherState state, boolean forEncryption, byte[] key) {
+		EngineFactory factory = mEngineFactory;
+		KeySchedule[] schedules = state.schedules;
+		if (state.factory != factory) {
+			state.factory = factory;
+			Arrays.fill(schedules, null);
+		}
+		
+		int i = 0;
+		while (i < KEY_CACHE_SIZE && schedules[i] != null && !Arrays.equals(schedules[i].key, key))
+			++i;
+		KeySchedule schedule;
+		if (i < KEY_CACHE_SIZE && schedules[i] != null)
+			schedule = schedules[i];
+		else {
+			schedule = new KeySchedule();
+			schedule.key = key.clone();
+			// replaces the least recently used one if full
+			i = Math.min(i, KEY_CACHE_SIZE - 1);
+		}
+		System.arraycopy(schedules, 0, schedules, 1, i);
+		schedules[0] = schedule;
+		
+		if (forEncryption) {
+			if (schedule.encryption == null) {
+				schedule.encryption = factory.createEngine();
+				schedule.encryption.init(true, new KeyParameter(schedule.key));
+			}
+			return schedule.encryption;
+		} else {
+			if (schedule.decryption == null) {
+				schedule.decryption = factory.createEngine();
+				schedule.decryption.init(false, new KeyParameter(schedule.key));
+			}
+			return schedule.decryption;
+		}
+	}
+	
+	/**
+	 * Returns an encryption engine initialised with given key, from the cache of the calling thread.
+	 * Meant for the other modes of operation in this package.
+	 *
+	 * @param key the key
+	 * @return the block cipher
+	 */
+	static BlockCipher getEncryptionEngine(byte[] key) {
+		return getEngine(mState.get(), true, key);
+	}
 	
 	/**
 	 * Inserts data into an array of specified length. Puts random data behind to fill the rest.
@@ -55,15 +195,97 @@ public class AesCbc {
 		return buffer.array();
 	}
 	
-	private static byte[] xor(byte[] original, byte[] added) {
-		// assumes parameters are arrays of AES_BLOCKSIZE length !
-		byte[] result = new byte[AES_BLOCKSIZE];
+	private static void xor(byte[] src, int srcOff, byte[] dst, int dstOff) {
 		for (int i = 0; i < AES_BLOCKSIZE; ++i)
-			result[i] = (byte) (original[i] ^ added[i]);
-		return result;
+			dst[dstOff + i] ^= src[srcOff + i];
 	}
 	
-	private static AesAlgorithm mAes = null;
+	/**
+	 * Encrypts a range of data with AES/CBC, using only the buffers of the calling thread.
+	 * The output can be the same range as the input, in which case the data is encrypted in place.
+	 *
+	 * @param in 		Array holding the data to encrypt
+	 * @param inOff 	Offset of the data
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param len 		Length of the data, a multiple of the AES block size
+	 * @param iv 		Array holding the initialization vector
+	 * @param ivOff 	Offset of the initialization vector
+	 * @param key 		Encryption key
+	 */
+	public static void encrypt(byte[] in, int inOff, byte[] out, int outOff, int len, byte[] iv, int ivOff, byte[] key) {
+		encrypt(in, inOff, out, outOff, len, iv, ivOff, key, null);
+	}
+	
+	/**
+	 * Encrypts a range of data with AES/CBC and passes each block of the result to the MAC
+	 * as soon as it's written, so that encrypt-then-MAC needs only one pass over the data.
+	 *
+	 * @param in 		Array holding the data to encrypt
+	 * @param inOff 	Offset of the data
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param len 		Length of the data, a multiple of the AES block size
+	 * @param iv 		Array holding the initialization vector
+	 * @param ivOff 	Offset of the initialization vector
+	 * @param key 		Encryption key
+	 * @param mac 		MAC to update with the ciphertext, or null
+	 */
+	public static void encrypt(byte[] in, int inOff, byte[] out, int outOff, int len, byte[] iv, int ivOff, byte[] key, Mac mac) {
+		if (len % AES_BLOCKSIZE != 0)
+			throw new IllegalArgumentException("Data not aligned to AES block size");
+		
+		CipherState state = mState.get();
+		BlockCipher engine = getEngine(state, true, key);
+		byte[] chain = state.chain;
+		System.arraycopy(iv, ivOff, chain, 0, AES_BLOCKSIZE);
+		for (int pos = 0; pos < len; pos += AES_BLOCKSIZE) {
+			// apply IV to this block of data
+			xor(in, inOff + pos, chain, 0);
+			// encrypt straight into the result
+			engine.processBlock(chain, 0, out, outOff + pos);
+			if (mac != null)
+				mac.update(out, outOff + pos, AES_BLOCKSIZE);
+			// IV is now the previous result
+			System.arraycopy(out, outOff + pos, chain, 0, AES_BLOCKSIZE);
+		}
+	}
+	
+	/**
+	 * Decrypts a range of data with AES/CBC, using only the buffers of the calling thread.
+	 * The output can be the same range as the input, in which case the data is decrypted in place.
+	 *
+	 * @param in 		Array holding the data to decrypt
+	 * @param inOff 	Offset of the data
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param len 		Length of the data, a multiple of the AES block size
+	 * @param iv 		Array holding the initialization vector
+	 * @param ivOff 	Offset of the initialization vector
+	 * @param key 		Encryption key
+	 */
+	public static void decrypt(byte[] in, int inOff, byte[] out, int outOff, int len, byte[] iv, int ivOff, byte[] key) {
+		if (len % AES_BLOCKSIZE != 0)
+			throw new IllegalArgumentException("Data not aligned to AES block size");
+		
+		CipherState state = mState.get();
+		BlockCipher engine = getEngine(state, false, key);
+		byte[] chain = state.chain;
+		byte[] block = state.block;
+		System.arraycopy(iv, ivOff, chain, 0, AES_BLOCKSIZE);
+		for (int pos = 0; pos < len; pos += AES_BLOCKSIZE) {
+			// keep the original block, the result might overwrite it
+			System.arraycopy(in, inOff + pos, block, 0, AES_BLOCKSIZE);
+			// decrypt straight into the result
+			engine.processBlock(block, 0, out, outOff + pos);
+			// apply IV
+			xor(chain, 0, out, outOff + pos);
+			// IV is now the original block
+			byte[] temp = chain;
+			chain = block;
+			block = temp;
+		}
+	}
 	
 	/**
 	 * Encrypts data with AES/CBC encryption.
@@ -76,33 +298,12 @@ public class AesCbc {
 	 * @return the byte[]
 	 */
 	public static byte[] encrypt(byte[] data, byte[] iv, byte[] key, boolean alignWithRandom, boolean storeLength) {
-		// PARAMETERS!!!
-		ParametersWithIV paramKeyAndIv = new ParametersWithIV(new KeyParameter(key), iv);
-		
-		// set up AES
-		if (mAes == null)
-			mAes = new AesAlgorithm();
-		mAes.setKey(key);
-
 		int lengthCrap = (AES_BLOCKSIZE - data.length % AES_BLOCKSIZE) % AES_BLOCKSIZE; 
 		if (lengthCrap != 0)
 			data = wrapData(data, data.length + lengthCrap, alignWithRandom);
 
 		byte[] result = new byte[(storeLength) ? data.length + 1 : data.length];
-		byte[] buffer, buffer2;
-		for (int i = 0; i < data.length / AES_BLOCKSIZE; ++i) {
-			// get this block of data
-			buffer = new byte[AES_BLOCKSIZE];
-			System.arraycopy(data, AES_BLOCKSIZE * i, buffer, 0, AES_BLOCKSIZE);
-			// apply IV
-			buffer = xor(buffer, iv);
-			// encrypt
-			buffer2 = mAes.encrypt(buffer);
-			// copy to result
-			System.arraycopy(buffer2, 0, result, AES_BLOCKSIZE * i, AES_BLOCKSIZE);
-			// IV is now the previous result
-			iv = buffer2;
-		}
+		encrypt(data, 0, result, 0, data.length, iv, 0, key);
 		
 		if (storeLength)
 			result[data.length] = (byte)lengthCrap;
@@ -120,33 +321,18 @@ public class AesCbc {
 	 * @return the byte[]
 	 */
 	public static byte[] decrypt(byte[] data, byte[] iv, byte[] key, boolean lengthStored) {
-		// set up AES
-		if (mAes == null)
-			mAes = new AesAlgorithm();
-		mAes.setKey(key);
-
 		int lengthCrap = (lengthStored) ? data[data.length - 1] : 0;
 		int length = (lengthStored) ? data.length - lengthCrap - 1 : data.length;
-		byte[] result = new byte[length];
-		byte[] buffer, decrypted, xored;
+		int lengthAligned = data.length / AES_BLOCKSIZE * AES_BLOCKSIZE;
 		
-		// decrypt with AES
-		int blockCount = data.length / AES_BLOCKSIZE;
-		for (int i = 0; i < blockCount; ++i) {
-			buffer = new byte[AES_BLOCKSIZE];
-			// get this block of data
-			System.arraycopy(data, AES_BLOCKSIZE * i, buffer, 0, AES_BLOCKSIZE);
-			// decrypt
-			decrypted = mAes.decrypt(buffer);
-			// apply iv
-			xored = xor(decrypted, iv);
-			// copy to result
-			if (i == blockCount - 1)
-				System.arraycopy(xored, 0, result, AES_BLOCKSIZE * i, AES_BLOCKSIZE - lengthCrap);
-			else
-				System.arraycopy(xored, 0, result, AES_BLOCKSIZE * i, AES_BLOCKSIZE);
-			// IV is now the original block
-			iv = buffer;
+		byte[] result = new byte[length];
+		if (length == lengthAligned)
+			decrypt(data, 0, result, 0, lengthAligned, iv, 0, key);
+		else {
+			// the alignment is cut off
+			byte[] decrypted = new byte[lengthAligned];
+			decrypt(data, 0, decrypted, 0, lengthAligned, iv, 0, key);
+			System.arraycopy(decrypted, 0, result, 0, length);
 		}
 		return result;
 	}
@@ -0,0 +1,118 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.Mac;
+
+/*
+ * Class with static methods for AES/CTR encryption/decryption.
+ * The counter block of the n-th block of data is the IV plus n, as a big-endian 128-bit number.
+ * Every block is independent of the others, so any range of the data can be processed on its own,
+ * in any order or on several threads. Encryption and decryption are the same operation.
+ * Uses the engines cached by AesCbc and is safe to call from multiple threads at once.
+ */
+public final class AesCtr {
+	private static final int AES_BLOCKSIZE = 16;
+	
+	/*
+	 * Scratch buffers reused by all the calls on one thread
+	 */
+	private static class CounterState {
+		byte[] counter = new byte[AES_BLOCKSIZE];
+		byte[] keyStream = new byte[AES_BLOCKSIZE];
+	}
+	
+	private static final ThreadLocal<CounterState> mState = new ThreadLocal<CounterState>() {
+		@Override
+		protected CounterState initialValue() {
+			return new CounterState();
+		}
+	};
+	
+	/**
+	 * Adds a number to the counter block, modulo 2^128.
+	 */
+	private static void add(byte[] counter, long value) {
+		int carry = 0;
+		for (int i = AES_BLOCKSIZE - 1; i >= 0; --i) {
+			int sum = (counter[i] & 0xFF) + (int) (value & 0xFF) + carry;
+			counter[i] = (byte) sum;
+			carry = sum >>> 8;
+			value >>>= 8;
+		}
+	}
+	
+	/**
+	 * Encrypts or decrypts a range of data with AES/CTR.
+	 * The output can be the same range as the input, in which case the data is processed in place.
+	 *
+	 * @param in 		Array holding the data
+	 * @param inOff 	Offset of the data
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param len 		Length of the data, any number of bytes
+	 * @param iv 		Array holding the initialization vector
+	 * @param ivOff 	Offset of the initialization vector
+	 * @param key 		Encryption key
+	 * @param position 	Position of the data within the whole stream, in bytes
+	 */
+	public static void process(byte[] in, int inOff, byte[] out, int outOff, int len, byte[] iv, int ivOff, byte[] key, long position) {
+		process(in, inOff, out, outOff, len, iv, ivOff, key, position, null);
+	}
+	
+	/**
+	 * Encrypts a range of data with AES/CTR and passes each block of the result to the MAC
+	 * as soon as it's written, so that encrypt-then-MAC needs only one pass over the data.
+	 *
+	 * @param in 		Array holding the data
+	 * @param inOff 	Offset of the data
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param len 		Length of the data, any number of bytes
+	 * @param iv 		Array holding the initialization vector
+	 * @param ivOff 	Offset of the initialization vector
+	 * @param key 		Encryption key
+	 * @param position 	Position of the data within the whole stream, in bytes
+	 * @param mac 		MAC to update with the result, or null
+	 */
+	public static void process(byte[] in, int inOff, byte[] out, int outOff, int len, byte[] iv, int ivOff, byte[] key, long position, Mac mac) {
+		if (position < 0)
+			throw new IllegalArgumentException("Negative position in the stream");
+		
+		CounterState state = mState.get();
+		BlockCipher engine = AesCbc.getEncryptionEngine(key);
+		byte[] counter = state.counter;
+		byte[] keyStream = state.keyStream;
+		System.arraycopy(iv, ivOff, counter, 0, AES_BLOCKSIZE);
+		add(counter, position / AES_BLOCKSIZE);
+		
+		// the first block might only be used from the middle
+		int skip = (int) (position % AES_BLOCKSIZE);
+		int pos = 0;
+		while (pos < len) {
+			engine.processBlock(counter, 0, keyStream, 0);
+			int count = Math.min(AES_BLOCKSIZE - skip, len - pos);
+			for (int i = 0; i < count; ++i)
+				out[outOff + pos + i] = (byte) (in[inOff + pos + i] ^ keyStream[skip + i]);
+			if (mac != null)
+				mac.update(out, outOff + pos, count);
+			pos += count;
+			skip = 0;
+			add(counter, 1L);
+		}
+	}
+}
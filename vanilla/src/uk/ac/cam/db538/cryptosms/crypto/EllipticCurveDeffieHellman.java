@@ -16,8 +16,11 @@
 package uk.ac.cam.db538.cryptosms.crypto;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.spongycastle.crypto.AsymmetricCipherKeyPair;
 import org.spongycastle.crypto.agreement.ECDHBasicAgreement;
@@ -27,9 +30,14 @@ import org.spongycastle.crypto.params.ECKeyGenerationParameters;
 import org.spongycastle.crypto.params.ECPrivateKeyParameters;
 import org.spongycastle.crypto.params.ECPublicKeyParameters;
 import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECFieldElement;
 import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointMultiplier;
+import org.spongycastle.math.ec.P256Curve;
 import org.spongycastle.util.encoders.Hex;
 
+import uk.ac.cam.db538.cryptosms.utils.LowLevel;
+
 /*
  * Class handling the ECDH key negotiation
  */
@@ -47,16 +55,41 @@ public class EllipticCurveDeffieHellman {
 	public static final BigInteger ECDH_G_Y = new BigInteger("04FE342E2FE1A7F9B8EE7EB4A7C0F9E162BCE33576B315ECECBB6406837BF51F5", 16);
 	public static final byte[] ECDH_G = Hex.decode("036B17D1F2E12C4247F8BCE6E563A440F277037D812DEB33A0F4A13945D898C296");
 
-	public static final ECCurve.Fp ECDH_CURVE = new ECCurve.Fp(ECDH_P, ECDH_A, ECDH_B);
+	// the parameters above, with dedicated arithmetic for the multiplications
+	public static final ECCurve.Fp ECDH_CURVE = new P256Curve();
 	public static final ECDomainParameters ECDH_PARAMS = new ECDomainParameters(ECDH_CURVE, ECDH_CURVE.decodePoint(ECDH_G), ECDH_N, ECDH_H);
 	
+	// bits of the private key handled by one precomputed addition
+	private static final int FIXED_BASE_WIDTH = 4;
+	
+	// number of decoded public keys kept
+	public static final int PUBLIC_KEY_CACHE_SIZE = 32;
+	
+	// decoded and validated public keys, least recently used first
+	private static final Map<ByteBuffer, ECPoint> mPublicKeys = new LinkedHashMap<ByteBuffer, ECPoint>(PUBLIC_KEY_CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, ECPoint> eldest) {
+			return size() > PUBLIC_KEY_CACHE_SIZE;
+		}
+	};
+	
 	private static SecureRandom mRandom;
+	private static ECKeyPairGenerator mKeyGen;
 	static {
         try {
             mRandom = SecureRandom.getInstance("SHA1PRNG");
         } catch (NoSuchAlgorithmException e){
             throw new RuntimeException("No secure random available!");
         }
+        
+        // the generator is multiplied for every new key,
+        // so its multiples are computed only once
+        FixedPointMultiplier.precompute(ECDH_PARAMS.getG(), FIXED_BASE_WIDTH);
+        
+        mKeyGen = new ECKeyPairGenerator();
+        mKeyGen.init(new ECKeyGenerationParameters(ECDH_PARAMS, mRandom));
 	}
 	
 	private AsymmetricCipherKeyPair mKeyPair;
@@ -65,13 +98,7 @@ public class EllipticCurveDeffieHellman {
 	 * Instantiates a new elliptic curve deffie hellman.
 	 */
 	public EllipticCurveDeffieHellman() {
-        ECKeyGenerationParameters paramsKeyGen =
-            	new ECKeyGenerationParameters(ECDH_PARAMS, mRandom);
-        
-        ECKeyPairGenerator keyGen = new ECKeyPairGenerator();
-        keyGen.init(paramsKeyGen);
-     
-        mKeyPair = keyGen.generateKeyPair();
+        mKeyPair = mKeyGen.generateKeyPair();
 	}
 	
 	/**
@@ -80,13 +107,25 @@ public class EllipticCurveDeffieHellman {
 	 * @param privateKey the private key
 	 */
 	public EllipticCurveDeffieHellman(byte[] privateKey) {
-        ECKeyGenerationParameters paramsKeyGen =
-            	new ECKeyGenerationParameters(ECDH_PARAMS, mRandom);
-        
-        ECKeyPairGenerator keyGen = new ECKeyPairGenerator();
-        keyGen.init(paramsKeyGen);
-     
-        mKeyPair = keyGen.createKeyPair(new BigInteger(privateKey));
+        mKeyPair = mKeyGen.createKeyPair(new BigInteger(privateKey));
+	}
+	
+	/**
+	 * Instantiates a new elliptic curve deffie hellman from a key pair computed beforehand.
+	 *
+	 * @param privateKey the private key
+	 * @param publicKey the public key belonging to it
+	 */
+	EllipticCurveDeffieHellman(BigInteger privateKey, ECPoint publicKey) {
+		mKeyPair = new AsymmetricCipherKeyPair(new ECPublicKeyParameters(publicKey, ECDH_PARAMS), new ECPrivateKeyParameters(privateKey, ECDH_PARAMS));
+	}
+	
+	ECPoint getPublicPoint() {
+		return ((ECPublicKeyParameters) mKeyPair.getPublic()).getQ();
+	}
+	
+	BigInteger getPrivateValue() {
+		return ((ECPrivateKeyParameters) mKeyPair.getPrivate()).getD();
 	}
 	
 	public byte[] getPublicKey() {
@@ -104,11 +143,73 @@ public class EllipticCurveDeffieHellman {
 	 * @return the shared key
 	 */
 	public BigInteger getSharedKey(byte[] otherPublicKey) {
-		ECPoint point = ECDH_CURVE.decodePoint(otherPublicKey);
+		ECPoint point = decodePublicKey(otherPublicKey);
 		
 		// return the shared secret
 		ECDHBasicAgreement agreement = new ECDHBasicAgreement();
 		agreement.init(mKeyPair.getPrivate());
 		return agreement.calculateAgreement(new ECPublicKeyParameters(point, ECDH_PARAMS));
 	}
+	
+	/**
+	 * Decodes a compressed public key into a point of the curve and checks that it lies on it.
+	 * Decompression takes a modular square root, so the last PUBLIC_KEY_CACHE_SIZE
+	 * decoded keys are kept and the same key is decoded and validated only once.
+	 *
+	 * @param publicKey the compressed public key
+	 * @return the point
+	 * @throws IllegalArgumentException if the key isn't a valid point of the curve
+	 */
+	public static ECPoint decodePublicKey(byte[] publicKey) {
+		if (publicKey == null || publicKey.length != LENGTH_PUBLIC_KEY || (publicKey[0] != 0x02 && publicKey[0] != 0x03))
+			throw new IllegalArgumentException("Invalid public key");
+		
+		ByteBuffer key = ByteBuffer.wrap(publicKey);
+		synchronized (mPublicKeys) {
+			ECPoint point = mPublicKeys.get(key);
+			if (point != null)
+				return point;
+		}
+		
+		ECPoint point = validatePoint(publicKey);
+		synchronized (mPublicKeys) {
+			// the key is copied, so that it can't change under the cache
+			mPublicKeys.put(ByteBuffer.wrap(publicKey.clone()), point);
+		}
+		return point;
+	}
+	
+	/**
+	 * Drops all the decoded public keys.
+	 */
+	public static void clearPublicKeyCache() {
+		synchronized (mPublicKeys) {
+			mPublicKeys.clear();
+		}
+	}
+	
+	private static ECPoint validatePoint(byte[] publicKey) {
+		// the coordinate has to be reduced, otherwise two encodings would give the same point
+		if (new BigInteger(1, LowLevel.cutData(publicKey, 1, LENGTH_PUBLIC_KEY - 1)).compareTo(ECDH_P) >= 0)
+			throw new IllegalArgumentException("Invalid public key");
+		
+		ECPoint point;
+		try {
+			point = ECDH_CURVE.decodePoint(publicKey);
+		} catch (RuntimeException e) {
+			// no square root => not a point of the curve
+			throw new IllegalArgumentException("Invalid public key");
+		}
+		
+		if (point.isInfinity())
+			throw new IllegalArgumentException("Invalid public key");
+		
+		// y^2 = x^3 + ax + b
+		ECFieldElement x = point.getX();
+		ECFieldElement y = point.getY();
+		ECFieldElement right = x.square().add(ECDH_CURVE.getA()).multiply(x).add(ECDH_CURVE.getB());
+		if (!y.square().equals(right))
+			throw new IllegalArgumentException("Invalid public key");
+		return point;
+	}
 }
@@ -0,0 +1,194 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.util.Arrays;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import uk.ac.cam.db538.cryptosms.utils.LowLevel;
+
+/*
+ * Authenticated symmetric encryption: AES/CBC, followed by HMAC-SHA256 of the IV and the ciphertext.
+ * The layout is the same as of the other symmetric formats (MAC, IV, ciphertext),
+ * so it has the same overhead. The cipher and the MAC use two keys derived from the given one.
+ *
+ * Encryption makes a single pass over the data, every block of the ciphertext goes to the MAC
+ * right after it's written. Decryption checks the MAC first and doesn't decrypt anything unless it matches.
+ * Safe to call from multiple threads at once.
+ *
+ * The same can be done with AES/CTR instead of AES/CBC. The data then don't have to be aligned
+ * and any part of them can be decrypted without the rest. The MACs of both modes start with
+ * a byte telling the mode, so that data encrypted in one mode can't pass as the other.
+ */
+public final class EncryptThenMac {
+	private static final byte[] LABEL_ENCRYPTION = { 'E', 'N', 'C' };
+	private static final byte[] LABEL_MAC = { 'M', 'A', 'C' };
+	private static final byte MODE_CBC = 'B';
+	private static final byte MODE_COUNTER = 'C';
+
+	/*
+	 * Derived keys of the last used key, on one thread
+	 */
+	private static class KeyState {
+		byte[] key;
+		byte[] keyEncryption = new byte[Encryption.SYM_KEY_LENGTH];
+		HMac mac = new HMac(new SHA256Digest());
+		byte[] macReal = new byte[Encryption.HMAC_LENGTH];
+	}
+
+	private static final ThreadLocal<KeyState> mState = new ThreadLocal<KeyState>() {
+		@Override
+		protected KeyState initialValue() {
+			return new KeyState();
+		}
+	};
+
+	private static KeyState getState(byte[] key) {
+		KeyState state = mState.get();
+		if (state.key == null || !Arrays.equals(state.key, key)) {
+			HMac derivation = new HMac(new SHA256Digest());
+			derivation.init(new KeyParameter(key));
+			derivation.update(LABEL_ENCRYPTION, 0, LABEL_ENCRYPTION.length);
+			derivation.doFinal(state.keyEncryption, 0);
+
+			byte[] keyMac = new byte[Encryption.HMAC_LENGTH];
+			derivation.update(LABEL_MAC, 0, LABEL_MAC.length);
+			derivation.doFinal(keyMac, 0);
+			state.mac.init(new KeyParameter(keyMac));
+
+			state.key = key.clone();
+		} else
+			// an operation that failed halfway could have left data in it
+			state.mac.reset();
+		return state;
+	}
+
+	/**
+	 * Encrypts a range of data straight into the output array. The result is
+	 * Encryption.SYM_OVERHEAD bytes longer than the data. The output mustn't overlap the input,
+	 * unless the data already are at the place of the ciphertext, in which case they are encrypted in place.
+	 *
+	 * @param in 		Array holding the data to encrypt
+	 * @param inOff 	Offset of the data
+	 * @param len 		Length of the data, a multiple of the block length
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param iv 		Array holding the initialization vector
+	 * @param ivOff 	Offset of the initialization vector
+	 * @param key 		Encryption key
+	 */
+	public static void encrypt(byte[] in, int inOff, int len, byte[] out, int outOff, byte[] iv, int ivOff, byte[] key) {
+		KeyState state = getState(key);
+		int offsetIV = outOff + Encryption.HMAC_LENGTH;
+		System.arraycopy(iv, ivOff, out, offsetIV, Encryption.SYM_IV_LENGTH);
+		state.mac.update(MODE_CBC);
+		state.mac.update(out, offsetIV, Encryption.SYM_IV_LENGTH);
+		AesCbc.encrypt(in, inOff, out, outOff + Encryption.SYM_OVERHEAD, len, out, offsetIV, state.keyEncryption, state.mac);
+		state.mac.doFinal(out, outOff);
+	}
+
+	/**
+	 * Checks the MAC of a range of encrypted data and decrypts it straight into the output array
+	 * if it matches. Nothing is written otherwise. The output can be the place of the ciphertext
+	 * in the input, in which case the data are decrypted in place.
+	 *
+	 * @param in 		Array holding the encrypted data
+	 * @param inOff 	Offset of the encrypted data
+	 * @param len 		Length of the encrypted data, including the overhead
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param key 		Encryption key
+	 * @return true, if the MAC matched and the data were decrypted
+	 */
+	public static boolean decrypt(byte[] in, int inOff, int len, byte[] out, int outOff, byte[] key) {
+		if (len < Encryption.SYM_OVERHEAD)
+			throw new IllegalArgumentException("Data shorter than the overhead");
+
+		KeyState state = getState(key);
+		state.mac.update(MODE_CBC);
+		if (!verify(state, in, inOff, len))
+			return false;
+
+		AesCbc.decrypt(in, inOff + Encryption.SYM_OVERHEAD, out, outOff, len - Encryption.SYM_OVERHEAD, in, inOff + Encryption.HMAC_LENGTH, state.keyEncryption);
+		return true;
+	}
+
+	/**
+	 * Encrypts a range of data with AES/CTR straight into the output array and appends
+	 * the MAC the same way as encrypt(). The result is Encryption.SYM_OVERHEAD bytes
+	 * longer than the data, which don't have to be aligned.
+	 *
+	 * @param in 		Array holding the data to encrypt
+	 * @param inOff 	Offset of the data
+	 * @param len 		Length of the data
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param iv 		Array holding the initialization vector
+	 * @param ivOff 	Offset of the initialization vector
+	 * @param key 		Encryption key
+	 */
+	public static void encryptCounter(byte[] in, int inOff, int len, byte[] out, int outOff, byte[] iv, int ivOff, byte[] key) {
+		KeyState state = getState(key);
+		int offsetIV = outOff + Encryption.HMAC_LENGTH;
+		System.arraycopy(iv, ivOff, out, offsetIV, Encryption.SYM_IV_LENGTH);
+		state.mac.update(MODE_COUNTER);
+		state.mac.update(out, offsetIV, Encryption.SYM_IV_LENGTH);
+		AesCtr.process(in, inOff, out, outOff + Encryption.SYM_OVERHEAD, len, out, offsetIV, state.keyEncryption, 0L, state.mac);
+		state.mac.doFinal(out, outOff);
+	}
+
+	/**
+	 * Checks the MAC of data encrypted with encryptCounter() and, if it matches,
+	 * decrypts only the given part of them. Nothing is written otherwise.
+	 *
+	 * @param in 		Array holding the encrypted data
+	 * @param inOff 	Offset of the encrypted data
+	 * @param len 		Length of the encrypted data, including the overhead
+	 * @param from 		Offset of the part to decrypt, within the plain data
+	 * @param count 	Length of the part to decrypt
+	 * @param out 		Array to store the result in
+	 * @param outOff 	Offset of the result
+	 * @param key 		Encryption key
+	 * @return true, if the MAC matched and the part was decrypted
+	 */
+	public static boolean decryptCounter(byte[] in, int inOff, int len, int from, int count, byte[] out, int outOff, byte[] key) {
+		if (len < Encryption.SYM_OVERHEAD)
+			throw new IllegalArgumentException("Data shorter than the overhead");
+		if (from < 0 || count < 0 || from + count > len - Encryption.SYM_OVERHEAD)
+			throw new IndexOutOfBoundsException();
+
+		KeyState state = getState(key);
+		state.mac.update(MODE_COUNTER);
+		if (!verify(state, in, inOff, len))
+			return false;
+
+		AesCtr.process(in, inOff + Encryption.SYM_OVERHEAD + from, out, outOff, count, in, inOff + Encryption.HMAC_LENGTH, state.keyEncryption, from);
+		return true;
+	}
+
+	/**
+	 * Finishes the MAC of the IV and the ciphertext and compares it with the stored one.
+	 * Looks at all the bytes, whatever the result, so the time doesn't tell where they differ.
+	 */
+	private static boolean verify(KeyState state, byte[] in, int inOff, int len) {
+		state.mac.update(in, inOff + Encryption.HMAC_LENGTH, len - Encryption.HMAC_LENGTH);
+		state.mac.doFinal(state.macReal, 0);
+		return LowLevel.equalsConstantTime(in, inOff, state.macReal, 0, Encryption.HMAC_LENGTH);
+	}
+}
@@ -28,7 +28,7 @@ public class Encryption {
 	public static final int ASYM_BLOCK_LENGTH = ASYM_KEY_LENGTH;
 	public static final int ASYM_SIGNATURE_LENGTH = ASYM_KEY_LENGTH;
 	
-	private static EncryptionInterface mEncryption = null;
+	private static volatile EncryptionInterface mEncryption = null;
 	
 	public static EncryptionInterface getEncryption() {
 		return mEncryption;
@@ -17,8 +17,16 @@ package uk.ac.cam.db538.cryptosms.crypto;
 
 import java.security.SecureRandom;
 
+import org.spongycastle.crypto.Digest;
+import org.spongycastle.crypto.Mac;
+
 /*
- * Interface for classes providing encryption
+ * Interface for classes providing encryption.
+ * 
+ * Implementations must be safe for concurrent use: any of the methods 
+ * can be called from multiple threads at once without external synchronisation, 
+ * as long as the callers don't modify the arrays they pass in while the call is running.
+ * The returned arrays are always newly allocated and owned by the caller.
  */
 public interface EncryptionInterface {
 	public static class WrongKeyDecryptionException extends RuntimeException {
@@ -80,6 +88,47 @@ public interface EncryptionInterface {
 	 */
 	public byte[] getHMAC(byte[] data, byte[] key);
 	
+	/**
+	 * Computes the hash of a part of the data and writes it into given array.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the part
+	 * @param length the length of the part
+	 * @param out the array for the hash
+	 * @param outOffset where to write the hash
+	 */
+	public void getHash(byte[] data, int offset, int length, byte[] out, int outOffset);
+	
+	/**
+	 * Computes the HMAC of a part of the data and writes it into given array.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the part
+	 * @param length the length of the part
+	 * @param key the key
+	 * @param out the array for the HMAC
+	 * @param outOffset where to write the HMAC
+	 */
+	public void getHMAC(byte[] data, int offset, int length, byte[] key, byte[] out, int outOffset);
+	
+	/**
+	 * Creates a digest computing the same hash as getHash(), for data that come in pieces.
+	 * The digest resets itself after each doFinal() and can be reused, but only by one thread at a time.
+	 *
+	 * @return the digest
+	 */
+	public Digest createHash();
+	
+	/**
+	 * Creates a MAC computing the same HMAC as getHMAC(), initialised with given key, 
+	 * for data that come in pieces. The MAC resets itself after each doFinal() 
+	 * and can be reused with the same key, but only by one thread at a time.
+	 *
+	 * @param key the key
+	 * @return the MAC
+	 */
+	public Mac createHMAC(byte[] key);
+	
 	/**
 	 * Gets the symmetric encrypted length.
 	 *
@@ -164,6 +213,127 @@ public interface EncryptionInterface {
 	 */
 	public byte[] decryptSymmetric(byte[] data, byte[] key, int blocks) throws EncryptionException;
 	
+	/**
+	 * Decrypts a range of data encrypted with encryptSymmetric() straight into the output array and checks the MAC.
+	 * Compares the MACs in constant time, and neither allocates nor throws anything if they don't match,
+	 * so that it's cheap to try many keys.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param out the array for the result, length - Encryption.SYM_OVERHEAD bytes
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 * @return true, if the MAC matched; the output holds garbage otherwise
+	 */
+	public boolean decryptSymmetric(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key);
+	
+	/**
+	 * Encrypts a range of data with given key in the encrypt-then-MAC mode, straight into the output array.
+	 * The result is getSymmetricEncryptedLength(length) bytes long.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data, aligned to the block length
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 */
+	public void encryptAuthenticated(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key);
+	
+	/**
+	 * Encrypts a range of data with master key in the encrypt-then-MAC mode, straight into the output array.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data, aligned to the block length
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @throws EncryptionException the encryption exception
+	 */
+	public void encryptAuthenticatedWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException;
+	
+	/**
+	 * Decrypts a range of data encrypted in the encrypt-then-MAC mode, straight into the output array.
+	 * The MAC is checked before anything is decrypted and nothing is written if it doesn't match.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 * @throws EncryptionException if the MAC doesn't match
+	 */
+	public void decryptAuthenticated(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) throws EncryptionException;
+	
+	/**
+	 * Decrypts a range of data encrypted in the encrypt-then-MAC mode with master key, straight into the output array.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @throws EncryptionException if the MAC doesn't match
+	 */
+	public void decryptAuthenticatedWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException;
+	
+	/**
+	 * Encrypts a range of data with given key in the authenticated counter mode, straight into the output array.
+	 * The result is Encryption.SYM_OVERHEAD bytes longer than the data.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 */
+	public void encryptCounter(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key);
+	
+	/**
+	 * Encrypts a range of data with master key in the authenticated counter mode, straight into the output array.
+	 *
+	 * @param data the data
+	 * @param offset the offset of the data
+	 * @param length the length of the data
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @throws EncryptionException the encryption exception
+	 */
+	public void encryptCounterWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException;
+	
+	/**
+	 * Decrypts a part of data encrypted in the authenticated counter mode, straight into the output array.
+	 * The MAC of all the data is checked first and nothing is written if it doesn't match.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param from the offset of the part to decrypt, within the plain data
+	 * @param count the length of the part to decrypt
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @param key the key
+	 * @throws EncryptionException if the MAC doesn't match
+	 */
+	public void decryptCounter(byte[] data, int offset, int length, int from, int count, byte[] out, int outOffset, byte[] key) throws EncryptionException;
+	
+	/**
+	 * Decrypts a part of data encrypted in the authenticated counter mode with master key, straight into the output array.
+	 *
+	 * @param data the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param from the offset of the part to decrypt, within the plain data
+	 * @param count the length of the part to decrypt
+	 * @param out the array for the result
+	 * @param outOffset where to write the result
+	 * @throws EncryptionException if the MAC doesn't match
+	 */
+	public void decryptCounterWithMasterKey(byte[] data, int offset, int length, int from, int count, byte[] out, int outOffset) throws EncryptionException;
+	
 	/**
 	 * Sign.
 	 *
@@ -17,7 +17,10 @@ package uk.ac.cam.db538.cryptosms.crypto;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
+import org.spongycastle.crypto.Digest;
+import org.spongycastle.crypto.Mac;
 import org.spongycastle.crypto.digests.SHA256Digest;
 import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.crypto.params.KeyParameter;
@@ -37,6 +40,23 @@ public class EncryptionNone implements EncryptionInterface {
 	}
 	
 	private SecureRandom mRandom = null;
+	
+	/*
+	 * Digests reused by all the calls on one thread
+	 */
+	private static class HashState {
+		SHA256Digest digest = new SHA256Digest();
+		HMac hmac = new HMac(new SHA256Digest());
+		byte[] hmacKey = null; // the HMAC is initialised with this key
+		byte[] macReal = new byte[Encryption.HMAC_LENGTH];
+	}
+	
+	private final ThreadLocal<HashState> mHashState = new ThreadLocal<HashState>() {
+		@Override
+		protected HashState initialValue() {
+			return new HashState();
+		}
+	};
 			
 	/**
 	 * Instantiates a new encryption none.
@@ -55,16 +75,26 @@ public class EncryptionNone implements EncryptionInterface {
 	@Override
 	public byte[] decryptSymmetric(byte[] data, byte[] key, int blocks) throws EncryptionException {
 		int length = blocks * Encryption.SYM_BLOCK_LENGTH;
-		byte[] dataDecrypted = LowLevel.cutData(data, Encryption.SYM_OVERHEAD, length - Encryption.SYM_OVERHEAD);
-		byte[] hashSaved = LowLevel.cutData(data, 0, Encryption.HMAC_LENGTH);
-		byte[] hashReal = getHMAC(dataDecrypted, key);
-		
-		for (int i = 0; i < Encryption.HMAC_LENGTH; ++i)
-			if (hashSaved[i] != hashReal[i])
-				throw new EncryptionException(new Exception(LowLevel.toHex(dataDecrypted)));
+		byte[] dataDecrypted = new byte[length - Encryption.SYM_OVERHEAD];
+		if (!decryptSymmetric(data, 0, length, dataDecrypted, 0, key))
+			throw new EncryptionException(new WrongKeyDecryptionException());
 		return dataDecrypted;
 	}
 	
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#decryptSymmetric(byte[], int, int, byte[], int, byte[])
+	 */
+	@Override
+	public boolean decryptSymmetric(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) {
+		int lengthPlain = length - Encryption.SYM_OVERHEAD;
+		byte[] macReal = mHashState.get().macReal;
+		getHMAC(data, offset + Encryption.SYM_OVERHEAD, lengthPlain, key, macReal, 0);
+		if (!LowLevel.equalsConstantTime(data, offset, macReal, 0, Encryption.HMAC_LENGTH))
+			return false;
+		System.arraycopy(data, offset + Encryption.SYM_OVERHEAD, out, outOffset, lengthPlain);
+		return true;
+	}
+	
 	/* (non-Javadoc)
 	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#decryptSymmetric(byte[], byte[])
 	 */
@@ -91,13 +121,97 @@ public class EncryptionNone implements EncryptionInterface {
 		int alignedLength = Encryption.getEncryption().getSymmetricAlignedLength(data.length);
 		byte[] buffer = new byte[alignedLength + Encryption.HMAC_LENGTH + Encryption.SYM_IV_LENGTH];
 		data = LowLevel.wrapData(data, alignedLength);
-		System.arraycopy(getHMAC(data, key), 0, buffer, 0, Encryption.HMAC_LENGTH);
+		getHMAC(data, 0, alignedLength, key, buffer, 0);
 		for (int i = 0; i < Encryption.SYM_IV_LENGTH; ++i)
 			buffer[Encryption.HMAC_LENGTH + i] = (byte) 0x49;
 		System.arraycopy(data, 0, buffer, Encryption.SYM_OVERHEAD, alignedLength);
 		return buffer;
 	}
 
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#encryptAuthenticated(byte[], int, int, byte[], int, byte[])
+	 */
+	@Override
+	public void encryptAuthenticated(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) {
+		// data stay as they are, only authenticated together with the IV
+		System.arraycopy(data, offset, out, outOffset + Encryption.SYM_OVERHEAD, length);
+		for (int i = 0; i < Encryption.SYM_IV_LENGTH; ++i)
+			out[outOffset + Encryption.HMAC_LENGTH + i] = (byte) 0x49;
+		getHMAC(out, outOffset + Encryption.HMAC_LENGTH, length + Encryption.SYM_IV_LENGTH, key, out, outOffset);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#encryptAuthenticatedWithMasterKey(byte[], int, int, byte[], int)
+	 */
+	@Override
+	public void encryptAuthenticatedWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException {
+		encryptAuthenticated(data, offset, length, out, outOffset, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#decryptAuthenticated(byte[], int, int, byte[], int, byte[])
+	 */
+	@Override
+	public void decryptAuthenticated(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) throws EncryptionException {
+		byte[] macReal = mHashState.get().macReal;
+		getHMAC(data, offset + Encryption.HMAC_LENGTH, length - Encryption.HMAC_LENGTH, key, macReal, 0);
+		if (!LowLevel.equalsConstantTime(data, offset, macReal, 0, Encryption.HMAC_LENGTH))
+			throw new EncryptionException(new WrongKeyDecryptionException());
+		System.arraycopy(data, offset + Encryption.SYM_OVERHEAD, out, outOffset, length - Encryption.SYM_OVERHEAD);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#decryptAuthenticatedWithMasterKey(byte[], int, int, byte[], int)
+	 */
+	@Override
+	public void decryptAuthenticatedWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException {
+		decryptAuthenticated(data, offset, length, out, outOffset, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#encryptCounter(byte[], int, int, byte[], int, byte[])
+	 */
+	@Override
+	public void encryptCounter(byte[] data, int offset, int length, byte[] out, int outOffset, byte[] key) {
+		// as in encryptAuthenticated, with a different IV to tell the modes apart
+		System.arraycopy(data, offset, out, outOffset + Encryption.SYM_OVERHEAD, length);
+		for (int i = 0; i < Encryption.SYM_IV_LENGTH; ++i)
+			out[outOffset + Encryption.HMAC_LENGTH + i] = (byte) 0x43;
+		getHMAC(out, outOffset + Encryption.HMAC_LENGTH, length + Encryption.SYM_IV_LENGTH, key, out, outOffset);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#encryptCounterWithMasterKey(byte[], int, int, byte[], int)
+	 */
+	@Override
+	public void encryptCounterWithMasterKey(byte[] data, int offset, int length, byte[] out, int outOffset) throws EncryptionException {
+		encryptCounter(data, offset, length, out, outOffset, null);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#decryptCounter(byte[], int, int, int, int, byte[], int, byte[])
+	 */
+	@Override
+	public void decryptCounter(byte[] data, int offset, int length, int from, int count, byte[] out, int outOffset, byte[] key) throws EncryptionException {
+		if (from < 0 || count < 0 || from + count > length - Encryption.SYM_OVERHEAD)
+			throw new IndexOutOfBoundsException();
+		byte[] macReal = mHashState.get().macReal;
+		getHMAC(data, offset + Encryption.HMAC_LENGTH, length - Encryption.HMAC_LENGTH, key, macReal, 0);
+		if (!LowLevel.equalsConstantTime(data, offset, macReal, 0, Encryption.HMAC_LENGTH))
+			throw new EncryptionException(new WrongKeyDecryptionException());
+		if (data[offset + Encryption.HMAC_LENGTH] != (byte) 0x43)
+			throw new EncryptionException(new WrongKeyDecryptionException());
+		System.arraycopy(data, offset + Encryption.SYM_OVERHEAD + from, out, outOffset, count);
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#decryptCounterWithMasterKey(byte[], int, int, int, int, byte[], int)
+	 */
+	@Override
+	public void decryptCounterWithMasterKey(byte[] data, int offset, int length, int from, int count, byte[] out, int outOffset) throws EncryptionException {
+		decryptCounter(data, offset, length, from, count, out, outOffset, null);
+	}
+
 	/* (non-Javadoc)
 	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#encryptSymmetricWithMasterKey(byte[])
 	 */
@@ -138,30 +252,71 @@ public class EncryptionNone implements EncryptionInterface {
 	 */
 	@Override
 	public byte[] getHash(byte[] data) {
-		SHA256Digest sha256 = new SHA256Digest();
 		byte[] result = new byte[Encryption.HASH_LENGTH];
-		sha256.update(data, 0, data.length);
-		if (sha256.doFinal(result, 0) == Encryption.HASH_LENGTH)
-			return result;
-		else
+		getHash(data, 0, data.length, result, 0);
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#getHash(byte[], int, int, byte[], int)
+	 */
+	@Override
+	public void getHash(byte[] data, int offset, int length, byte[] out, int outOffset) {
+		SHA256Digest sha256 = mHashState.get().digest;
+		sha256.update(data, offset, length);
+		if (sha256.doFinal(out, outOffset) != Encryption.HASH_LENGTH)
 			throw new RuntimeException("SHA-256 internal error");
 	}
 
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#createHash()
+	 */
+	@Override
+	public Digest createHash() {
+		return new SHA256Digest();
+	}
+
 	/* (non-Javadoc)
 	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#getHMAC(byte[], byte[])
 	 */
 	@Override
 	public byte[] getHMAC(byte[] data, byte[] key) {
-		HMac mac = new HMac(new SHA256Digest());
-		mac.init(new KeyParameter(key));
 		byte[] result = new byte[Encryption.HMAC_LENGTH];
-		mac.update(data, 0, data.length);
-		if (mac.doFinal(result, 0) == Encryption.HMAC_LENGTH)
-			return result;
-		else
+		getHMAC(data, 0, data.length, key, result, 0);
+		return result;
+	}
+
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#getHMAC(byte[], int, int, byte[], byte[], int)
+	 */
+	@Override
+	public void getHMAC(byte[] data, int offset, int length, byte[] key, byte[] out, int outOffset) {
+		HashState state = mHashState.get();
+		HMac mac = state.hmac;
+		// the pads are only hashed again when the key changes
+		if (state.hmacKey == null || !Arrays.equals(state.hmacKey, key)) {
+			mac.init(new KeyParameter(key));
+			// keys mostly have the same length, so the copy can be overwritten
+			if (state.hmacKey != null && state.hmacKey.length == key.length)
+				System.arraycopy(key, 0, state.hmacKey, 0, key.length);
+			else
+				state.hmacKey = key.clone();
+		}
+		mac.update(data, offset, length);
+		if (mac.doFinal(out, outOffset) != Encryption.HMAC_LENGTH)
 			throw new RuntimeException("HMAC internal error");
 	}
 
+	/* (non-Javadoc)
+	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#createHMAC(byte[])
+	 */
+	@Override
+	public Mac createHMAC(byte[] key) {
+		HMac mac = new HMac(new SHA256Digest());
+		mac.init(new KeyParameter(key));
+		return mac;
+	}
+
 	/* (non-Javadoc)
 	 * @see uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface#encryptSymmetricWithMasterKey(byte[], boolean)
 	 */
@@ -0,0 +1,209 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.spongycastle.math.ec.ECPoint;
+
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
+
+/**
+ *
+ * Pool of ECDH key pairs generated ahead of time, so that starting a key exchange
+ * doesn't have to wait for the generation.
+ *
+ * The pool is refilled to its depth on a background thread whenever a pair is taken.
+ * Private keys of the pairs are kept encrypted with the master key, so when the master key
+ * isn't available, the pool isn't refilled, and pairs that don't decrypt are thrown away.
+ * If the pool is empty, the pair is generated on the calling thread.
+ *
+ * @author David Brazdil
+ *
+ */
+public final class KeyPairPool {
+	public static final int DEFAULT_DEPTH = 8;
+
+	private static final int LENGTH_ENCRYPTED_PRIVATE_KEY = EllipticCurveDeffieHellman.LENGTH_PRIVATE_KEY + Encryption.SYM_OVERHEAD;
+
+	private static class KeyPair {
+		ECPoint publicKey;
+		byte[] privateKey = new byte[LENGTH_ENCRYPTED_PRIVATE_KEY];
+	}
+
+	// guarded by the class
+	private static ArrayDeque<KeyPair> mPool = new ArrayDeque<KeyPair>();
+	private static int mDepth = DEFAULT_DEPTH;
+	private static int mGeneration = 0; // changes when the pairs are thrown away
+	private static boolean mRefilling = false;
+	private static ExecutorService mExecutor = null;
+
+	private KeyPairPool() {
+	}
+
+	/**
+	 * Sets the number of pairs to keep ready and refills the pool if needed.
+	 * Surplus pairs are used up first.
+	 *
+	 * @param depth the depth
+	 */
+	public static synchronized void setDepth(int depth) {
+		if (depth < 0)
+			throw new IllegalArgumentException("Negative depth");
+		mDepth = depth;
+		refill();
+	}
+
+	public static synchronized int getDepth() {
+		return mDepth;
+	}
+
+	/**
+	 * Returns the number of pairs ready at the moment.
+	 *
+	 * @return the number of pairs
+	 */
+	public static synchronized int getAvailable() {
+		return mPool.size();
+	}
+
+	/**
+	 * Takes a key pair out of the pool, or generates a new one if there isn't any.
+	 * Either way, the pool is refilled in the background.
+	 *
+	 * @return the key pair
+	 */
+	public static EllipticCurveDeffieHellman getKeyPair() {
+		KeyPair pair;
+		synchronized (KeyPairPool.class) {
+			pair = mPool.pollFirst();
+			refill();
+		}
+
+		if (pair != null) {
+			byte[] privateKey = new byte[EllipticCurveDeffieHellman.LENGTH_PRIVATE_KEY];
+			try {
+				Encryption.getEncryption().decryptAuthenticatedWithMasterKey(pair.privateKey, 0, LENGTH_ENCRYPTED_PRIVATE_KEY, privateKey, 0);
+				return new EllipticCurveDeffieHellman(new BigInteger(1, privateKey), pair.publicKey);
+			} catch (EncryptionException e) {
+				// the master key has changed, none of the other pairs will decrypt either
+				clear();
+			} finally {
+				Arrays.fill(privateKey, (byte) 0);
+			}
+		}
+		return new EllipticCurveDeffieHellman();
+	}
+
+	/**
+	 * Starts filling the pool up to its depth in the background, unless it's full or already being filled.
+	 * Should be called once the master key becomes available.
+	 */
+	public static synchronized void refill() {
+		if (mRefilling || mPool.size() >= mDepth)
+			return;
+
+		mRefilling = true;
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					fill();
+				} finally {
+					synchronized (KeyPairPool.class) {
+						mRefilling = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Throws away all the pairs, e.g. when the master key stops being available.
+	 * Pairs being generated at the moment are thrown away as well.
+	 */
+	public static synchronized void clear() {
+		mPool.clear();
+		++mGeneration;
+	}
+
+	/**
+	 * Fills the pool up to its depth on the calling thread.
+	 * Stops if the private keys can't be encrypted.
+	 */
+	static void fill() {
+		while (true) {
+			int generation;
+			synchronized (KeyPairPool.class) {
+				if (mPool.size() >= mDepth)
+					return;
+				generation = mGeneration;
+			}
+			EncryptionInterface crypto = Encryption.getEncryption();
+			if (crypto == null)
+				return;
+
+			EllipticCurveDeffieHellman ecdh = new EllipticCurveDeffieHellman();
+			KeyPair pair = new KeyPair();
+			pair.publicKey = ecdh.getPublicPoint();
+			byte[] privateKey = toFixedLength(ecdh.getPrivateValue());
+			try {
+				crypto.encryptAuthenticatedWithMasterKey(privateKey, 0, privateKey.length, pair.privateKey, 0);
+			} catch (EncryptionException e) {
+				// master key not available
+				return;
+			} finally {
+				Arrays.fill(privateKey, (byte) 0);
+			}
+
+			synchronized (KeyPairPool.class) {
+				if (generation == mGeneration && mPool.size() < mDepth)
+					mPool.addLast(pair);
+			}
+		}
+	}
+
+	/**
+	 * Private key as an unsigned number of fixed length, so that it fills whole blocks.
+	 */
+	private static byte[] toFixedLength(BigInteger privateKey) {
+		byte[] bytes = privateKey.toByteArray();
+		byte[] result = new byte[EllipticCurveDeffieHellman.LENGTH_PRIVATE_KEY];
+		int length = Math.min(bytes.length, result.length);
+		System.arraycopy(bytes, bytes.length - length, result, result.length - length, length);
+		return result;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (mExecutor == null)
+			mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "KeyPairPool");
+					// mustn't keep the application alive or slow down the rest
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		return mExecutor;
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.WrongKeyDecryptionException;
+
+/**
+ *
+ * Session keys are a hash chain, every message is encrypted with the hash of the key of the previous one.
+ * Advancing the chain hashes the key in place with the thread's digest, so the steps don't allocate anything.
+ *
+ * When the chain is advanced past keys that weren't used, because their messages haven't arrived yet,
+ * those keys are remembered, so that the messages can still be decrypted when they do arrive.
+ * Only the last few keys are kept, encrypted with the master key, and each can be used only once.
+ * The keys are kept in memory, they are lost when the application stops.
+ *
+ * @author David Brazdil
+ *
+ */
+public final class KeyRatchet {
+	public static final int DEFAULT_CAPACITY = 64;
+
+	private static final int LENGTH_ENCRYPTED_KEY = Encryption.SYM_KEY_LENGTH + Encryption.SYM_OVERHEAD;
+
+	private static class SkippedKey {
+		String chain;
+		byte[] key = new byte[LENGTH_ENCRYPTED_KEY];
+	}
+
+	private final int mCapacity;
+	private final LinkedList<SkippedKey> mSkipped = new LinkedList<SkippedKey>(); // oldest first
+
+	/**
+	 * Instantiates a new ratchet that remembers up to given number of skipped keys.
+	 *
+	 * @param capacity the capacity
+	 */
+	public KeyRatchet(int capacity) {
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Hashes a key given number of times.
+	 *
+	 * @param key the key
+	 * @param count the count
+	 * @return new array with the result
+	 */
+	public static byte[] advance(byte[] key, int count) {
+		byte[] result = key.clone();
+		advanceInPlace(result, count);
+		return result;
+	}
+
+	/**
+	 * Hashes a key given number of times, overwriting it.
+	 *
+	 * @param key the key
+	 * @param count the count
+	 */
+	public static void advanceInPlace(byte[] key, int count) {
+		EncryptionInterface crypto = Encryption.getEncryption();
+		for (int i = 0; i < count; ++i)
+			crypto.getHash(key, 0, Encryption.SYM_KEY_LENGTH, key, 0);
+	}
+
+	/**
+	 * Hashes a key given number of times and remembers the intermediate keys that weren't used.
+	 * The key itself is the first intermediate key, the result is not one of them.
+	 *
+	 * @param chain identifier of the chain the key belongs to
+	 * @param key the key
+	 * @param count the count
+	 * @param used which of the intermediate keys were used, null if none
+	 * @return new array with the result
+	 */
+	public byte[] advance(String chain, byte[] key, int count, BitSet used) {
+		byte[] result = key.clone();
+		EncryptionInterface crypto = Encryption.getEncryption();
+		for (int i = 0; i < count; ++i) {
+			// older ones would be pushed out of the cache anyway
+			if (i >= count - mCapacity && (used == null || !used.get(i)))
+				remember(crypto, chain, result);
+			crypto.getHash(result, 0, Encryption.SYM_KEY_LENGTH, result, 0);
+		}
+		return result;
+	}
+
+	private void remember(EncryptionInterface crypto, String chain, byte[] key) {
+		SkippedKey skipped = new SkippedKey();
+		skipped.chain = chain;
+		try {
+			crypto.encryptAuthenticatedWithMasterKey(key, 0, Encryption.SYM_KEY_LENGTH, skipped.key, 0);
+		} catch (EncryptionException e) {
+			// can't be stored safely, so it's lost
+			return;
+		}
+
+		synchronized (this) {
+			mSkipped.addLast(skipped);
+			if (mSkipped.size() > mCapacity)
+				mSkipped.removeFirst();
+		}
+	}
+
+	/**
+	 * Returns the skipped keys of given chain, the most recent first.
+	 * Keys encrypted with a different master key are forgotten. If the master key
+	 * isn't available at the moment, only the keys decrypted so far are returned
+	 * and the rest are kept.
+	 *
+	 * @param chain identifier of the chain
+	 * @return the keys
+	 */
+	public synchronized ArrayList<byte[]> getSkipped(String chain) {
+		ArrayList<byte[]> keys = new ArrayList<byte[]>();
+		Iterator<SkippedKey> it = mSkipped.descendingIterator();
+		while (it.hasNext()) {
+			SkippedKey skipped = it.next();
+			if (!skipped.chain.equals(chain))
+				continue;
+			byte[] key = new byte[Encryption.SYM_KEY_LENGTH];
+			try {
+				Encryption.getEncryption().decryptAuthenticatedWithMasterKey(skipped.key, 0, LENGTH_ENCRYPTED_KEY, key, 0);
+				keys.add(key);
+			} catch (EncryptionException e) {
+				if (!isWrongKey(e))
+					// none of the others would decrypt either
+					break;
+				it.remove();
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Forgets a skipped key once it has been used.
+	 * Keys encrypted with a different master key are forgotten on the way.
+	 *
+	 * @param chain identifier of the chain
+	 * @param key the key
+	 * @return true, if the key was found; false also if the master key isn't available
+	 */
+	public synchronized boolean removeSkipped(String chain, byte[] key) {
+		byte[] decrypted = new byte[Encryption.SYM_KEY_LENGTH];
+		Iterator<SkippedKey> it = mSkipped.iterator();
+		try {
+			while (it.hasNext()) {
+				SkippedKey skipped = it.next();
+				if (!skipped.chain.equals(chain))
+					continue;
+				try {
+					Encryption.getEncryption().decryptAuthenticatedWithMasterKey(skipped.key, 0, LENGTH_ENCRYPTED_KEY, decrypted, 0);
+				} catch (EncryptionException e) {
+					if (!isWrongKey(e))
+						return false;
+					it.remove();
+					continue;
+				}
+				if (Arrays.equals(decrypted, key)) {
+					it.remove();
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			Arrays.fill(decrypted, (byte) 0);
+		}
+	}
+
+	/**
+	 * Forgets all the skipped keys of given chain, e.g. when it is replaced by a new one.
+	 *
+	 * @param chain identifier of the chain
+	 */
+	public synchronized void clear(String chain) {
+		Iterator<SkippedKey> it = mSkipped.iterator();
+		while (it.hasNext())
+			if (it.next().chain.equals(chain))
+				it.remove();
+	}
+
+	/**
+	 * Forgets all the skipped keys.
+	 */
+	public synchronized void clear() {
+		mSkipped.clear();
+	}
+
+	/**
+	 * Tells a MAC that doesn't match from other failures, e.g. the master key not being available.
+	 */
+	private static boolean isWrongKey(EncryptionException e) {
+		return e.getCause() instanceof WrongKeyDecryptionException;
+	}
+
+	/**
+	 * Returns the number of remembered keys.
+	 *
+	 * @return the number of keys
+	 */
+	public synchronized int size() {
+		return mSkipped.size();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.storage;
+
+/**
+ * Snapshot of the counters of one of the entity caches
+ *
+ * @author David Brazdil
+ *
+ */
+public class CacheStatistics {
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+	private int mSize;
+	private int mCapacity;
+
+	CacheStatistics(long hits, long misses, long evictions, int size, int capacity) {
+		mHits = hits;
+		mMisses = misses;
+		mEvictions = evictions;
+		mSize = size;
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Returns the number of lookups that found the instance in the cache.
+	 *
+	 * @return the hits
+	 */
+	public long getHits() {
+		return mHits;
+	}
+
+	/**
+	 * Returns the number of lookups that had to read and decrypt the entry from the file.
+	 *
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return mMisses;
+	}
+
+	/**
+	 * Returns the number of instances that were no longer held strongly because of the capacity.
+	 *
+	 * @return the evictions
+	 */
+	public long getEvictions() {
+		return mEvictions;
+	}
+
+	/**
+	 * Returns the number of instances in the cache at the time of the snapshot.
+	 *
+	 * @return the size
+	 */
+	public int getSize() {
+		return mSize;
+	}
+
+	/**
+	 * Returns the capacity of the cache, zero for unlimited.
+	 *
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return mCapacity;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions +
+		       " size=" + mSize + " capacity=" + mCapacity;
+	}
+}
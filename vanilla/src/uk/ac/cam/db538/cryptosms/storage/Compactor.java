@@ -0,0 +1,442 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ *
+ * Compacts the storage file while it stays in use.
+ *
+ * Live entries are moved towards the beginning of the file, so that each conversation
+ * ends up followed by its session keys and its messages, every message followed by its parts.
+ * All the indices pointing to moved entries are rewritten and the free entries
+ * left at the end of the file are cut off.
+ *
+ * The work is split into steps of bounded duration, each committed as a single transaction,
+ * so the file can be used in between. That includes reading the structure of the file,
+ * which goes on conversation by conversation. If the file is modified between two steps,
+ * the next step reads again only the conversations whose entries were written,
+ * or the whole structure if it doesn't know which ones they were.
+ *
+ * Free entries are tracked with the free space map during the compaction.
+ * If the file uses the linked list of Empty entries, it is converted back when finished.
+ *
+ * @author David Brazdil
+ *
+ */
+public class Compactor {
+	private static final byte KIND_CONVERSATION = 0;
+	private static final byte KIND_SESSIONKEYS = 1;
+	private static final byte KIND_MESSAGEDATA = 2;
+	private static final byte KIND_MESSAGEDATAPART = 3;
+	private static final byte KIND_FREESPACEMAP = 4;
+
+	private static final long STEP_TIME = 50; // milliseconds
+
+	/*
+	 * Planned entries of one conversation, starting with the conversation itself
+	 */
+	private static class Segment {
+		byte[] kinds;
+		long[] indices;
+	}
+
+	// STATIC
+
+	/**
+	 * Compacts the whole file, in short steps, so that other threads
+	 * can use the file in between.
+	 *
+	 * @return the compactor, for the statistics
+	 * @throws StorageFileException the storage file exception
+	 */
+	public static Compactor compact() throws StorageFileException {
+		Compactor compactor = new Compactor();
+		while (!compactor.step(STEP_TIME))
+			// let the threads waiting for the file have it first
+			Thread.yield();
+		return compactor;
+	}
+
+	// INTERNAL FIELDS
+	private byte[] mKinds; // planned entries in their target order, null if there's no valid plan
+	private long[] mIndices; // current indices of the planned entries
+	private HashMap<Long, Integer> mPlanned; // current index => position in the plan
+	private int mPosition; // planned entries before this one are in place
+	private long mModificationCount;
+	private boolean mFinished;
+
+	// reading of the structure, null when there's a valid plan
+	private HashMap<Long, Segment> mSegments; // conversation index => its planned entries
+	private HashMap<Long, Long> mOwners; // planned entry index => index of its conversation
+	private LinkedHashSet<Long> mWalked; // conversations read so far, in the order of the list
+	private long mWalkNext; // index of the next conversation to read, zero at the end of the list
+
+	private long mEntriesCountStart = -1L;
+	private long mBytesReclaimed;
+	private long mTimeSpent;
+	private int mEntriesMoved;
+
+	// FUNCTIONS
+
+	/**
+	 * Does the next part of the compaction, taking roughly no longer than given time.
+	 * Always makes some progress, even if it takes longer.
+	 *
+	 * @param timeLimit 	Time limit in milliseconds
+	 * @return true, if the compaction is finished
+	 * @throws StorageFileException the storage file exception
+	 */
+	public boolean step(long timeLimit) throws StorageFileException {
+		if (mFinished)
+			return true;
+
+		long timeStart = System.currentTimeMillis();
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			if (mEntriesCountStart < 0)
+				mEntriesCountStart = storage.getEntriesCount();
+			if (mKinds == null && mWalked == null)
+				startPlan(null);
+			else if (storage.getModificationCount() != mModificationCount) {
+				long[] modified = storage.getModifiedEntries(mModificationCount);
+				if (mKinds != null)
+					startPlan(modified);
+				else
+					invalidate(modified);
+			}
+
+			// the entries are only moved once the plan is complete
+			if (mKinds != null || walk(timeStart, timeLimit))
+				do {
+					if (mPosition < mKinds.length)
+						placeNext();
+					else {
+						finish();
+						break;
+					}
+				} while (System.currentTimeMillis() - timeStart < timeLimit);
+
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else {
+				storage.rollback();
+				mKinds = null;
+				mWalked = null;
+			}
+			mModificationCount = storage.getModificationCount();
+			mTimeSpent += System.currentTimeMillis() - timeStart;
+		}
+		return mFinished;
+	}
+
+	/**
+	 * Drops the plan and starts reading the structure of the file from the first conversation.
+	 * Conversations of the old plan that had none of given entries written by someone else
+	 * are planned as they were, all of them are read again if the entries aren't known.
+	 * Entries can't be added to or removed from a conversation without writing some
+	 * of the others, or the conversation itself.
+	 */
+	private void startPlan(long[] modified) throws StorageFileException {
+		FreeSpaceMap.createFreeSpaceMap();
+
+		mSegments = new HashMap<Long, Segment>();
+		mOwners = new HashMap<Long, Long>();
+		if (mKinds != null && modified != null) {
+			HashSet<Long> written = new HashSet<Long>();
+			for (long index : modified)
+				written.add(index);
+
+			// the chunks of the free space map are at the end
+			int start = 0;
+			while (start < mKinds.length && mKinds[start] == KIND_CONVERSATION) {
+				int end = start + 1;
+				while (end < mKinds.length && mKinds[end] != KIND_CONVERSATION && mKinds[end] != KIND_FREESPACEMAP)
+					++end;
+				boolean changed = false;
+				for (int i = start; i < end && !changed; ++i)
+					changed = written.contains(mIndices[i]);
+				if (!changed) {
+					Segment segment = new Segment();
+					segment.kinds = Arrays.copyOfRange(mKinds, start, end);
+					segment.indices = Arrays.copyOfRange(mIndices, start, end);
+					addSegment(segment);
+				}
+				start = end;
+			}
+		}
+
+		mKinds = null;
+		mIndices = null;
+		mPlanned = null;
+		mWalked = new LinkedHashSet<Long>();
+		mWalkNext = Header.getHeader().getIndexConversations();
+	}
+
+	/**
+	 * Forgets the conversations that had any of given entries written by someone else
+	 * while the structure is being read. The reading starts again from the first conversation
+	 * if the part of the list read so far might have changed, but the conversations
+	 * that weren't written are still planned as they were.
+	 */
+	private void invalidate(long[] modified) throws StorageFileException {
+		if (modified == null) {
+			startPlan(null);
+			return;
+		}
+
+		boolean restart = false;
+		for (long index : modified) {
+			// the header points to the first conversation
+			if (index == 0L)
+				restart = true;
+			Long owner = mOwners.get(index);
+			if (owner != null) {
+				mSegments.remove(owner);
+				if (mWalked.contains(owner))
+					restart = true;
+			}
+		}
+
+		if (restart) {
+			mWalked.clear();
+			mWalkNext = Header.getHeader().getIndexConversations();
+		}
+	}
+
+	/**
+	 * Continues reading the list of conversations, taking roughly no longer than given time,
+	 * and makes the plan once it reaches the end. Always reads at least one conversation.
+	 *
+	 * @return true, if the plan is complete
+	 */
+	private boolean walk(long timeStart, long timeLimit) throws StorageFileException {
+		while (mWalkNext != 0L) {
+			Conversation conv = Conversation.getConversation(mWalkNext);
+			if (!mSegments.containsKey(mWalkNext))
+				addSegment(planConversation(conv));
+			mWalked.add(mWalkNext);
+			mWalkNext = conv.getIndexNext();
+			if (System.currentTimeMillis() - timeStart >= timeLimit)
+				break;
+		}
+		if (mWalkNext != 0L)
+			return false;
+
+		ArrayList<Byte> kinds = new ArrayList<Byte>();
+		ArrayList<Long> indices = new ArrayList<Long>();
+		for (long index : mWalked) {
+			Segment segment = mSegments.get(index);
+			for (int i = 0; i < segment.kinds.length; ++i) {
+				kinds.add(segment.kinds[i]);
+				indices.add(segment.indices[i]);
+			}
+		}
+		mSegments = null;
+		mOwners = null;
+		mWalked = null;
+
+		setPlan(kinds, indices);
+		return true;
+	}
+
+	private void addSegment(Segment segment) {
+		long conv = segment.indices[0];
+		mSegments.put(conv, segment);
+		for (long index : segment.indices)
+			mOwners.put(index, conv);
+	}
+
+	/**
+	 * Reads a conversation and all its entries in their target order.
+	 */
+	private static Segment planConversation(Conversation conv) throws StorageFileException {
+		ArrayList<Byte> kinds = new ArrayList<Byte>();
+		ArrayList<Long> indices = new ArrayList<Long>();
+
+		kinds.add(KIND_CONVERSATION);
+		indices.add(conv.getEntryIndex());
+
+		SessionKeys keys = conv.getFirstSessionKeys();
+		while (keys != null) {
+			kinds.add(KIND_SESSIONKEYS);
+			indices.add(keys.getEntryIndex());
+			keys = keys.getNextSessionKeys();
+		}
+
+		MessageData msg = conv.getFirstMessageData();
+		while (msg != null) {
+			kinds.add(KIND_MESSAGEDATA);
+			indices.add(msg.getEntryIndex());
+
+			MessageDataPart part = msg.getFirstMessageDataPart();
+			while (part != null) {
+				kinds.add(KIND_MESSAGEDATAPART);
+				indices.add(part.getEntryIndex());
+				part = part.getNextMessageDataPart();
+			}
+
+			msg = msg.getNextMessageData();
+		}
+
+		Segment segment = new Segment();
+		segment.kinds = new byte[kinds.size()];
+		segment.indices = new long[indices.size()];
+		for (int i = 0; i < segment.kinds.length; ++i) {
+			segment.kinds[i] = kinds.get(i);
+			segment.indices[i] = indices.get(i);
+		}
+		return segment;
+	}
+
+	/**
+	 * Adds the chunks of the free space map behind the planned conversations and makes it the plan.
+	 * The entries already in their place needn't be looked at again.
+	 */
+	private void setPlan(ArrayList<Byte> kinds, ArrayList<Long> indices) throws StorageFileException {
+		// last, so that the chunks released by shrinking are at the very end
+		for (long index : FreeSpaceMap.getFreeSpaceMap().getChunkIndices()) {
+			kinds.add(KIND_FREESPACEMAP);
+			indices.add(index);
+		}
+
+		mKinds = new byte[kinds.size()];
+		mIndices = new long[indices.size()];
+		mPlanned = new HashMap<Long, Integer>(indices.size() * 2);
+		for (int i = 0; i < mKinds.length; ++i) {
+			mKinds[i] = kinds.get(i);
+			mIndices[i] = indices.get(i);
+			mPlanned.put(mIndices[i], i);
+		}
+
+		// the header is at index zero
+		mPosition = 0;
+		while (mPosition < mIndices.length && mIndices[mPosition] == mPosition + 1)
+			++mPosition;
+	}
+
+	/**
+	 * Moves the next planned entry to its place right behind the previous one.
+	 * If the place is taken by an entry planned for later, that one is moved out of the way first.
+	 */
+	private void placeNext() throws StorageFileException {
+		// the header is at index zero
+		long target = mPosition + 1;
+		if (mIndices[mPosition] != target) {
+			FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+			if (!map.isFree(target)) {
+				Integer other = mPlanned.get(target);
+				if (other == null)
+					throw new StorageFileException("Entry " + target + " is neither free nor used");
+				// preferably behind the area being compacted
+				moveEntry(other, map.allocate(1, mKinds.length + 1)[0]);
+			}
+			map.take(target);
+			moveEntry(mPosition, target);
+		}
+		++mPosition;
+	}
+
+	private void moveEntry(int position, long index) throws StorageFileException {
+		long indexOld = mIndices[position];
+		switch (mKinds[position]) {
+		case KIND_CONVERSATION:
+			Conversation.getConversation(indexOld).moveTo(index);
+			break;
+		case KIND_SESSIONKEYS:
+			SessionKeys.getSessionKeys(indexOld).moveTo(index);
+			break;
+		case KIND_MESSAGEDATA:
+			MessageData.getMessageData(indexOld).moveTo(index);
+			break;
+		case KIND_MESSAGEDATAPART:
+			MessageDataPart.getMessageDataPart(indexOld).moveTo(index);
+			break;
+		case KIND_FREESPACEMAP:
+			FreeSpaceMap.getFreeSpaceMap().moveChunk(indexOld, index);
+			break;
+		}
+
+		mPlanned.remove(indexOld);
+		mPlanned.put(index, position);
+		mIndices[position] = index;
+		++mEntriesMoved;
+	}
+
+	/**
+	 * Cuts off the free entries at the end of the file and converts it back
+	 * to the linked list of Empty entries if that's what it should use.
+	 */
+	private void finish() throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		FreeSpaceMap.getFreeSpaceMap().shrinkFile();
+		storage.updateFreeSpaceMap();
+
+		mBytesReclaimed = Math.max(0L, mEntriesCountStart - storage.getEntriesCount()) * Storage.CHUNK_SIZE;
+		mFinished = true;
+		mKinds = null;
+		mIndices = null;
+		mPlanned = null;
+	}
+
+	// GETTERS
+
+	/**
+	 * Returns whether the compaction is finished.
+	 *
+	 * @return true, if finished
+	 */
+	public boolean isFinished() {
+		return mFinished;
+	}
+
+	/**
+	 * Returns by how many bytes the file got shorter.
+	 * Zero until the compaction is finished.
+	 *
+	 * @return the bytes reclaimed
+	 */
+	public long getBytesReclaimed() {
+		return mBytesReclaimed;
+	}
+
+	/**
+	 * Returns the time spent in all the steps so far, in milliseconds.
+	 *
+	 * @return the time spent
+	 */
+	public long getTimeSpent() {
+		return mTimeSpent;
+	}
+
+	/**
+	 * Returns the number of entries moved so far.
+	 *
+	 * @return the number of entries moved
+	 */
+	public int getEntriesMoved() {
+		return mEntriesMoved;
+	}
+}
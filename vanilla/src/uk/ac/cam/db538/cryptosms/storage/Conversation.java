@@ -17,13 +17,14 @@ package uk.ac.cam.db538.cryptosms.storage;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeComparator;
 import org.joda.time.format.DateTimeFormat;
 
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
-import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
 import uk.ac.cam.db538.cryptosms.utils.Charset;
 import uk.ac.cam.db538.cryptosms.utils.LowLevel;
 import uk.ac.cam.db538.cryptosms.utils.PhoneNumber;
@@ -55,16 +56,37 @@ public class Conversation implements Comparable<Conversation> {
 	
 	// STATIC
 	
-	private static ArrayList<Conversation> cacheConversation = new ArrayList<Conversation>();
+	private static EntryCache<Conversation> cacheConversation = new EntryCache<Conversation>(Storage.getCacheCapacity());
+	
+	// conversation indices by PhoneNumber.getMatchKey() of their phone numbers,
+	// null until first needed
+	private static volatile HashMap<String, ArrayList<Long>> indexPhoneNumbers = null;
 	
 	/**
 	 * Removes all instances from the list of cached objects.
 	 * Be sure you don't use the instances afterwards.
 	 */
 	public static void forceClearCache() {
-		synchronized (cacheConversation) {
-			cacheConversation = new ArrayList<Conversation>();
-		}
+		cacheConversation.clear();
+		indexPhoneNumbers = null;
+	}
+	
+	/**
+	 * Sets how many instances are kept in memory when they're not in use.
+	 *
+	 * @param capacity the capacity, zero for unlimited
+	 */
+	static void setCacheCapacity(int capacity) {
+		cacheConversation.setCapacity(capacity);
+	}
+	
+	/**
+	 * Returns the hit/miss/eviction counters of the conversation cache.
+	 *
+	 * @return the cache statistics
+	 */
+	public static CacheStatistics getCacheStatistics() {
+		return cacheConversation.getStatistics();
 	}
 	
 	/**
@@ -74,11 +96,22 @@ public class Conversation implements Comparable<Conversation> {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public static Conversation createConversation() throws StorageFileException {
-		// create a new one
-		Conversation conv = new Conversation(Empty.getEmptyIndex(), false);
-		Header.getHeader().attachConversation(conv);
-		Storage.notifyChange();
-		return conv;
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			// create a new one
+			Conversation conv = new Conversation(Empty.getEmptyIndex(), false);
+			Header.getHeader().attachConversation(conv);
+			Storage.notifyChange();
+			success = true;
+			return conv;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}	
 	
 	/**
@@ -89,13 +122,85 @@ public class Conversation implements Comparable<Conversation> {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public static Conversation getConversation(String phoneNumber) throws StorageFileException {
+		String key = PhoneNumber.getMatchKey(phoneNumber);
+		if (key == null) {
+			// can't be hashed => go through all of them
+			Conversation conv = Header.getHeader().getFirstConversation();
+			while (conv != null) {
+				if (PhoneNumber.compare(conv.getPhoneNumber(), phoneNumber))
+					return conv;
+				conv = conv.getNextConversation();
+			}
+			return null;
+		}
+		
+		HashMap<String, ArrayList<Long>> index = indexPhoneNumbers;
+		if (index == null)
+			index = buildPhoneNumberIndex();
+		
+		long[] candidates;
+		synchronized (index) {
+			ArrayList<Long> indices = index.get(key);
+			if (indices == null)
+				return null;
+			candidates = new long[indices.size()];
+			for (int i = 0; i < candidates.length; ++i)
+				candidates[i] = indices.get(i);
+		}
+		
+		// numbers with the same key still don't have to match
+		for (Conversation conv : getConversations(candidates)) {
+			if (conv != null && PhoneNumber.compare(conv.getPhoneNumber(), phoneNumber))
+				return conv;
+		}
+		return null;
+	}
+
+	/**
+	 * Goes through all the conversations and indexes them by their phone numbers.
+	 * The index is then kept up to date by setPhoneNumber() and delete().
+	 *
+	 * @return the index
+	 * @throws StorageFileException the storage file exception
+	 */
+	private static HashMap<String, ArrayList<Long>> buildPhoneNumberIndex() throws StorageFileException {
+		HashMap<String, ArrayList<Long>> index = new HashMap<String, ArrayList<Long>>();
 		Conversation conv = Header.getHeader().getFirstConversation();
 		while (conv != null) {
-			if (PhoneNumber.compare(conv.getPhoneNumber(), phoneNumber))
-				return conv;
+			addToPhoneNumberIndex(index, conv.getPhoneNumber(), conv.getEntryIndex());
 			conv = conv.getNextConversation();
 		}
-		return null;
+		indexPhoneNumbers = index;
+		return index;
+	}
+	
+	private static void addToPhoneNumberIndex(HashMap<String, ArrayList<Long>> index, String phoneNumber, long entryIndex) {
+		String key = PhoneNumber.getMatchKey(phoneNumber);
+		if (index == null || key == null)
+			return;
+		synchronized (index) {
+			ArrayList<Long> indices = index.get(key);
+			if (indices == null) {
+				indices = new ArrayList<Long>(1);
+				index.put(key, indices);
+			}
+			if (!indices.contains(entryIndex))
+				indices.add(entryIndex);
+		}
+	}
+	
+	private static void removeFromPhoneNumberIndex(HashMap<String, ArrayList<Long>> index, String phoneNumber, long entryIndex) {
+		String key = PhoneNumber.getMatchKey(phoneNumber);
+		if (index == null || key == null)
+			return;
+		synchronized (index) {
+			ArrayList<Long> indices = index.get(key);
+			if (indices == null)
+				return;
+			indices.remove(Long.valueOf(entryIndex));
+			if (indices.isEmpty())
+				index.remove(key);
+		}
 	}
 
 	/**
@@ -110,25 +215,70 @@ public class Conversation implements Comparable<Conversation> {
 			return null;
 		
 		// try looking it up
-		synchronized (cacheConversation) {
-			for (Conversation conv: cacheConversation)
-				if (conv.getEntryIndex() == index)
-					return conv; 
-		}
+		Conversation cached = cacheConversation.get(index);
+		if (cached != null)
+			return cached;
 		
 		// create a new one
 		return new Conversation(index, true);
 	}
 	
+	/**
+	 * Returns instances of Conversation class with given indices in file, in the same order.
+	 * Entries that don't have an instance yet are read in one pass and decrypted in parallel.
+	 *
+	 * @param indices 	Indices in file
+	 * @return the conversations, null for indices that aren't positive
+	 * @throws StorageFileException the storage file exception
+	 */
+	static ArrayList<Conversation> getConversations(long[] indices) throws StorageFileException {
+		Conversation[] found = new Conversation[indices.length];
+		long[] missing = new long[indices.length];
+		int countMissing = 0;
+		for (int i = 0; i < indices.length; ++i)
+			if (indices[i] > 0L && (found[i] = cacheConversation.get(indices[i])) == null)
+				missing[countMissing++] = indices[i];
+		
+		byte[][] dataPlain = EntryPrefetcher.getDecryptedEntries(Arrays.copyOf(missing, countMissing));
+		ArrayList<Conversation> result = new ArrayList<Conversation>(indices.length);
+		for (int i = 0, j = 0; i < indices.length; ++i) {
+			if (indices[i] > 0L && found[i] == null) {
+				// could have been created in the meantime
+				found[i] = cacheConversation.get(indices[i]);
+				if (found[i] == null)
+					found[i] = new Conversation(indices[i], dataPlain[j]);
+				++j;
+			}
+			result.add(found[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Reads ahead and decrypts the entries starting with given index, 
+	 * unless there already is an instance for it.
+	 *
+	 * @param index 	Index of the next entry in a list, zero if there isn't any
+	 * @throws StorageFileException the storage file exception
+	 */
+	static void prefetch(long index) throws StorageFileException {
+		if (index > 0L && !cacheConversation.contains(index))
+			EntryPrefetcher.prefetchRun(index);
+	}
+	
 	/**
 	 * Explicitly requests each conversation in the file to be loaded to memory.
 	 *
 	 * @throws StorageFileException the storage file exception
 	 */
 	public static void cacheAllConversations() throws StorageFileException {
-		Conversation convCurrent = Header.getHeader().getFirstConversation();
-		while (convCurrent != null) 
+		Header header = Header.getHeader();
+		prefetch(header.getIndexConversations());
+		Conversation convCurrent = header.getFirstConversation();
+		while (convCurrent != null) {
+			prefetch(convCurrent.getIndexNext());
 			convCurrent = convCurrent.getNextConversation();
+		}
 	}
 	
 	// INTERNAL FIELDS
@@ -142,17 +292,19 @@ public class Conversation implements Comparable<Conversation> {
 	// CONSTRUCTORS
 	
 	private Conversation(long index, boolean readFromFile) throws StorageFileException {
+		this(index, readFromFile ? EntryPrefetcher.getDecryptedEntry(index) : null);
+	}
+	
+	/**
+	 * Constructor
+	 * @param index			Which chunk of data should occupy in file
+	 * @param dataPlain		Decrypted data of the entry, null if it should be created
+	 * @throws StorageFileException
+	 */
+	private Conversation(long index, byte[] dataPlain) throws StorageFileException {
 		mEntryIndex = index;
 		
-		if (readFromFile) {
-			byte[] dataEncrypted = Storage.getStorage().getEntry(index);
-			byte[] dataPlain;
-			try {
-				dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
-			} catch (EncryptionException e) {
-				throw new StorageFileException(e);
-			}
-			
+		if (dataPlain != null) {
 			setPhoneNumber(Charset.fromAscii8(dataPlain, OFFSET_PHONENUMBER, LENGTH_PHONENUMBER));
 			setIndexSessionKeys(LowLevel.getUnsignedInt(dataPlain, OFFSET_KEYSINDEX));
 			setIndexMessages(LowLevel.getUnsignedInt(dataPlain, OFFSET_MSGSINDEX));
@@ -170,13 +322,26 @@ public class Conversation implements Comparable<Conversation> {
 			saveToFile();
 		}
 
-		synchronized (cacheConversation) {
-			cacheConversation.add(this);
-		}
+		cacheConversation.put(mEntryIndex, this);
 	}
 
 	// FUNCTIONS
 	
+	/**
+	 * Pins this instance in the cache, so that it isn't evicted until unpinned.
+	 * Every call has to be matched by a call to unpin().
+	 */
+	public void pin() {
+		cacheConversation.pin(mEntryIndex, this);
+	}
+	
+	/**
+	 * Releases a pin of this instance in the cache.
+	 */
+	public void unpin() {
+		cacheConversation.unpin(mEntryIndex);
+	}
+	
 	/**
 	 * Saves data to the storage file.
 	 *
@@ -201,13 +366,7 @@ public class Conversation implements Comparable<Conversation> {
 		convBuffer.put(LowLevel.getBytesUnsignedInt(this.mIndexPrev));
 		convBuffer.put(LowLevel.getBytesUnsignedInt(this.mIndexNext));
 		
-		byte[] dataEncrypted = null;
-		try {
-			dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(convBuffer.array());
-		} catch (EncryptionException e) {
-			throw new StorageFileException(e);
-		}
-		Storage.getStorage().setEntry(this.mEntryIndex, dataEncrypted);
+		Storage.getStorage().setEntry(this.mEntryIndex, Storage.encryptEntry(convBuffer.array()));
 	}
 
 	/**
@@ -307,9 +466,11 @@ public class Conversation implements Comparable<Conversation> {
 	 */
 	public ArrayList<MessageData> getMessages() throws StorageFileException {
 		ArrayList<MessageData> list = new ArrayList<MessageData>();
+		MessageData.prefetch(mIndexMessages);
 		MessageData msg = getFirstMessageData();
 		while (msg != null) {
 			list.add(msg);
+			MessageData.prefetch(msg.getIndexNext());
 			msg = msg.getNextMessageData();
 		}
 		return list;
@@ -321,53 +482,123 @@ public class Conversation implements Comparable<Conversation> {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public void delete() throws StorageFileException {
-		Conversation prev = this.getPreviousConversation();
-		Conversation next = this.getNextConversation(); 
-
-		if (prev != null) {
-			// this is not the first Conversation in the list
-			// update the previous one
-			prev.setIndexNext(this.getIndexNext());
-			prev.saveToFile();
-		} else {
-			// this IS the first Conversation in the list
-			// update parent
-			Header header = Header.getHeader();
-			header.setIndexConversations(this.getIndexNext());
-			header.saveToFile();
-		}
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			Conversation prev = this.getPreviousConversation();
+			Conversation next = this.getNextConversation(); 
+
+			if (prev != null) {
+				// this is not the first Conversation in the list
+				// update the previous one
+				prev.setIndexNext(this.getIndexNext());
+				prev.saveToFile();
+			} else {
+				// this IS the first Conversation in the list
+				// update parent
+				Header header = Header.getHeader();
+				header.setIndexConversations(this.getIndexNext());
+				header.saveToFile();
+			}
 		
-		// update next one
-		if (next != null) {
-			next.setIndexPrev(this.getIndexPrev());
-			next.saveToFile();
-		}
+			// update next one
+			if (next != null) {
+				next.setIndexPrev(this.getIndexPrev());
+				next.saveToFile();
+			}
 		
-		// delete all of the SessionKeys
-		SessionKeys keys = getFirstSessionKeys();
-		while (keys != null) {
-			keys.delete();
-			keys = getFirstSessionKeys();
-		}
+			// delete all of the SessionKeys
+			SessionKeys keys = getFirstSessionKeys();
+			while (keys != null) {
+				keys.delete();
+				keys = getFirstSessionKeys();
+			}
 		
-		// delete all of the MessageDatas
-		MessageData msg = getFirstMessageData();
-		while (msg != null) {
-			msg.delete();
-			msg = getFirstMessageData();
-		}
+			// delete all of the MessageDatas
+			MessageData msg = getFirstMessageData();
+			while (msg != null) {
+				msg.delete();
+				msg = getFirstMessageData();
+			}
 
-		// delete this conversation
-		Empty.replaceWithEmpty(mEntryIndex);
+			// delete this conversation
+			Empty.replaceWithEmpty(mEntryIndex);
 		
-		// remove from cache
-		synchronized (cacheConversation) {
-			cacheConversation.remove(this);
-		}
-		Storage.notifyChange();
+			// remove from cache
+			cacheConversation.remove(mEntryIndex);
+			removeFromPhoneNumberIndex(indexPhoneNumbers, mPhoneNumber, mEntryIndex);
+			Storage.notifyChange();
 		
-		// make this instance invalid
-		this.mEntryIndex = -1L;
+			// make this instance invalid
+			this.mEntryIndex = -1L;
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Moves the conversation to a different entry of the file and updates all the indices 
+	 * pointing to it. The target entry has to be taken out of the free space beforehand, 
+	 * the original one is replaced with an Empty entry.
+	 *
+	 * @param index 	Index of the target entry
+	 * @throws StorageFileException the storage file exception
+	 */
+	void moveTo(long index) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			long indexOld = mEntryIndex;
+			Conversation prev = this.getPreviousConversation();
+			Conversation next = this.getNextConversation();
+
+			mEntryIndex = index;
+			cacheConversation.move(indexOld, index);
+			removeFromPhoneNumberIndex(indexPhoneNumbers, mPhoneNumber, indexOld);
+			addToPhoneNumberIndex(indexPhoneNumbers, mPhoneNumber, index);
+			saveToFile();
+
+			if (prev != null) {
+				prev.setIndexNext(index);
+				prev.saveToFile();
+			} else {
+				Header header = Header.getHeader();
+				header.setIndexConversations(index);
+				header.saveToFile();
+			}
+			if (next != null) {
+				next.setIndexPrev(index);
+				next.saveToFile();
+			}
+
+			// children point back to this one
+			SessionKeys keys = getFirstSessionKeys();
+			while (keys != null) {
+				keys.setIndexParent(index);
+				keys.saveToFile();
+				keys = keys.getNextSessionKeys();
+			}
+			MessageData msg = getFirstMessageData();
+			while (msg != null) {
+				msg.setIndexParent(index);
+				msg.saveToFile();
+				msg = msg.getNextMessageData();
+			}
+
+			Empty.replaceWithEmpty(indexOld);
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}
 
 	/**
@@ -404,49 +635,60 @@ public class Conversation implements Comparable<Conversation> {
 			// no point in continuing
 			return;
 		
-		boolean canBeReplaced = false;
-		boolean sthToDelete = false;
-		SessionKeys keys = this.getFirstSessionKeys();
-		while (keys != null) {
-			// go through all the assigned keys
-			// look for ones matching the param original
-			if (keys.getSimNumber().equals(original))
-				// so SIM number of this key should be replaced
-				canBeReplaced = true;
-			if (keys.getSimNumber().equals(replacement))
-				// this matches the new SIM number
-				// will be deleted if sth is replaced
-				sthToDelete = true;
-			keys = keys.getNextSessionKeys();
-		}
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			boolean canBeReplaced = false;
+			boolean sthToDelete = false;
+			SessionKeys keys = this.getFirstSessionKeys();
+			while (keys != null) {
+				// go through all the assigned keys
+				// look for ones matching the param original
+				if (keys.getSimNumber().equals(original))
+					// so SIM number of this key should be replaced
+					canBeReplaced = true;
+				if (keys.getSimNumber().equals(replacement))
+					// this matches the new SIM number
+					// will be deleted if sth is replaced
+					sthToDelete = true;
+				keys = keys.getNextSessionKeys();
+			}
 
-		if (canBeReplaced) {
-			if (sthToDelete) {
-				keys = this.getFirstSessionKeys();
-				while (keys != null) {
-					if (keys.getSimNumber().equals(replacement))
-						keys.delete();
-					keys = keys.getNextSessionKeys();
+			if (canBeReplaced) {
+				if (sthToDelete) {
+					keys = this.getFirstSessionKeys();
+					while (keys != null) {
+						if (keys.getSimNumber().equals(replacement))
+							keys.delete();
+						keys = keys.getNextSessionKeys();
+					}
 				}
-			}
 			
-			boolean found = false;
-			keys = this.getFirstSessionKeys();
-			while (keys != null) {
-				if (keys.getSimNumber().equals(original)) {
-					// if this is the first key matching original,
-					// its SIM number will be replaced
-					// otherwise deleted because it's redundant
-					if (found)
-						keys.delete();
-					else {
-						keys.setSimNumber(replacement);
-						keys.saveToFile();
-						found = true;
+				boolean found = false;
+				keys = this.getFirstSessionKeys();
+				while (keys != null) {
+					if (keys.getSimNumber().equals(original)) {
+						// if this is the first key matching original,
+						// its SIM number will be replaced
+						// otherwise deleted because it's redundant
+						if (found)
+							keys.delete();
+						else {
+							keys.setSimNumber(replacement);
+							keys.saveToFile();
+							found = true;
+						}
 					}
+					keys = keys.getNextSessionKeys();
 				}
-				keys = keys.getNextSessionKeys();
 			}
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
 		}
 	}
 	
@@ -459,14 +701,25 @@ public class Conversation implements Comparable<Conversation> {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public void deleteSessionKeys(SimNumber simNumber) throws StorageFileException {
-		SessionKeys temp, keys = getFirstSessionKeys();
-		while (keys != null) {
-			temp = keys.getNextSessionKeys();
-			if (keys.getSimNumber().equals(simNumber))
-				keys.delete();
-			keys = temp;
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			SessionKeys temp, keys = getFirstSessionKeys();
+			while (keys != null) {
+				temp = keys.getNextSessionKeys();
+				if (keys.getSimNumber().equals(simNumber))
+					keys.delete();
+				keys = temp;
+			}
+			Storage.notifyChange();
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
 		}
-		Storage.notifyChange();
 	}
 
 
@@ -519,12 +772,23 @@ public class Conversation implements Comparable<Conversation> {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public static void changeAllSessionKeys(SimNumber original, SimNumber replacement) throws StorageFileException {
-		Conversation conv = Header.getHeader().getFirstConversation();
-		while (conv != null) {
-			conv.replaceSessionKeys(original, replacement);
-			conv = conv.getNextConversation();
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			Conversation conv = Header.getHeader().getFirstConversation();
+			while (conv != null) {
+				conv.replaceSessionKeys(original, replacement);
+				conv = conv.getNextConversation();
+			}
+			Storage.notifyChange();
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
 		}
-		Storage.notifyChange();
 	}
 	
 	/**
@@ -592,7 +856,10 @@ public class Conversation implements Comparable<Conversation> {
 	}
 
 	public void setPhoneNumber(String phoneNumber) {
+		HashMap<String, ArrayList<Long>> index = indexPhoneNumbers;
+		removeFromPhoneNumberIndex(index, this.mPhoneNumber, mEntryIndex);
 		this.mPhoneNumber = phoneNumber;
+		addToPhoneNumberIndex(index, this.mPhoneNumber, mEntryIndex);
 	}
 
 	long getIndexSessionKeys() {
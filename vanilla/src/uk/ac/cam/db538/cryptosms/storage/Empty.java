@@ -16,10 +16,8 @@
 package uk.ac.cam.db538.cryptosms.storage;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
-import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
 import uk.ac.cam.db538.cryptosms.utils.LowLevel;
 
 /**
@@ -31,33 +29,44 @@ import uk.ac.cam.db538.cryptosms.utils.LowLevel;
  */
 class Empty {
 	// FILE FORMAT
-	private static final int OFFSET_NEXTINDEX = Storage.ENCRYPTED_ENTRY_SIZE - 4;
+	private static final int LENGTH_NEXTINDEX = 4;
+	private static final int OFFSET_NEXTINDEX = Storage.ENCRYPTED_ENTRY_SIZE - LENGTH_NEXTINDEX;
 	
 	// STATIC
 	
-	private static ArrayList<Empty> cacheEmpty = new ArrayList<Empty>();
+	private static EntryCache<Empty> cacheEmpty = new EntryCache<Empty>();
 
 	/**
 	 * Removes all instances from the list of cached objects.
 	 * Be sure you don't use the instances afterwards.
 	 */
 	public static void forceClearCache() {
-		synchronized (cacheEmpty) {
-			cacheEmpty = new ArrayList<Empty>();
-		}
+		cacheEmpty.clear();
 	}
 	
 	/**
 	 * Returns an instance of Empty class at the end of the file.
+	 * Only to be used when the file doesn't have a free space map.
 	 *
 	 * @return the empty
 	 * @throws StorageFileException the storage file exception
 	 */
 	static Empty createEmpty() throws StorageFileException {
-		// create a new one at the end of the file
-		Empty empty = new Empty(Storage.getStorage().getEntriesCount(), false);
-		Header.getHeader().attachEmpty(empty);
-		return empty;
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			// create a new one at the end of the file
+			Empty empty = new Empty(storage.getEntriesCount(), false);
+			Header.getHeader().attachEmpty(empty);
+			success = true;
+			return empty;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}
 
 	/**
@@ -72,11 +81,9 @@ class Empty {
 			return null;
 		
 		// try looking it up
-		synchronized (cacheEmpty) {
-			for (Empty empty: cacheEmpty)
-				if (empty.getEntryIndex() == index)
-					return empty; 
-		}
+		Empty cached = cacheEmpty.get(index);
+		if (cached != null)
+			return cached;
 		
 		// create a new one
 		return new Empty(index, true);
@@ -85,15 +92,35 @@ class Empty {
 	/**
 	 * Creates a new Empty class at the index of an already existing element.
 	 * This old element has to make sure that it there are no pointers pointing to it before it asks to be written over.
+	 * If the file has a free space map, the entry is only marked as free there.
 	 *
 	 * @param index 	Index in the file
-	 * @return the empty
+	 * @return the empty, or null if the file has a free space map
 	 * @throws StorageFileException the storage file exception
 	 */
 	static Empty replaceWithEmpty(long index) throws StorageFileException {
-		Empty empty = new Empty(index, false);
-		Header.getHeader().attachEmpty(empty);
-		return empty;
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+			if (map != null) {
+				// no Empty entries with the free space map
+				map.free(index);
+				success = true;
+				return null;
+			}
+			
+			Empty empty = new Empty(index, false);
+			Header.getHeader().attachEmpty(empty);
+			success = true;
+			return empty;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}
 	
 	/**
@@ -105,6 +132,17 @@ class Empty {
 		return getEmptyIndices(1)[0];
 	}
 	
+	/**
+	 * Returns an index of a single entry that is now available to be replaced by useful data entry,
+	 * preferably close to given index (only with the free space map).
+	 * @param near 	Index the entry should be close to
+	 * @return
+	 * @throws StorageFileException
+	 */
+	static long getEmptyIndex(long near) throws StorageFileException {
+		return getEmptyIndices(1, near)[0];
+	}
+	
 	/**
 	 * Returns an index of several entries that were removed from the linked list of empty entries and are now available to be replaced by useful data entry.
 	 *
@@ -113,29 +151,97 @@ class Empty {
 	 * @throws StorageFileException the storage file exception
 	 */
 	static long[] getEmptyIndices(int count) throws StorageFileException {
-		long[] indices = new long[count];
+		return getEmptyIndices(count, 0L);
+	}
+	
+	/**
+	 * Returns an index of several entries that are now available to be replaced by useful data entry.
+	 * With the free space map, they are placed close to given index, consecutively if possible.
+	 * The linked list of empty entries ignores the hint.
+	 *
+	 * @param count 	Number of entries requested
+	 * @param near 		Index the entries should be close to
+	 * @return the empty indices
+	 * @throws StorageFileException the storage file exception
+	 */
+	static long[] getEmptyIndices(int count, long near) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+			if (map != null) {
+				success = true;
+				return map.allocate(count, near);
+			}
+			
+			long[] indices = new long[count];
 
-		Header header = Header.getHeader();
-		for (int i = 0; i < count; ++i) {
-			Empty empty;
-			while ((empty = header.getFirstEmpty()) == null) {
-				// there are no free entries left
-				// => add some
-				addEmptyEntries(Storage.ALIGN_SIZE / Storage.CHUNK_SIZE);
+			Header header = Header.getHeader();
+			for (int i = 0; i < count; ++i) {
+				Empty empty;
+				while ((empty = header.getFirstEmpty()) == null) {
+					// there are no free entries left
+					// => add some
+					addEmptyEntries(Storage.ALIGN_SIZE / Storage.CHUNK_SIZE);
+				}
+				// remove the entry from stack
+				header.setIndexEmpty(empty.getIndexNext());
+				// remove from cache
+				cacheEmpty.remove(empty.getEntryIndex());
+				// return the index of the freed entry
+				indices[i] = empty.getEntryIndex();
 			}
-			// remove the entry from stack
-			header.setIndexEmpty(empty.getIndexNext());
-			// remove from cache
-			synchronized (cacheEmpty) {				
-				cacheEmpty.remove(empty);
+			// save header
+			header.saveToFile();
+		
+			success = true;
+			return indices;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+	
+	/**
+	 * Returns the first index of a run of consecutive entries that are now available 
+	 * to be replaced by useful data entries, preferably close to given index.
+	 * Without the free space map, the run is always appended to the end of the file.
+	 *
+	 * @param count 	Number of entries requested
+	 * @param near 		Index the entries should be close to
+	 * @return the index of the first entry
+	 * @throws StorageFileException the storage file exception
+	 */
+	static long getEmptyRun(int count, long near) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			long first;
+			FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+			if (map != null)
+				first = map.allocateRun(count, near);
+			else {
+				// the linked list can't tell which entries are consecutive
+				first = storage.getEntriesCount();
+				byte[] random = Encryption.getEncryption().generateRandomData(count * Storage.CHUNK_SIZE);
+				for (int i = 0; i < count; ++i)
+					storage.setEntry(first + i, LowLevel.cutData(random, i * Storage.CHUNK_SIZE, Storage.CHUNK_SIZE));
+				// keep the file aligned
+				while (storage.getEntriesCount() % (Storage.ALIGN_SIZE / Storage.CHUNK_SIZE) != 0)
+					createEmpty();
 			}
-			// return the index of the freed entry
-			indices[i] = empty.getEntryIndex();
+			success = true;
+			return first;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
 		}
-		// save header
-		header.saveToFile();
-		
-		return indices;
 	}
 	
 	/**
@@ -145,19 +251,40 @@ class Empty {
 	 * @throws StorageFileException the storage file exception
 	 */
 	static void addEmptyEntries(int count) throws StorageFileException {
-		for (int i = 0; i < count; ++i) {
-			// create the empty entry
-			Empty.createEmpty();
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+			if (map != null)
+				// all of them in one go
+				map.addFreeEntries(count);
+			else
+				for (int i = 0; i < count; ++i) {
+					// create the empty entry
+					Empty.createEmpty();
+				}
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
 		}
 	}
 
 	/**
 	 * Count the number of empty entries available
-	 * NOTE: Will cache all of them! It is intended to be used only by the testing classes.
+	 * NOTE: Unless the file has a free space map, will cache all of them! 
+	 * It is intended to be used only by the testing classes.
 	 * @return
 	 * @throws StorageFileException
 	 */
 	static int getEmptyEntriesCount() throws StorageFileException {
+		FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+		if (map != null)
+			return map.getFreeCount();
+		
 		int count = 0;
 		
 		Empty free = Header.getHeader().getFirstEmpty();
@@ -183,14 +310,10 @@ class Empty {
 		mEntryIndex = index;
 		
 		if (readFromFile) {
+			// only the index is needed, the rest is random
 			byte[] dataEncrypted = Storage.getStorage().getEntry(index);
-			byte[] dataPlain;
-			try {
-				dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
-			} catch (EncryptionException e) {
-				throw new StorageFileException(e);
-			}
-			setIndexNext(LowLevel.getUnsignedInt(dataPlain, OFFSET_NEXTINDEX));
+			byte[] dataPlain = Storage.decryptEntryPart(dataEncrypted, OFFSET_NEXTINDEX, LENGTH_NEXTINDEX);
+			setIndexNext(LowLevel.getUnsignedInt(dataPlain, 0));
 		}
 		else {
 			// default values
@@ -199,9 +322,7 @@ class Empty {
 			saveToFile();
 		}
 
-		synchronized (cacheEmpty) {
-			cacheEmpty.add(this);
-		}
+		cacheEmpty.put(mEntryIndex, this);
 	}
 
 	// FUNCTIONS
@@ -215,13 +336,7 @@ class Empty {
 		ByteBuffer entryBuffer = ByteBuffer.allocate(Storage.ENCRYPTED_ENTRY_SIZE);
 		entryBuffer.put(Encryption.getEncryption().generateRandomData(OFFSET_NEXTINDEX));
 		entryBuffer.put(LowLevel.getBytesUnsignedInt(this.mIndexNext));
-		byte[] dataEncrypted = null;
-		try {
-			dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(entryBuffer.array());
-		} catch (EncryptionException e) {
-			throw new StorageFileException(e);
-		}
-		Storage.getStorage().setEntry(mEntryIndex, dataEncrypted);
+		Storage.getStorage().setEntry(mEntryIndex, Storage.encryptEntry(entryBuffer.array()));
 	}
 
 	/**
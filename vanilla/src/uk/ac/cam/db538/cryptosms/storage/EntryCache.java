@@ -0,0 +1,446 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.storage;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ *
+ * Cache of entry instances, keyed by their index in the storage file.
+ * Open-addressing hash map with linear probing on primitive long keys,
+ * so lookups and removals don't box the index and don't depend on the number of cached entries.
+ *
+ * If the cache is given a capacity, only that many least recently used instances
+ * are held strongly. Older ones are only weakly referenced, so that as long
+ * as someone still uses an instance, there is never a second one for the same entry,
+ * but once nobody does, the garbage collector can drop the decrypted data.
+ * Pinned instances are held strongly regardless of the capacity.
+ *
+ * All the methods are synchronized.
+ *
+ * @author David Brazdil
+ *
+ */
+class EntryCache<T> {
+	private static final int INITIAL_CAPACITY = 64; // has to be a power of two
+	private static final long FREE_KEY = 0L; // index 0 is the header, never cached here
+
+	private static class Node<T> {
+		long index;
+		T value;
+		EntryReference<T> reference;
+		int pins;
+		Node<T> prev, next;
+	}
+
+	private static class EntryReference<T> extends WeakReference<T> {
+		final long index;
+
+		EntryReference(long index, T value, ReferenceQueue<T> queue) {
+			super(value, queue);
+			this.index = index;
+		}
+	}
+
+	private long[] mKeys;
+	private Object[] mNodes;
+	private int mSize;
+
+	private int mCapacity;
+	private final Node<T> mLru; // sentinel of the circular list, most recently used first
+	private int mLruSize;
+	private final ReferenceQueue<T> mQueue = new ReferenceQueue<T>();
+
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+
+	/**
+	 * Instantiates a new empty cache that holds all the instances strongly.
+	 */
+	EntryCache() {
+		this(0);
+	}
+
+	/**
+	 * Instantiates a new empty cache.
+	 *
+	 * @param capacity number of instances held strongly, zero for unlimited
+	 */
+	EntryCache(int capacity) {
+		mLru = new Node<T>();
+		mCapacity = capacity;
+		clear();
+	}
+
+	/**
+	 * Returns the instance cached under given index, or null if there isn't any.
+	 *
+	 * @param index the index
+	 * @return the instance
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized T get(long index) {
+		expungeCollected();
+		if (index == FREE_KEY)
+			return null;
+		int slot = findSlot(index);
+		if (mKeys[slot] != index) {
+			++mMisses;
+			return null;
+		}
+
+		Node<T> node = (Node<T>) mNodes[slot];
+		if (node.value != null) {
+			if (node.pins == 0) {
+				unlink(node);
+				linkFirst(node);
+			}
+		} else {
+			T value = node.reference.get();
+			if (value == null) {
+				// collected, but not expunged yet
+				removeSlot(slot);
+				++mMisses;
+				return null;
+			}
+			// still in use by someone => hold it strongly again
+			node.value = value;
+			node.reference = null;
+			linkFirst(node);
+			evictOverCapacity();
+		}
+		++mHits;
+		return node.value;
+	}
+
+	/**
+	 * Caches an instance under given index, replacing any previous one.
+	 *
+	 * @param index the index
+	 * @param value the instance
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void put(long index, T value) {
+		expungeCollected();
+		if (index == FREE_KEY)
+			throw new IllegalArgumentException();
+
+		int slot = findSlot(index);
+		if (mKeys[slot] == index) {
+			Node<T> node = (Node<T>) mNodes[slot];
+			node.value = value;
+			node.reference = null;
+			if (node.pins == 0) {
+				unlink(node);
+				linkFirst(node);
+				evictOverCapacity();
+			}
+			return;
+		}
+
+		Node<T> node = new Node<T>();
+		node.index = index;
+		node.value = value;
+		mKeys[slot] = index;
+		mNodes[slot] = node;
+		linkFirst(node);
+		// keep the load factor under 1/2
+		if (++mSize * 2 > mKeys.length)
+			resize(mKeys.length * 2);
+		evictOverCapacity();
+	}
+
+	/**
+	 * Returns whether there is an instance cached under given index,
+	 * without counting it as a hit or a miss.
+	 *
+	 * @param index the index
+	 * @return true, if cached
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized boolean contains(long index) {
+		expungeCollected();
+		if (index == FREE_KEY)
+			return false;
+		int slot = findSlot(index);
+		if (mKeys[slot] != index)
+			return false;
+		Node<T> node = (Node<T>) mNodes[slot];
+		return node.value != null || node.reference.get() != null;
+	}
+
+	/**
+	 * Removes the instance cached under given index, if there is any.
+	 * Any pins are dropped as well.
+	 *
+	 * @param index the index
+	 */
+	synchronized void remove(long index) {
+		expungeCollected();
+		if (index == FREE_KEY)
+			return;
+
+		int slot = findSlot(index);
+		if (mKeys[slot] == index)
+			removeSlot(slot);
+	}
+
+	/**
+	 * Moves the instance cached under one index to another, keeping its pins.
+	 * Any instance cached under the new index is replaced.
+	 *
+	 * @param indexOld the current index
+	 * @param indexNew the new index
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void move(long indexOld, long indexNew) {
+		expungeCollected();
+		if (indexNew == FREE_KEY)
+			throw new IllegalArgumentException();
+		if (indexOld == FREE_KEY || indexOld == indexNew)
+			return;
+
+		int slot = findSlot(indexOld);
+		if (mKeys[slot] != indexOld)
+			return;
+		Node<T> node = (Node<T>) mNodes[slot];
+		boolean linked = (node.prev != null);
+		removeSlot(slot);
+		remove(indexNew);
+
+		node.index = indexNew;
+		if (node.reference != null) {
+			// the reference carries the index to expunge
+			T value = node.reference.get();
+			if (value == null)
+				return;
+			node.reference = new EntryReference<T>(indexNew, value, mQueue);
+		}
+		slot = findSlot(indexNew);
+		mKeys[slot] = indexNew;
+		mNodes[slot] = node;
+		if (linked)
+			linkFirst(node);
+		if (++mSize * 2 > mKeys.length)
+			resize(mKeys.length * 2);
+	}
+
+	/**
+	 * Pins the instance, so that it's held strongly until unpinned,
+	 * regardless of the capacity. Caches it if it isn't cached yet.
+	 * Every call has to be matched by a call to unpin.
+	 *
+	 * @param index the index
+	 * @param value the instance
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void pin(long index, T value) {
+		int slot = findSlot(index);
+		if (mKeys[slot] != index || ((Node<T>) mNodes[slot]).value != value) {
+			put(index, value);
+			slot = findSlot(index);
+		}
+
+		Node<T> node = (Node<T>) mNodes[slot];
+		if (node.pins++ == 0)
+			unlink(node);
+	}
+
+	/**
+	 * Releases one pin of the instance cached under given index.
+	 * Once all the pins are released, the instance is subject to eviction again.
+	 *
+	 * @param index the index
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized void unpin(long index) {
+		if (index == FREE_KEY)
+			return;
+		int slot = findSlot(index);
+		if (mKeys[slot] != index)
+			return;
+
+		Node<T> node = (Node<T>) mNodes[slot];
+		if (node.pins > 0 && --node.pins == 0) {
+			linkFirst(node);
+			evictOverCapacity();
+		}
+	}
+
+	/**
+	 * Removes all the cached instances.
+	 */
+	synchronized void clear() {
+		mKeys = new long[INITIAL_CAPACITY];
+		mNodes = new Object[INITIAL_CAPACITY];
+		mSize = 0;
+		mLru.prev = mLru.next = mLru;
+		mLruSize = 0;
+		while (mQueue.poll() != null)
+			;
+	}
+
+	/**
+	 * Returns the number of cached instances, including the weakly referenced ones.
+	 *
+	 * @return the size
+	 */
+	synchronized int size() {
+		expungeCollected();
+		return mSize;
+	}
+
+	/**
+	 * Sets the number of instances held strongly. Zero means unlimited.
+	 *
+	 * @param capacity the capacity
+	 */
+	synchronized void setCapacity(int capacity) {
+		mCapacity = capacity;
+		evictOverCapacity();
+	}
+
+	/**
+	 * Returns the number of instances held strongly. Zero means unlimited.
+	 *
+	 * @return the capacity
+	 */
+	synchronized int getCapacity() {
+		return mCapacity;
+	}
+
+	/**
+	 * Returns the current values of the counters.
+	 *
+	 * @return the statistics
+	 */
+	synchronized CacheStatistics getStatistics() {
+		expungeCollected();
+		return new CacheStatistics(mHits, mMisses, mEvictions, mSize, mCapacity);
+	}
+
+	/**
+	 * Resets the hit/miss/eviction counters.
+	 */
+	synchronized void resetStatistics() {
+		mHits = mMisses = mEvictions = 0L;
+	}
+
+	// LRU LIST
+
+	private void linkFirst(Node<T> node) {
+		node.prev = mLru;
+		node.next = mLru.next;
+		mLru.next.prev = node;
+		mLru.next = node;
+		++mLruSize;
+	}
+
+	private void unlink(Node<T> node) {
+		if (node.prev == null)
+			return;
+		node.prev.next = node.next;
+		node.next.prev = node.prev;
+		node.prev = node.next = null;
+		--mLruSize;
+	}
+
+	private void evictOverCapacity() {
+		if (mCapacity <= 0)
+			return;
+		while (mLruSize > mCapacity) {
+			Node<T> node = mLru.prev;
+			unlink(node);
+			node.reference = new EntryReference<T>(node.index, node.value, mQueue);
+			node.value = null;
+			++mEvictions;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void expungeCollected() {
+		EntryReference<T> ref;
+		while ((ref = (EntryReference<T>) mQueue.poll()) != null) {
+			int slot = findSlot(ref.index);
+			// the entry might have been replaced since
+			if (mKeys[slot] == ref.index && ((Node<T>) mNodes[slot]).reference == ref)
+				removeSlot(slot);
+		}
+	}
+
+	// HASH MAP
+
+	/**
+	 * Returns the slot holding given index, or the free slot where it would be inserted.
+	 */
+	private int findSlot(long index) {
+		int mask = mKeys.length - 1;
+		int slot = hash(index) & mask;
+		while (mKeys[slot] != FREE_KEY && mKeys[slot] != index)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void removeSlot(int slot) {
+		unlink((Node<T>) mNodes[slot]);
+		mKeys[slot] = FREE_KEY;
+		mNodes[slot] = null;
+		--mSize;
+
+		// shift back the entries of the probe sequence that follows,
+		// so that there is no hole in it
+		int mask = mKeys.length - 1;
+		int free = slot;
+		int current = (slot + 1) & mask;
+		while (mKeys[current] != FREE_KEY) {
+			int home = hash(mKeys[current]) & mask;
+			// move the entry if its home slot isn't cyclically in (free, current]
+			boolean stays = (free <= current) ?
+			                (free < home && home <= current) :
+			                (free < home || home <= current);
+			if (!stays) {
+				mKeys[free] = mKeys[current];
+				mNodes[free] = mNodes[current];
+				mKeys[current] = FREE_KEY;
+				mNodes[current] = null;
+				free = current;
+			}
+			current = (current + 1) & mask;
+		}
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = mKeys;
+		Object[] oldNodes = mNodes;
+		mKeys = new long[capacity];
+		mNodes = new Object[capacity];
+		for (int i = 0; i < oldKeys.length; ++i)
+			if (oldKeys[i] != FREE_KEY) {
+				int slot = findSlot(oldKeys[i]);
+				mKeys[slot] = oldKeys[i];
+				mNodes[slot] = oldNodes[i];
+			}
+	}
+
+	private static int hash(long index) {
+		// entries are allocated mostly sequentially => scramble the bits
+		long h = index * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,428 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * Reads entries ahead of the walks through the linked lists and decrypts them in parallel.
+ *
+ * The next entry of a list is only known once the current one is decrypted, so the walks
+ * themselves can't be split. But entries of one list mostly lie next to each other in the file,
+ * so while following the list, a window of the entries behind the next one is read in a single pass
+ * and decrypted on a pool of threads. The window grows while the walk keeps landing in it
+ * and shrinks when it doesn't. While the walk goes through one window, the next one is read
+ * and decrypted in the background, so that the reading overlaps with the walk.
+ *
+ * Decrypted data are kept until the entity is created from them, or until the file is modified.
+ * Entries that fail to decrypt are simply left out, they are read again when needed and the error is reported then.
+ *
+ * Entries whose indices are known up front can be read and decrypted as a batch with getDecryptedEntries().
+ *
+ * @author David Brazdil
+ *
+ */
+class EntryPrefetcher {
+	private static final int WINDOW_MIN = 1;
+	private static final int WINDOW_INITIAL = 4;
+	private static final int WINDOW_MAX = 64;
+	private static final int CAPACITY = 256;
+
+	/*
+	 * Entries read from the file at one moment and decrypted, null if they failed to decrypt
+	 */
+	private static class Batch {
+		long[] indices;
+		byte[][] entries;
+		long modificationCount;
+	}
+
+	// STATIC
+
+	private static int mThreads = Storage.getDecryptionThreads();
+	private static ExecutorService mExecutor = null;
+	private static ExecutorService mReader = null;
+
+	// guarded by the class
+	private static HashMap<Long, byte[]> mDecrypted = new HashMap<Long, byte[]>();
+	private static Storage mStorage = null; // the decrypted data are valid for this file
+	private static long mModificationCount = -1L; // and this state of it
+	private static int mWindow = WINDOW_INITIAL;
+	private static long mRunEnd = 0L; // first entry behind the last window
+	private static Future<?> mAhead = null; // window being read in the background
+	private static long mAheadStart = 0L;
+	private static long mAheadEnd = 0L;
+	private static int mGeneration = 0; // changes when the data are dropped
+
+	/**
+	 * Drops all the decrypted data.
+	 */
+	static synchronized void forceClearCache() {
+		mDecrypted.clear();
+		mStorage = null;
+		mRunEnd = 0L;
+		mAhead = null;
+		++mGeneration;
+	}
+
+	/**
+	 * Sets the number of decryption threads. Takes effect with the next batch.
+	 *
+	 * @param threads the number of threads
+	 */
+	static synchronized void setThreads(int threads) {
+		if (threads != mThreads) {
+			mThreads = threads;
+			if (mExecutor != null) {
+				mExecutor.shutdown();
+				mExecutor = null;
+			}
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (mExecutor == null)
+			mExecutor = Executors.newFixedThreadPool(Math.max(1, mThreads - 1), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "EntryPrefetcher");
+					// mustn't keep the application alive
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return mExecutor;
+	}
+
+	/**
+	 * The windows read ahead in the background have a thread of their own,
+	 * which hands out the decryption to the pool and waits for it.
+	 */
+	private static synchronized ExecutorService getReader() {
+		if (mReader == null)
+			mReader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "EntryPrefetcher reader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return mReader;
+	}
+
+	/**
+	 * Returns the decrypted data of given entry, prefetched if possible.
+	 *
+	 * @param index the index
+	 * @return the decrypted data
+	 * @throws StorageFileException the storage file exception
+	 */
+	static byte[] getDecryptedEntry(long index) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		waitForAhead(storage, index);
+		long modificationCount = storage.getModificationCount();
+		synchronized (EntryPrefetcher.class) {
+			if (isValid(storage, modificationCount)) {
+				byte[] data = mDecrypted.remove(index);
+				if (data != null)
+					return data;
+			}
+		}
+
+		return Storage.decryptEntry(storage.getEntry(index));
+	}
+
+	/**
+	 * Reads and decrypts given entries in one pass over the file and in parallel,
+	 * taking the ones decrypted ahead from there.
+	 *
+	 * @param indices the indices, in any order
+	 * @return the decrypted data, in the same order as the indices
+	 * @throws StorageFileException if any of the entries doesn't decrypt
+	 */
+	static byte[][] getDecryptedEntries(long[] indices) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		int version = Header.getHeader().getVersion();
+		byte[][] result = new byte[indices.length][];
+		long modificationCount = storage.getModificationCount();
+		synchronized (EntryPrefetcher.class) {
+			if (isValid(storage, modificationCount))
+				for (int i = 0; i < indices.length; ++i)
+					result[i] = mDecrypted.remove(indices[i]);
+		}
+
+		int countMissing = 0;
+		long[] missing = new long[indices.length];
+		for (int i = 0; i < indices.length; ++i)
+			if (result[i] == null)
+				missing[countMissing++] = indices[i];
+		missing = Arrays.copyOf(missing, countMissing);
+		Arrays.sort(missing);
+		Batch batch = decrypt(storage, missing, version);
+
+		for (int i = 0; i < indices.length; ++i) {
+			if (result[i] != null)
+				continue;
+			byte[] data = batch.entries[Arrays.binarySearch(missing, indices[i])];
+			if (data == null)
+				// read it again to get the error
+				data = Storage.decryptEntry(storage.getEntry(indices[i]));
+			// the same index can be there more than once
+			result[i] = data.clone();
+		}
+		return result;
+	}
+
+	/**
+	 * Called when a walk through a list is about to continue with given entry.
+	 * If it isn't decrypted yet, reads and decrypts a window of entries starting with it.
+	 * Once the walk gets into the last window, the one behind it is read in the background.
+	 *
+	 * @param index the index of the next entry in the list, zero if there isn't any
+	 * @throws StorageFileException the storage file exception
+	 */
+	static void prefetchRun(long index) throws StorageFileException {
+		if (index <= 0L)
+			return;
+
+		Storage storage = Storage.getStorage();
+		waitForAhead(storage, index);
+		int version = Header.getHeader().getVersion();
+		long count = storage.getEntriesCount();
+		long modificationCount = storage.getModificationCount();
+		long[] indices = null;
+		int generation;
+		synchronized (EntryPrefetcher.class) {
+			generation = mGeneration;
+			if (!isValid(storage, modificationCount) || !mDecrypted.containsKey(index)) {
+				// right behind the previous window => the list goes on sequentially
+				if (index == mRunEnd)
+					mWindow = Math.min(WINDOW_MAX, mWindow * 2);
+				else
+					mWindow = Math.max(WINDOW_MIN, mWindow / 2);
+				int window = (int) Math.max(0L, Math.min(mWindow, count - index));
+				mRunEnd = index + window;
+				if (window <= 1)
+					// nothing to gain
+					return;
+				indices = getRun(index, window);
+			} else if (mAhead != null || index < mRunEnd - mWindow)
+				// already reading ahead, or not in the last window
+				return;
+		}
+
+		if (indices != null)
+			store(storage, decrypt(storage, indices, version), generation);
+		readAhead(storage, count, version);
+	}
+
+	/**
+	 * Reads and decrypts given entries in parallel, so that the entities
+	 * can be created from them without any further decryption.
+	 *
+	 * @param indices the indices, in any order
+	 * @throws StorageFileException the storage file exception
+	 */
+	static void prefetch(long[] indices) throws StorageFileException {
+		indices = indices.clone();
+		Arrays.sort(indices);
+		Storage storage = Storage.getStorage();
+		int generation;
+		synchronized (EntryPrefetcher.class) {
+			generation = mGeneration;
+		}
+		store(storage, decrypt(storage, indices, Header.getHeader().getVersion()), generation);
+	}
+
+	/**
+	 * Starts reading the window behind the last one in the background, a bigger one
+	 * because the walk got this far. Nothing is read ahead with a single decryption thread,
+	 * which means that all the work is done by the calling thread.
+	 */
+	private static void readAhead(final Storage storage, long count, final int version) {
+		final long[] indices;
+		final int generation;
+		synchronized (EntryPrefetcher.class) {
+			if (mThreads <= 1 || mAhead != null)
+				return;
+			mWindow = Math.min(WINDOW_MAX, mWindow * 2);
+			int window = (int) Math.max(0L, Math.min(mWindow, count - mRunEnd));
+			if (window <= 1)
+				return;
+			indices = getRun(mRunEnd, window);
+			mAheadStart = mRunEnd;
+			mRunEnd += window;
+			mAheadEnd = mRunEnd;
+			generation = mGeneration;
+			mAhead = getReader().submit(new Callable<Object>() {
+				@Override
+				public Object call() throws StorageFileException {
+					try {
+						store(storage, decrypt(storage, indices, version), generation);
+					} finally {
+						synchronized (EntryPrefetcher.class) {
+							if (generation == mGeneration)
+								mAhead = null;
+						}
+					}
+					return null;
+				}
+			});
+		}
+	}
+
+	/**
+	 * If given entry is being read in the background, waits until it's done.
+	 * Doesn't wait while holding the lock of the file, which the reading needs.
+	 */
+	private static void waitForAhead(Storage storage, long index) {
+		Future<?> ahead;
+		synchronized (EntryPrefetcher.class) {
+			ahead = mAhead;
+			if (ahead == null || index < mAheadStart || index >= mAheadEnd)
+				return;
+		}
+		if (Thread.holdsLock(storage))
+			return;
+		try {
+			ahead.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// it will be read again
+		}
+	}
+
+	private static long[] getRun(long index, int length) {
+		long[] indices = new long[length];
+		for (int i = 0; i < length; ++i)
+			indices[i] = index + i;
+		return indices;
+	}
+
+	/**
+	 * Reads given entries in one pass and decrypts them in parallel.
+	 * If interrupted, none of them are decrypted.
+	 *
+	 * @param indices the indices, in ascending order
+	 * @param version the version of the file
+	 */
+	private static Batch decrypt(Storage storage, long[] indices, final int version) throws StorageFileException {
+		final Batch batch = new Batch();
+		batch.indices = indices;
+		synchronized (storage) {
+			batch.modificationCount = storage.getModificationCount();
+			batch.entries = storage.getEntries(indices);
+		}
+		if (indices.length == 0)
+			return batch;
+
+		// split into one slice per thread, the last one is done by this thread
+		int threads;
+		synchronized (EntryPrefetcher.class) {
+			threads = Math.min(mThreads, indices.length);
+		}
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>(threads - 1);
+		int sliceLength = (indices.length + threads - 1) / threads;
+		for (int start = 0; start < indices.length; start += sliceLength) {
+			final int from = start;
+			final int to = Math.min(indices.length, start + sliceLength);
+			final byte[][] entries = batch.entries;
+			if (to < indices.length)
+				futures.add(getExecutor().submit(new Callable<Object>() {
+					@Override
+					public Object call() {
+						decrypt(entries, from, to, version);
+						return null;
+					}
+				}));
+			else
+				decrypt(entries, from, to, version);
+		}
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			// some could still be encrypted
+			batch.entries = new byte[indices.length][];
+		} catch (ExecutionException e) {
+			throw new StorageFileException(e);
+		}
+		return batch;
+	}
+
+	/**
+	 * Keeps the decrypted data of a batch, unless the file was modified after it was read
+	 * or the data were dropped in the meantime.
+	 */
+	private static void store(Storage storage, Batch batch, int generation) {
+		if (storage.getModificationCount() != batch.modificationCount)
+			// modified while decrypting
+			return;
+		synchronized (EntryPrefetcher.class) {
+			if (generation != mGeneration)
+				return;
+			if (!isValid(storage, batch.modificationCount)) {
+				mStorage = storage;
+				mModificationCount = batch.modificationCount;
+			}
+			if (mDecrypted.size() + batch.indices.length > CAPACITY)
+				mDecrypted.clear();
+			for (int i = 0; i < batch.indices.length; ++i)
+				if (batch.entries[i] != null)
+					mDecrypted.put(batch.indices[i], batch.entries[i]);
+		}
+	}
+
+	/**
+	 * Replaces the encrypted entries with decrypted ones, or with null if they fail to decrypt.
+	 */
+	private static void decrypt(byte[][] entries, int from, int to, int version) {
+		for (int i = from; i < to; ++i) {
+			try {
+				entries[i] = Storage.decryptEntry(entries[i], version);
+			} catch (StorageFileException e) {
+				entries[i] = null;
+			} catch (RuntimeException e) {
+				entries[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Checks that the decrypted data still match the file. Drops them if they don't.
+	 * The modification count has to be read beforehand, so that the two locks are never nested.
+	 */
+	private static boolean isValid(Storage storage, long modificationCount) {
+		if (mStorage != storage || mModificationCount != modificationCount) {
+			mDecrypted.clear();
+			mStorage = null;
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,575 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import uk.ac.cam.db538.cryptosms.crypto.Encryption;
+import uk.ac.cam.db538.cryptosms.utils.LowLevel;
+
+/**
+ *
+ * Bitmap of free entries in the storage file, used instead of the linked list of Empty entries
+ * when enabled with Storage.setFreeSpaceMap().
+ * The bitmap is stored encrypted in a linked list of chunks, first of which is pointed to by the Header.
+ * Each chunk covers ENTRIES_PER_CHUNK consecutive entries. Free entries only contain random data.
+ *
+ * Unlike the linked list, the bitmap is loaded in one go, can hand out runs of contiguous entries
+ * and knows the number of free entries without reading them.
+ *
+ * @author David Brazdil
+ *
+ */
+class FreeSpaceMap {
+	// FILE FORMAT
+	private static final int LENGTH_BITMAP = Storage.ENCRYPTED_ENTRY_SIZE - 4;
+	private static final int OFFSET_NEXTINDEX = LENGTH_BITMAP;
+
+	static final int ENTRIES_PER_CHUNK = LENGTH_BITMAP * 8;
+	private static final int ENTRIES_PER_ALIGN = Storage.ALIGN_SIZE / Storage.CHUNK_SIZE;
+
+	// STATIC
+
+	private static FreeSpaceMap cacheFreeSpaceMap = null;
+
+	/**
+	 * Removes the cached instance.
+	 * Be sure you don't use it afterwards.
+	 */
+	public static void forceClearCache() {
+		cacheFreeSpaceMap = null;
+	}
+
+	/**
+	 * Returns the free space map of the file, or null if the file uses the linked list of Empty entries.
+	 *
+	 * @return the free space map
+	 * @throws StorageFileException the storage file exception
+	 */
+	static FreeSpaceMap getFreeSpaceMap() throws StorageFileException {
+		if (cacheFreeSpaceMap == null) {
+			long index = Header.getHeader().getIndexFreeSpaceMap();
+			if (index == 0L)
+				return null;
+			cacheFreeSpaceMap = new FreeSpaceMap(index);
+		}
+		return cacheFreeSpaceMap;
+	}
+
+	/**
+	 * Moves all the entries from the linked list of Empty entries into a new free space map.
+	 * Does nothing if the file already has one.
+	 *
+	 * @throws StorageFileException the storage file exception
+	 */
+	static void createFreeSpaceMap() throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			Header header = Header.getHeader();
+			if (header.getIndexFreeSpaceMap() == 0L) {
+				FreeSpaceMap map = new FreeSpaceMap();
+
+				// take over the linked list
+				Empty empty = header.getFirstEmpty();
+				while (empty != null) {
+					map.mFree.set((int) empty.getEntryIndex());
+					empty = empty.getNextEmpty();
+				}
+				Empty.forceClearCache();
+
+				map.ensureCapacity();
+				map.saveToFile();
+
+				header.setIndexEmpty(0L);
+				header.setIndexFreeSpaceMap(map.mChunks.get(0));
+				header.setVersion(Math.max(header.getVersion(), Header.VERSION_FREE_SPACE_MAP));
+				header.saveToFile();
+				cacheFreeSpaceMap = map;
+			}
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Replaces the free space map with the linked list of Empty entries.
+	 * Does nothing if the file doesn't have one.
+	 *
+	 * @throws StorageFileException the storage file exception
+	 */
+	static void dropFreeSpaceMap() throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			FreeSpaceMap map = getFreeSpaceMap();
+			if (map != null) {
+				Header header = Header.getHeader();
+				header.setIndexFreeSpaceMap(0L);
+				header.saveToFile();
+				cacheFreeSpaceMap = null;
+
+				// from now on, these go to the linked list
+				for (long index : map.mChunks)
+					Empty.replaceWithEmpty(index);
+				for (int i = map.mFree.nextSetBit(0); i >= 0; i = map.mFree.nextSetBit(i + 1))
+					Empty.replaceWithEmpty(i);
+			}
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	// INTERNAL FIELDS
+	private ArrayList<Long> mChunks; // indices of the chunks holding the bitmap
+	private BitSet mFree; // set bit => free entry
+	private BitSet mDirtyChunks;
+
+	// CONSTRUCTORS
+
+	/**
+	 * Creates a map without any chunks or free entries.
+	 */
+	private FreeSpaceMap() {
+		mChunks = new ArrayList<Long>();
+		mFree = new BitSet();
+		mDirtyChunks = new BitSet();
+	}
+
+	/**
+	 * Reads the whole map from the file.
+	 * @param indexFirst	Index of the first chunk
+	 * @throws StorageFileException
+	 */
+	private FreeSpaceMap(long indexFirst) throws StorageFileException {
+		this();
+
+		long index = indexFirst;
+		while (index != 0L) {
+			byte[] dataEncrypted = Storage.getStorage().getEntry(index);
+			byte[] dataPlain = Storage.decryptEntry(dataEncrypted);
+
+			int base = mChunks.size() * ENTRIES_PER_CHUNK;
+			for (int i = 0; i < LENGTH_BITMAP; ++i) {
+				int bits = dataPlain[i] & 0xFF;
+				for (int j = 0; bits != 0; ++j, bits >>>= 1)
+					if ((bits & 1) != 0)
+						mFree.set(base + i * 8 + j);
+			}
+
+			mChunks.add(index);
+			index = LowLevel.getUnsignedInt(dataPlain, OFFSET_NEXTINDEX);
+		}
+	}
+
+	// FUNCTIONS
+
+	/**
+	 * Saves the chunks that changed since the last save to the storage file.
+	 *
+	 * @throws StorageFileException the storage file exception
+	 */
+	void saveToFile() throws StorageFileException {
+		for (int k = mDirtyChunks.nextSetBit(0); k >= 0 && k < mChunks.size(); k = mDirtyChunks.nextSetBit(k + 1)) {
+			ByteBuffer chunkBuffer = ByteBuffer.allocate(Storage.ENCRYPTED_ENTRY_SIZE);
+			byte[] bitmap = new byte[LENGTH_BITMAP];
+			int base = k * ENTRIES_PER_CHUNK;
+			for (int i = mFree.nextSetBit(base); i >= 0 && i < base + ENTRIES_PER_CHUNK; i = mFree.nextSetBit(i + 1))
+				bitmap[(i - base) >>> 3] |= (byte) (1 << ((i - base) & 7));
+			chunkBuffer.put(bitmap);
+			chunkBuffer.put(LowLevel.getBytesUnsignedInt((k + 1 < mChunks.size()) ? mChunks.get(k + 1) : 0L));
+
+			Storage.getStorage().setEntry(mChunks.get(k), Storage.encryptEntry(chunkBuffer.array()));
+		}
+		mDirtyChunks.clear();
+	}
+
+	/**
+	 * Takes given number of free entries out of the map, the ones closest to the beginning of the file first.
+	 * Grows the file if there aren't enough of them.
+	 *
+	 * @param count 	Number of entries requested
+	 * @return the indices
+	 * @throws StorageFileException the storage file exception
+	 */
+	long[] allocate(int count) throws StorageFileException {
+		return allocate(count, 0L);
+	}
+
+	/**
+	 * Takes given number of free entries out of the map, preferably close behind given index.
+	 * A run of consecutive free entries behind the index is used if there is one, 
+	 * otherwise the first free entries behind the index and then the ones closest 
+	 * to the beginning of the file. Grows the file if there aren't enough of them.
+	 *
+	 * @param count 	Number of entries requested
+	 * @param near 		Index the entries should be close to
+	 * @return the indices
+	 * @throws StorageFileException the storage file exception
+	 */
+	long[] allocate(int count, long near) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			while (mFree.cardinality() < count)
+				growFile(count - mFree.cardinality());
+
+			long[] indices = new long[count];
+			int index = (count > 1) ? findRun(count, (int) near) : -1;
+			if (index < 0)
+				index = (int) near;
+			for (int i = 0; i < count; ++i) {
+				int next = mFree.nextSetBit(index);
+				if (next < 0)
+					// nothing more behind => wrap around
+					next = mFree.nextSetBit(0);
+				setUsed(next);
+				indices[i] = next;
+				index = next;
+			}
+			saveToFile();
+
+			success = true;
+			return indices;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Takes a run of given number of consecutive free entries out of the map.
+	 * Grows the file if there isn't a long enough run.
+	 *
+	 * @param count 	Number of entries requested
+	 * @return the index of the first entry of the run
+	 * @throws StorageFileException the storage file exception
+	 */
+	long allocateRun(int count) throws StorageFileException {
+		return allocateRun(count, 0L);
+	}
+
+	/**
+	 * Takes a run of given number of consecutive free entries out of the map,
+	 * preferably behind given index. Grows the file if there isn't a long enough run.
+	 *
+	 * @param count 	Number of entries requested
+	 * @param near 		Index the run should be close to
+	 * @return the index of the first entry of the run
+	 * @throws StorageFileException the storage file exception
+	 */
+	long allocateRun(int count, long near) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			int start = findRun(count, (int) near);
+			while (start < 0 && (start = findRun(count, 0)) < 0) {
+				// extend the free run at the end of the file (if any)
+				int length = (int) storage.getEntriesCount();
+				int trailing = 0;
+				while (trailing < length && mFree.get(length - 1 - trailing))
+					++trailing;
+				growFile(count - trailing);
+			}
+
+			for (int i = 0; i < count; ++i)
+				setUsed(start + i);
+			saveToFile();
+
+			success = true;
+			return start;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Returns the first free entry of a run of at least given number of consecutive
+	 * free entries, looking no earlier than at given index. Returns -1 if there isn't any.
+	 *
+	 * @param count the count
+	 * @param from the index to start from
+	 * @return the start of the run
+	 */
+	int findRun(int count, int from) {
+		int start = mFree.nextSetBit(from);
+		while (start >= 0) {
+			int end = mFree.nextClearBit(start);
+			if (end - start >= count)
+				return start;
+			start = mFree.nextSetBit(end);
+		}
+		return -1;
+	}
+
+	/**
+	 * Marks the entry as free and overwrites it with random data.
+	 *
+	 * @param index the index
+	 * @throws StorageFileException the storage file exception
+	 */
+	void free(long index) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			storage.setEntry(index, Encryption.getEncryption().generateRandomData(Storage.CHUNK_SIZE));
+			mFree.set((int) index);
+			mDirtyChunks.set((int) (index / ENTRIES_PER_CHUNK));
+			saveToFile();
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Takes the given free entry out of the map.
+	 *
+	 * @param index the index
+	 * @throws StorageFileException the storage file exception
+	 */
+	void take(long index) throws StorageFileException {
+		if (!isFree(index))
+			throw new StorageFileException("Entry " + index + " isn't free");
+
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			setUsed((int) index);
+			saveToFile();
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Moves a chunk of the map to given entry, which has to be taken out of the map beforehand.
+	 * The original entry becomes free.
+	 *
+	 * @param indexOld 	Current index of the chunk
+	 * @param indexNew 	Index of the target entry
+	 * @throws StorageFileException the storage file exception
+	 */
+	void moveChunk(long indexOld, long indexNew) throws StorageFileException {
+		int k = mChunks.indexOf(indexOld);
+		if (k < 0)
+			throw new StorageFileException("Entry " + indexOld + " isn't a chunk of the map");
+
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			mChunks.set(k, indexNew);
+			mDirtyChunks.set(k);
+			if (k > 0)
+				// its next pointer changes
+				mDirtyChunks.set(k - 1);
+			else {
+				Header header = Header.getHeader();
+				header.setIndexFreeSpaceMap(indexNew);
+				header.saveToFile();
+			}
+
+			storage.setEntry(indexOld, Encryption.getEncryption().generateRandomData(Storage.CHUNK_SIZE));
+			mFree.set((int) indexOld);
+			mDirtyChunks.set((int) (indexOld / ENTRIES_PER_CHUNK));
+			saveToFile();
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Cuts the free entries off the end of the file, so that it stays aligned to ALIGN_SIZE,
+	 * and releases the chunks of the map that aren't needed any more.
+	 *
+	 * @return the number of entries cut off
+	 * @throws StorageFileException the storage file exception
+	 */
+	long shrinkFile() throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			int count = (int) storage.getEntriesCount();
+			int end;
+			while (true) {
+				int last = count - 1;
+				while (last > 0 && mFree.get(last))
+					--last;
+				end = (last + ENTRIES_PER_ALIGN) / ENTRIES_PER_ALIGN * ENTRIES_PER_ALIGN;
+				if ((long) (mChunks.size() - 1) * ENTRIES_PER_CHUNK < end)
+					break;
+
+				// the last chunk would only cover the cut off entries
+				long index = mChunks.remove(mChunks.size() - 1);
+				mDirtyChunks.set(mChunks.size() - 1);
+				storage.setEntry(index, Encryption.getEncryption().generateRandomData(Storage.CHUNK_SIZE));
+				mFree.set((int) index);
+				mDirtyChunks.set((int) (index / ENTRIES_PER_CHUNK));
+			}
+
+			if (end < count) {
+				mFree.clear(end, count);
+				mDirtyChunks.set(end / ENTRIES_PER_CHUNK, mChunks.size());
+			}
+			saveToFile();
+			storage.truncateEntries(end);
+
+			success = true;
+			return count - end;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Appends at least given number of free entries to the file.
+	 *
+	 * @param count 	Number of entries requested
+	 * @throws StorageFileException the storage file exception
+	 */
+	void addFreeEntries(int count) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			growFile(count);
+			saveToFile();
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Returns whether the entry is free.
+	 *
+	 * @param index the index
+	 * @return true, if free
+	 */
+	boolean isFree(long index) {
+		return mFree.get((int) index);
+	}
+
+	/**
+	 * Returns the number of free entries.
+	 *
+	 * @return the count
+	 */
+	int getFreeCount() {
+		return mFree.cardinality();
+	}
+
+	/**
+	 * Returns the indices of the chunks holding the map.
+	 *
+	 * @return the indices
+	 */
+	long[] getChunkIndices() {
+		long[] indices = new long[mChunks.size()];
+		for (int i = 0; i < indices.length; ++i)
+			indices[i] = mChunks.get(i);
+		return indices;
+	}
+
+	private void setUsed(int index) {
+		mFree.clear(index);
+		mDirtyChunks.set(index / ENTRIES_PER_CHUNK);
+	}
+
+	/**
+	 * Appends free entries filled with random data, at least given number of them
+	 * and so that the file stays aligned to ALIGN_SIZE, and adds more chunks to the map if necessary.
+	 * All the entries are put into the same transaction, which writes them in a single pass.
+	 */
+	private void growFile(int count) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		int first = (int) storage.getEntriesCount();
+		int end = first + Math.max(count, 1);
+		end = (end + ENTRIES_PER_ALIGN - 1) / ENTRIES_PER_ALIGN * ENTRIES_PER_ALIGN;
+
+		byte[] random = Encryption.getEncryption().generateRandomData((end - first) * Storage.CHUNK_SIZE);
+		for (int i = first; i < end; ++i) {
+			storage.setEntry(i, LowLevel.cutData(random, (i - first) * Storage.CHUNK_SIZE, Storage.CHUNK_SIZE));
+			mFree.set(i);
+			mDirtyChunks.set(i / ENTRIES_PER_CHUNK);
+		}
+
+		ensureCapacity();
+	}
+
+	/**
+	 * Adds chunks to the map until it covers the whole file.
+	 * The chunks are taken from the free entries.
+	 */
+	private void ensureCapacity() throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		while ((long) mChunks.size() * ENTRIES_PER_CHUNK < storage.getEntriesCount()) {
+			int index = mFree.nextSetBit(1);
+			if (index < 0) {
+				// growing calls this recursively
+				growFile(ENTRIES_PER_ALIGN);
+				continue;
+			}
+
+			setUsed(index);
+			if (!mChunks.isEmpty())
+				// its next pointer changes
+				mDirtyChunks.set(mChunks.size() - 1);
+			mChunks.add((long) index);
+			mDirtyChunks.set(mChunks.size() - 1);
+		}
+	}
+}
@@ -19,7 +19,6 @@ import java.nio.ByteBuffer;
 import java.util.Random;
 
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
-import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
 import uk.ac.cam.db538.cryptosms.utils.LowLevel;
 
 /**
@@ -30,7 +29,10 @@ import uk.ac.cam.db538.cryptosms.utils.LowLevel;
  *
  */
 public class Header {
-	static final int CURRENT_VERSION = 1;
+	static final int CURRENT_VERSION = 3;
+	static final int VERSION_FREE_SPACE_MAP = 2; // first version with index of the free space map
+	static final int VERSION_ENCRYPT_THEN_MAC = 3; // first version with entries in the encrypt-then-MAC mode
+	static final int VERSION_COUNTER_MODE = 4; // the same, with AES/CTR instead of AES/CBC
 	
 	private static final int INDEX_HEADER = 0;
 	
@@ -44,6 +46,9 @@ public class Header {
 	private static final int OFFSET_KEYID = 0;
 	private static final int OFFSET_CONVINDEX = LENGTH_ENCRYPTED_HEADER - 4;
 	private static final int OFFSET_FREEINDEX = OFFSET_CONVINDEX - 4;
+	private static final int OFFSET_FREEMAPINDEX = OFFSET_FREEINDEX - 4;
+	private static final int OFFSET_CONVERSIONINDEX = OFFSET_FREEMAPINDEX - 4;
+	private static final int OFFSET_CONVERSIONVERSION = OFFSET_CONVERSIONINDEX - 1;
 	
 	// CACHING
 	private static Header cacheHeader = null;
@@ -83,7 +88,10 @@ public class Header {
 	private byte mKeyId;
 	private long mIndexEmpty;
 	private long mIndexConversations;
+	private long mIndexFreeSpaceMap;
 	private int mVersion;
+	private long mIndexConversion;
+	private int mConversionVersion;
 	
 	/**
 	 * Constructor
@@ -106,27 +114,32 @@ public class Header {
 			int version = 0 | (dataAll[3] & 0xFF);
 
 			// decrypt rest of  data
-			byte[] dataEncrypted = new byte[LENGTH_ENCRYPTED_HEADER_WITH_OVERHEAD];
-			System.arraycopy(dataAll, OFFSET_ENCRYPTED_HEADER, dataEncrypted, 0, LENGTH_ENCRYPTED_HEADER_WITH_OVERHEAD);
-			byte[] dataPlain;
-			try {
-				dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
-			} catch (EncryptionException e) {
-				throw new StorageFileException(e);
-			}
+			byte[] dataPlain = Storage.decryptEntry(dataAll, OFFSET_ENCRYPTED_HEADER, LENGTH_ENCRYPTED_HEADER_WITH_OVERHEAD, version);
 			
 			// set fields
 			setKeyId(dataPlain[OFFSET_KEYID]);
 			setVersion(version);
 			setIndexEmpty(LowLevel.getUnsignedInt(dataPlain, OFFSET_FREEINDEX));
 			setIndexConversations(LowLevel.getUnsignedInt(dataPlain, OFFSET_CONVINDEX));
+			if (version >= VERSION_FREE_SPACE_MAP)
+				setIndexFreeSpaceMap(LowLevel.getUnsignedInt(dataPlain, OFFSET_FREEMAPINDEX));
+			else
+				// older versions have random data there
+				setIndexFreeSpaceMap(0L);
+			if (version >= VERSION_ENCRYPT_THEN_MAC)
+				setConversion(LowLevel.getUnsignedByte(dataPlain[OFFSET_CONVERSIONVERSION]), 
+				              LowLevel.getUnsignedInt(dataPlain, OFFSET_CONVERSIONINDEX));
+			else
+				setConversion(0, 0L);
 		}
 		else {
 			// default values
 			setKeyId((byte) (new Random().nextInt()));
-			setVersion(CURRENT_VERSION);
+			setVersion(Storage.getFormatVersion());
 			setIndexEmpty(0L);
 			setIndexConversations(0L);
+			setIndexFreeSpaceMap(0L);
+			setConversion(0, 0L);
 			
 			saveToFile();
 		}
@@ -140,7 +153,10 @@ public class Header {
 	public void saveToFile() throws StorageFileException {
 		ByteBuffer headerBuffer = ByteBuffer.allocate(LENGTH_ENCRYPTED_HEADER);
 		headerBuffer.put(mKeyId);
-		headerBuffer.put(Encryption.getEncryption().generateRandomData(LENGTH_ENCRYPTED_HEADER - 9));
+		headerBuffer.put(Encryption.getEncryption().generateRandomData(LENGTH_ENCRYPTED_HEADER - 18));
+		headerBuffer.put(LowLevel.getBytesUnsignedByte(this.getConversionVersion()));
+		headerBuffer.put(LowLevel.getBytesUnsignedInt(this.getIndexConversion())); 
+		headerBuffer.put(LowLevel.getBytesUnsignedInt(this.getIndexFreeSpaceMap())); 
 		headerBuffer.put(LowLevel.getBytesUnsignedInt(this.getIndexEmpty())); 
 		headerBuffer.put(LowLevel.getBytesUnsignedInt(this.getIndexConversations()));
 		
@@ -150,11 +166,7 @@ public class Header {
 		headerBufferEncrypted.put((byte) 0x53); // S
 		headerBufferEncrypted.put((byte) (this.getVersion() & 0xFF)); // version
 		headerBufferEncrypted.put(Encryption.getEncryption().generateRandomData(LENGTH_RANDOM_STUFF)); // random stuff
-		try {
-			headerBufferEncrypted.put(Encryption.getEncryption().encryptSymmetricWithMasterKey(headerBuffer.array()));
-		} catch (EncryptionException e) {
-			throw new StorageFileException(e);
-		}
+		headerBufferEncrypted.put(Storage.encryptEntry(headerBuffer.array(), this.getVersion()));
 		
 		Storage.getStorage().setEntry(INDEX_HEADER, headerBufferEncrypted.array());
 	}
@@ -243,10 +255,54 @@ public class Header {
 		mIndexConversations = indexConversations;
 	}
 
+	long getIndexFreeSpaceMap() {
+		return mIndexFreeSpaceMap;
+	}
+
+	void setIndexFreeSpaceMap(long indexFreeSpaceMap) {
+		if (indexFreeSpaceMap > 0xFFFFFFFFL || indexFreeSpaceMap < 0L)
+			throw new IndexOutOfBoundsException();
+		
+		mIndexFreeSpaceMap = indexFreeSpaceMap;
+	}
+
 	int getVersion() {
 		return mVersion;
 	}
 
+	/**
+	 * Returns the index of the first entry that hasn't been converted
+	 * to the version of the file yet, zero if the file isn't being converted.
+	 * 
+	 * @return the index
+	 */
+	long getIndexConversion() {
+		return mIndexConversion;
+	}
+
+	/**
+	 * Returns the version the entries that haven't been converted yet are in.
+	 * 
+	 * @return the version
+	 */
+	int getConversionVersion() {
+		return mConversionVersion;
+	}
+
+	/**
+	 * Sets the progress of converting the entries to the version of the file.
+	 * 
+	 * @param version 	the version of the entries that haven't been converted yet
+	 * @param index 	the index of the first of them, zero if all have been converted
+	 */
+	void setConversion(int version, long index) {
+		if (version > 0xFF || index > 0xFFFFFFFFL || index < 0L)
+			throw new IndexOutOfBoundsException();
+		
+		mConversionVersion = version;
+		mIndexConversion = index;
+	}
+
 	void setVersion(int version) {
 		if (version > 0xFF)
 			throw new IndexOutOfBoundsException();
@@ -0,0 +1,173 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.storage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+
+/**
+ * Storage file backend which keeps the file mapped in memory.
+ * The file is split into regions of REGION_SIZE bytes, each mapped separately.
+ * Only whole ALIGN_SIZE blocks are mapped, so the mapping never extends the file.
+ * The unaligned tail of the file (if any) is accessed through the FileChannel
+ * and gets mapped as soon as the file grows to the next ALIGN_SIZE boundary.
+ *
+ * Not thread-safe, synchronisation is left to the Storage class.
+ *
+ * @author David Brazdil
+ *
+ */
+class MappedStorageFile extends StorageFile {
+	static final int REGION_SIZE = Storage.ALIGN_SIZE * 128; // 1MB
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private ArrayList<MappedByteBuffer> mRegions;
+	private BitSet mDirtyRegions;
+	private long mMappedLength;
+	private long mLength;
+
+	/**
+	 * Instantiates a new storage file.
+	 *
+	 * @param filename the filename
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	MappedStorageFile(String filename) throws IOException {
+		mFile = new RandomAccessFile(filename, "rw");
+		mChannel = mFile.getChannel();
+		mRegions = new ArrayList<MappedByteBuffer>();
+		mDirtyRegions = new BitSet();
+		mMappedLength = 0L;
+		mLength = mChannel.size();
+		remap();
+	}
+
+	/**
+	 * Maps all the whole ALIGN_SIZE blocks of the file that aren't mapped yet.
+	 *
+	 * @throws IOException
+	 */
+	private void remap() throws IOException {
+		long target = mLength - (mLength % Storage.ALIGN_SIZE);
+		while (mMappedLength < target) {
+			int region = (int) (mMappedLength / REGION_SIZE);
+			long regionStart = (long) region * REGION_SIZE;
+			long regionEnd = Math.min(regionStart + REGION_SIZE, target);
+			MappedByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_WRITE, regionStart, regionEnd - regionStart);
+			if (region < mRegions.size())
+				// the last region grew
+				mRegions.set(region, buffer);
+			else
+				mRegions.add(buffer);
+			mMappedLength = regionEnd;
+		}
+	}
+
+	@Override
+	long length() {
+		return mLength;
+	}
+
+	@Override
+	void read(long offset, byte[] data) throws IOException {
+		int pos = 0;
+		while (pos < data.length && offset + pos < mMappedLength) {
+			long current = offset + pos;
+			MappedByteBuffer region = mRegions.get((int) (current / REGION_SIZE));
+			int regionOffset = (int) (current % REGION_SIZE);
+			int len = Math.min(data.length - pos, region.capacity() - regionOffset);
+			region.position(regionOffset);
+			region.get(data, pos, len);
+			pos += len;
+		}
+
+		if (pos < data.length) {
+			// the rest is in the unmapped tail
+			ByteBuffer buffer = ByteBuffer.wrap(data, pos, data.length - pos);
+			while (buffer.hasRemaining())
+				if (mChannel.read(buffer, offset + buffer.position()) < 0)
+					throw new EOFException();
+		}
+	}
+
+	@Override
+	void write(long offset, byte[] data) throws IOException {
+		int pos = 0;
+		while (pos < data.length && offset + pos < mMappedLength) {
+			long current = offset + pos;
+			int regionIndex = (int) (current / REGION_SIZE);
+			MappedByteBuffer region = mRegions.get(regionIndex);
+			int regionOffset = (int) (current % REGION_SIZE);
+			int len = Math.min(data.length - pos, region.capacity() - regionOffset);
+			region.position(regionOffset);
+			region.put(data, pos, len);
+			mDirtyRegions.set(regionIndex);
+			pos += len;
+		}
+
+		if (pos < data.length) {
+			// the rest goes to the unmapped tail
+			ByteBuffer buffer = ByteBuffer.wrap(data, pos, data.length - pos);
+			while (buffer.hasRemaining())
+				mChannel.write(buffer, offset + buffer.position());
+
+			mLength = Math.max(mLength, offset + data.length);
+			remap();
+		}
+	}
+
+	@Override
+	void truncate(long length) throws IOException {
+		if (length >= mLength)
+			return;
+		sync();
+
+		// drop the regions reaching past the new end, accessing them would crash
+		int keep = (int) (length / REGION_SIZE);
+		while (mRegions.size() > keep)
+			mRegions.remove(mRegions.size() - 1);
+		mDirtyRegions.clear();
+		mMappedLength = (long) keep * REGION_SIZE;
+
+		mChannel.truncate(length);
+		mLength = length;
+		remap();
+	}
+
+	@Override
+	void sync() throws IOException {
+		for (int i = mDirtyRegions.nextSetBit(0); i >= 0; i = mDirtyRegions.nextSetBit(i + 1))
+			mRegions.get(i).force();
+		mDirtyRegions.clear();
+		mChannel.force(false);
+	}
+
+	@Override
+	void close() throws IOException {
+		sync();
+		mRegions.clear();
+		mMappedLength = 0L;
+		mChannel.close();
+		mFile.close();
+	}
+}
@@ -17,12 +17,12 @@ package uk.ac.cam.db538.cryptosms.storage;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.ISODateTimeFormat;
 
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
-import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
 import uk.ac.cam.db538.cryptosms.utils.Charset;
 import uk.ac.cam.db538.cryptosms.utils.LowLevel;
 
@@ -63,16 +63,32 @@ public class MessageData {
 	
 	// STATIC
 	
-	private static ArrayList<MessageData> cacheMessageData = new ArrayList<MessageData>();
+	private static EntryCache<MessageData> cacheMessageData = new EntryCache<MessageData>(Storage.getCacheCapacity());
 	
 	/**
 	 * Removes all instances from the list of cached objects.
 	 * Be sure you don't use the instances afterwards.
 	 */
 	public static void forceClearCache() {
-		synchronized (cacheMessageData) {
-			cacheMessageData = new ArrayList<MessageData>();
-		}
+		cacheMessageData.clear();
+	}
+	
+	/**
+	 * Sets how many instances are kept in memory when they're not in use.
+	 *
+	 * @param capacity the capacity, zero for unlimited
+	 */
+	static void setCacheCapacity(int capacity) {
+		cacheMessageData.setCapacity(capacity);
+	}
+	
+	/**
+	 * Returns the hit/miss/eviction counters of the message cache.
+	 *
+	 * @return the cache statistics
+	 */
+	public static CacheStatistics getCacheStatistics() {
+		return cacheMessageData.getStatistics();
 	}
 
 	/**
@@ -83,10 +99,22 @@ public class MessageData {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public static MessageData createMessageData(Conversation parent) throws StorageFileException {
-		// create a new one
-		MessageData msg = new MessageData(Empty.getEmptyIndex(), false);
-		parent.attachMessageData(msg);
-		return msg;
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			// create a new one, next to the newest message of the conversation
+			long near = (parent.getIndexMessages() != 0L) ? parent.getIndexMessages() : parent.getEntryIndex();
+			MessageData msg = new MessageData(Empty.getEmptyIndex(near), false);
+			parent.attachMessageData(msg);
+			success = true;
+			return msg;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}
 
 	/**
@@ -101,16 +129,26 @@ public class MessageData {
 			return null;
 		
 		// try looking it up
-		synchronized (cacheMessageData) {
-			for (MessageData empty: cacheMessageData)
-				if (empty.getEntryIndex() == index)
-					return empty; 
-		}
+		MessageData cached = cacheMessageData.get(index);
+		if (cached != null)
+			return cached;
 		
 		// create a new one
 		return new MessageData(index, true);
 	}
 	
+	/**
+	 * Reads ahead and decrypts the entries starting with given index, 
+	 * unless there already is an instance for it.
+	 *
+	 * @param index 	Index of the next entry in a list, zero if there isn't any
+	 * @throws StorageFileException the storage file exception
+	 */
+	static void prefetch(long index) throws StorageFileException {
+		if (index > 0L && !cacheMessageData.contains(index))
+			EntryPrefetcher.prefetchRun(index);
+	}
+	
 	// INTERNAL FIELDS
 	private long mEntryIndex; // READ ONLY
 	private boolean mDeliveredPart;
@@ -126,6 +164,7 @@ public class MessageData {
 	private long mIndexMessageParts;
 	private long mIndexPrev ;
 	private long mIndexNext;
+	private long[] mPartIndices; // null until first needed
 	
 	// CONSTRUCTORS
 	
@@ -140,13 +179,7 @@ public class MessageData {
 		mEntryIndex = index;
 		
 		if (readFromFile) {
-			byte[] dataEncrypted = Storage.getStorage().getEntry(index);
-			byte[] dataPlain;
-			try {
-				dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
-			} catch (EncryptionException e) {
-				throw new StorageFileException(e);
-			}
+			byte[] dataPlain = EntryPrefetcher.getDecryptedEntry(index);
 			
 			byte flags = dataPlain[OFFSET_FLAGS];
 			boolean deliveredPart = ((flags & (1 << 7)) == 0) ? false : true;
@@ -190,13 +223,26 @@ public class MessageData {
 			saveToFile();
 		}
 		
-		synchronized (cacheMessageData) {
-			cacheMessageData.add(this);
-		}
+		cacheMessageData.put(mEntryIndex, this);
 	}
 
 	// FUNCTIONS
 
+	/**
+	 * Pins this instance in the cache, so that it isn't evicted until unpinned.
+	 * Every call has to be matched by a call to unpin().
+	 */
+	public void pin() {
+		cacheMessageData.pin(mEntryIndex, this);
+	}
+	
+	/**
+	 * Releases a pin of this instance in the cache.
+	 */
+	public void unpin() {
+		cacheMessageData.unpin(mEntryIndex);
+	}
+	
 	/**
 	 * Save the contents of this class to its place in the storage file.
 	 *
@@ -238,13 +284,7 @@ public class MessageData {
 		msgBuffer.put(LowLevel.getBytesUnsignedInt(this.mIndexPrev));
 		msgBuffer.put(LowLevel.getBytesUnsignedInt(this.mIndexNext));
 		
-		byte[] dataEncrypted = null;
-		try {
-			dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(msgBuffer.array());
-		} catch (EncryptionException e) {
-			throw new StorageFileException(e);
-		}
-		Storage.getStorage().setEntry(mEntryIndex, dataEncrypted);
+		Storage.getStorage().setEntry(mEntryIndex, Storage.encryptEntry(msgBuffer.array()));
 	}
 
 	/**
@@ -299,42 +339,53 @@ public class MessageData {
 	 * @throws StorageFileException the storage file exception
 	 */
 	void assignMessageDataParts(ArrayList<MessageDataPart> list) throws StorageFileException {
-		// delete all previous message parts
-		long indexFirstInStack = getIndexMessageParts();
-		while (indexFirstInStack != 0) {
-			MessageDataPart msgPart = MessageDataPart.getMessageDataPart(indexFirstInStack);
-			indexFirstInStack = msgPart.getIndexNext();
-			msgPart.delete();
-		}
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			// delete all previous message parts
+			long indexFirstInStack = getIndexMessageParts();
+			while (indexFirstInStack != 0) {
+				MessageDataPart msgPart = MessageDataPart.getMessageDataPart(indexFirstInStack);
+				indexFirstInStack = msgPart.getIndexNext();
+				msgPart.delete();
+			}
 
-		// add new ones
-		for (int i = 0; i < list.size(); ++i) {
-			MessageDataPart msgPart = list.get(i);
+			// add new ones
+			for (int i = 0; i < list.size(); ++i) {
+				MessageDataPart msgPart = list.get(i);
+			
+				// parent
+				msgPart.setIndexParent(this.mEntryIndex);
 			
-			// parent
-			msgPart.setIndexParent(this.mEntryIndex);
+				// previous pointer
+				if (i > 0) 
+					msgPart.setIndexPrev(list.get(i - 1).getEntryIndex());
+				else
+					msgPart.setIndexPrev(0L);
 			
-			// previous pointer
-			if (i > 0) 
-				msgPart.setIndexPrev(list.get(i - 1).getEntryIndex());
-			else
-				msgPart.setIndexPrev(0L);
+				// next pointer
+				if (i < list.size() - 1) 
+					msgPart.setIndexNext(list.get(i + 1).getEntryIndex());
+				else
+					msgPart.setIndexNext(0L);
 			
-			// next pointer
-			if (i < list.size() - 1) 
-				msgPart.setIndexNext(list.get(i + 1).getEntryIndex());
+				msgPart.saveToFile();
+			}
+		
+			// update pointer in the conversation 
+			if (list.size() > 0)
+				this.setIndexMessageParts(list.get(0).getEntryIndex());
 			else
-				msgPart.setIndexNext(0L);
-			
-			msgPart.saveToFile();
+				this.setIndexMessageParts(0L);
+			this.saveToFile();
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
 		}
-		
-		// update pointer in the conversation 
-		if (list.size() > 0)
-			this.setIndexMessageParts(list.get(0).getEntryIndex());
-		else
-			this.setIndexMessageParts(0L);
-		this.saveToFile();
 	}
 	
 	/**
@@ -343,45 +394,106 @@ public class MessageData {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public void delete() throws StorageFileException {
-		MessageData prev = this.getPreviousMessageData();
-		MessageData next = this.getNextMessageData(); 
-
-		if (prev != null) {
-			// this is not the first message in the list
-			// update the previous one
-			prev.setIndexNext(this.getIndexNext());
-			prev.saveToFile();
-		} else {
-			// this IS the first message in the list
-			// update parent
-			Conversation parent = this.getParent();
-			parent.setIndexMessages(this.getIndexNext());
-			parent.saveToFile();
-		}
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			MessageData prev = this.getPreviousMessageData();
+			MessageData next = this.getNextMessageData(); 
+
+			if (prev != null) {
+				// this is not the first message in the list
+				// update the previous one
+				prev.setIndexNext(this.getIndexNext());
+				prev.saveToFile();
+			} else {
+				// this IS the first message in the list
+				// update parent
+				Conversation parent = this.getParent();
+				parent.setIndexMessages(this.getIndexNext());
+				parent.saveToFile();
+			}
 		
-		// update next one
-		if (next != null) {
-			next.setIndexPrev(this.getIndexPrev());
-			next.saveToFile();
-		}
+			// update next one
+			if (next != null) {
+				next.setIndexPrev(this.getIndexPrev());
+				next.saveToFile();
+			}
 		
-		// delete all of the MessageParts
-		MessageDataPart part = getFirstMessageDataPart();
-		while (part != null) {
-			part.delete();
-			part = getFirstMessageDataPart();
-		}
+			// delete all of the MessageParts
+			MessageDataPart part = getFirstMessageDataPart();
+			while (part != null) {
+				part.delete();
+				part = getFirstMessageDataPart();
+			}
 		
-		// delete this message
-		Empty.replaceWithEmpty(mEntryIndex);
+			// delete this message
+			Empty.replaceWithEmpty(mEntryIndex);
 		
-		// remove from cache
-		synchronized (cacheMessageData) {
-			cacheMessageData.remove(this);
-		}
+			// remove from cache
+			cacheMessageData.remove(mEntryIndex);
 		
-		// make this instance invalid
-		this.mEntryIndex = -1L;
+			// make this instance invalid
+			this.mEntryIndex = -1L;
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+	
+	/**
+	 * Moves the message to a different entry of the file and updates all the indices 
+	 * pointing to it. The target entry has to be taken out of the free space beforehand, 
+	 * the original one is replaced with an Empty entry.
+	 *
+	 * @param index 	Index of the target entry
+	 * @throws StorageFileException the storage file exception
+	 */
+	void moveTo(long index) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			long indexOld = mEntryIndex;
+			MessageData prev = this.getPreviousMessageData();
+			MessageData next = this.getNextMessageData();
+
+			mEntryIndex = index;
+			cacheMessageData.move(indexOld, index);
+			saveToFile();
+
+			if (prev != null) {
+				prev.setIndexNext(index);
+				prev.saveToFile();
+			} else {
+				Conversation parent = this.getParent();
+				parent.setIndexMessages(index);
+				parent.saveToFile();
+			}
+			if (next != null) {
+				next.setIndexPrev(index);
+				next.saveToFile();
+			}
+
+			// parts point back to this one
+			MessageDataPart part = getFirstMessageDataPart();
+			while (part != null) {
+				part.setIndexParent(index);
+				part.saveToFile();
+				part = part.getNextMessageDataPart();
+			}
+
+			Empty.replaceWithEmpty(indexOld);
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}
 	
 	// MESSAGE HIGH LEVEL
@@ -396,16 +508,47 @@ public class MessageData {
 	public byte[] getPartData(int index) throws StorageFileException {
 		if (index == 0) 
 			return this.getMessageBody();
-		else {
-			--index;
-			MessageDataPart part = getFirstMessageDataPart();
-			while (part != null) {
-				if (index-- == 0)
-					return part.getMessageBody();
-				part = part.getNextMessageDataPart();
-			}
-		}
-		throw new IndexOutOfBoundsException();
+		else
+			return getMessageDataPart(index).getMessageBody();
+	}
+	
+	/**
+	 * Returns the data of all the message parts, in order.
+	 *
+	 * @return the data
+	 * @throws StorageFileException the storage file exception
+	 */
+	public ArrayList<byte[]> getAllPartData() throws StorageFileException {
+		long[] indices = getPartIndices();
+		ArrayList<byte[]> data = new ArrayList<byte[]>(indices.length + 1);
+		data.add(this.getMessageBody());
+		for (long index : indices)
+			data.add(MessageDataPart.getMessageDataPart(index).getMessageBody());
+		return data;
+	}
+	
+	/**
+	 * Replaces all the message parts with parts holding given data, in order.
+	 * Adds/removes message parts as necessary and resets their delivery flags.
+	 * Data longer than a single part are cut.
+	 *
+	 * @param data the data (at least one element)
+	 * @throws StorageFileException the storage file exception
+	 */
+	public void setAllPartData(ArrayList<byte[]> data) throws StorageFileException {
+		if (data.isEmpty())
+			throw new IndexOutOfBoundsException();
+		setParts(data.size(), data);
+	}
+	
+	/**
+	 * Returns the number of message parts (there is always at least one).
+	 *
+	 * @return the number of parts
+	 * @throws StorageFileException the storage file exception
+	 */
+	public int getNumberOfParts() throws StorageFileException {
+		return getPartIndices().length + 1;
 	}
 	
 	/**
@@ -415,51 +558,90 @@ public class MessageData {
 	 * @throws StorageFileException
 	 */
 	public void setNumberOfParts(int count) throws StorageFileException {
-		--count; // count the first part
+		setParts(count, null);
+	}
+	
+	/**
+	 * Adds/removes message parts so that there is exactly given number of them
+	 * and fills them with given data, or empties them if data is null.
+	 * The first part is only changed if data is not null.
+	 * @param count
+	 * @param data
+	 * @throws StorageFileException
+	 */
+	private void setParts(int count, ArrayList<byte[]> data) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			if (data != null) {
+				this.setMessageBody(cutPartData(data.get(0)));
+				this.saveToFile();
+			}
+			
+			long[] indices = new long[Math.max(count - 1, 0)]; // without the first part
+			int i = 0;
 		
-		MessageDataPart temp = null, part = getFirstMessageDataPart();
-		while (count > 0 && part != null) {
-			part.setMessageBody(new byte[0]);
-			part.setDeliveredPart(false);
-			part.saveToFile();
+			MessageDataPart temp = null, part = getFirstMessageDataPart();
+			while (i < indices.length && part != null) {
+				part.setMessageBody((data == null) ? new byte[0] : cutPartData(data.get(i + 1)));
+				part.setDeliveredPart(false);
+				part.saveToFile();
 			
-			--count;
-			temp = part;
-			part = part.getNextMessageDataPart();
-		}
+				indices[i++] = part.getEntryIndex();
+				temp = part;
+				part = part.getNextMessageDataPart();
+			}
 		
-		if (count > 0 && part == null) {
-			// we need to add more
-			while (count-- > 0) {
-				part = MessageDataPart.createMessageDataPart();
-				// parent
-				part.setIndexParent(this.mEntryIndex);
-				// pointers
-				if (temp == null) {
-					// this is the first one in list
-					part.setIndexPrev(0L);
-					this.setIndexMessageParts(part.getEntryIndex());
-					this.saveToFile();
+			if (i < indices.length) {
+				// we need to add more
+				// => get all the entries at once, close to the rest of the message
+				long[] newIndices = Empty.getEmptyIndices(indices.length - i, (temp != null) ? temp.getEntryIndex() : this.mEntryIndex);
+				int j = 0;
+				while (i < indices.length) {
+					part = MessageDataPart.createMessageDataPart(newIndices[j++]);
+					// parent
+					part.setIndexParent(this.mEntryIndex);
+					// data
+					if (data != null)
+						part.setMessageBody(cutPartData(data.get(i + 1)));
+					// pointers
+					if (temp == null) {
+						// this is the first one in list
+						part.setIndexPrev(0L);
+						this.setIndexMessageParts(part.getEntryIndex());
+						this.saveToFile();
+					}
+					else {
+						part.setIndexPrev(temp.getEntryIndex());
+						temp.setIndexNext(part.getEntryIndex());
+						temp.saveToFile();
+					}
+					part.setIndexNext(0);
+					indices[i++] = part.getEntryIndex();
+					// save and move to next
+					if (i >= indices.length) // otherwise will be saved in the next run
+						part.saveToFile();
+					temp = part;
 				}
-				else {
-					part.setIndexPrev(temp.getEntryIndex());
-					temp.setIndexNext(part.getEntryIndex());
-					temp.saveToFile();
+			
+			} else if (part != null) {
+				// we need to remove some
+				while (part != null) {
+					temp = part.getNextMessageDataPart();
+					part.delete();
+					part = temp;
 				}
-				part.setIndexNext(0);
-				// save and move to next
-				if (count <= 0) // otherwise will be saved in the next run
-					part.saveToFile();
-				temp = part;
 			}
 			
-		} else if (count <= 0 && part != null) {
-			// we need to remove some
-			while (part != null) {
-				temp = part.getNextMessageDataPart();
-				part.delete();
-				part = temp;
-			}
+			// deleting parts dropped the old array
+			mPartIndices = indices;
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
 		}
 	}
 	
@@ -470,21 +652,53 @@ public class MessageData {
 	 * @throws StorageFileException
 	 */
 	private MessageDataPart getMessageDataPart(int index) throws StorageFileException {
-		if (index <= 0)
+		long[] indices = getPartIndices();
+		if (index <= 0 || index > indices.length)
 			throw new IndexOutOfBoundsException();
-		else {
-			--index; // for the first part
-			MessageDataPart part = this.getFirstMessageDataPart();
-			while (part != null && index > 0) {
+		else
+			return MessageDataPart.getMessageDataPart(indices[index - 1]);
+	}
+	
+	/**
+	 * Returns the entry indices of all the message parts but the first one, in order.
+	 * Walks the linked list only the first time, the array is then
+	 * reused until the list changes.
+	 * @return
+	 * @throws StorageFileException
+	 */
+	private long[] getPartIndices() throws StorageFileException {
+		long[] indices = mPartIndices;
+		if (indices == null) {
+			indices = new long[4];
+			int count = 0;
+			MessageDataPart.prefetch(mIndexMessageParts);
+			MessageDataPart part = getFirstMessageDataPart();
+			while (part != null) {
+				if (count == indices.length)
+					indices = Arrays.copyOf(indices, count * 2);
+				indices[count++] = part.getEntryIndex();
+				MessageDataPart.prefetch(part.getIndexNext());
 				part = part.getNextMessageDataPart();
-				index--;
 			}
-			
-			if (part != null)
-				return part;
-			else
-				throw new IndexOutOfBoundsException();
+			indices = Arrays.copyOf(indices, count);
+			mPartIndices = indices;
 		}
+		return indices;
+	}
+	
+	/**
+	 * Drops the array of message part indices, so that it's rebuilt next time it's needed.
+	 * Has to be called whenever the linked list of message parts changes.
+	 */
+	void invalidatePartIndices() {
+		mPartIndices = null;
+	}
+	
+	private static byte[] cutPartData(byte[] data) {
+		// if it's too long, just cut it
+		if (data.length > LENGTH_MESSAGEBODY)
+			return LowLevel.cutData(data, 0, LENGTH_MESSAGEBODY);
+		return data;
 	}
 	
 	/**
@@ -495,9 +709,7 @@ public class MessageData {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public void setPartData(int index, byte[] data) throws StorageFileException {
-		// if it's too long, just cut it
-		if (data.length > LENGTH_MESSAGEBODY)
-			data = LowLevel.cutData(data, 0, LENGTH_MESSAGEBODY);
+		data = cutPartData(data);
 
 		if (index == 0) {
 			this.setMessageBody(data);
@@ -620,6 +832,7 @@ public class MessageData {
 			throw new IndexOutOfBoundsException();
 			
 		this.mIndexMessageParts = indexMessageParts;
+		invalidatePartIndices();
 	}
 
 	long getIndexPrev() {
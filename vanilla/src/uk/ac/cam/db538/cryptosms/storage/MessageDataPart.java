@@ -16,10 +16,8 @@
 package uk.ac.cam.db538.cryptosms.storage;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
-import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
 import uk.ac.cam.db538.cryptosms.utils.LowLevel;
 
 /**
@@ -50,16 +48,32 @@ class MessageDataPart {
 	
 	// STATIC
 	
-	private static ArrayList<MessageDataPart> cacheMessageDataPart = new ArrayList<MessageDataPart>();
+	private static EntryCache<MessageDataPart> cacheMessageDataPart = new EntryCache<MessageDataPart>(Storage.getCacheCapacity());
 	
 	/**
 	 * Removes all instances from the list of cached objects.
 	 * Be sure you don't use the instances afterwards.
 	 */
 	public static void forceClearCache() {
-		synchronized (cacheMessageDataPart) {
-			cacheMessageDataPart = new ArrayList<MessageDataPart>();
-		}
+		cacheMessageDataPart.clear();
+	}
+	
+	/**
+	 * Sets how many instances are kept in memory when they're not in use.
+	 *
+	 * @param capacity the capacity, zero for unlimited
+	 */
+	static void setCacheCapacity(int capacity) {
+		cacheMessageDataPart.setCapacity(capacity);
+	}
+	
+	/**
+	 * Returns the hit/miss/eviction counters of the message part cache.
+	 *
+	 * @return the cache statistics
+	 */
+	public static CacheStatistics getCacheStatistics() {
+		return cacheMessageDataPart.getStatistics();
 	}
 	
 	/**
@@ -72,6 +86,17 @@ class MessageDataPart {
 		return new MessageDataPart(Empty.getEmptyIndex(), false);
 	}
 
+	/**
+	 * Creates new MessagePart at given index, which has to be obtained from Empty beforehand.
+	 *
+	 * @param index 	Index in file
+	 * @return the message data part
+	 * @throws StorageFileException the storage file exception
+	 */
+	static MessageDataPart createMessageDataPart(long index) throws StorageFileException {
+		return new MessageDataPart(index, false);
+	}
+
 	/**
 	 * Returns an instance of Empty class with given index in file.
 	 *
@@ -84,15 +109,25 @@ class MessageDataPart {
 			return null;
 		
 		// try looking it up
-		synchronized (cacheMessageDataPart) {
-			for (MessageDataPart msgPart: cacheMessageDataPart)
-				if (msgPart.getEntryIndex() == index)
-					return msgPart; 
-		}
+		MessageDataPart cached = cacheMessageDataPart.get(index);
+		if (cached != null)
+			return cached;
 		// create a new one
 		return new MessageDataPart(index, true);
 	}
 	
+	/**
+	 * Reads ahead and decrypts the entries starting with given index, 
+	 * unless there already is an instance for it.
+	 *
+	 * @param index 	Index of the next entry in a list, zero if there isn't any
+	 * @throws StorageFileException the storage file exception
+	 */
+	static void prefetch(long index) throws StorageFileException {
+		if (index > 0L && !cacheMessageDataPart.contains(index))
+			EntryPrefetcher.prefetchRun(index);
+	}
+	
 	// INTERNAL FIELDS
 	private long mEntryIndex; // READ ONLY
 	private boolean mDeliveredPart;
@@ -113,13 +148,7 @@ class MessageDataPart {
 		mEntryIndex = index;
 		
 		if (readFromFile) {
-			byte[] dataEncrypted = Storage.getStorage().getEntry(index);
-			byte[] dataPlain;
-			try {
-				dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
-			} catch (EncryptionException e) {
-				throw new StorageFileException(e);
-			}
+			byte[] dataPlain = EntryPrefetcher.getDecryptedEntry(index);
 			
 			byte flags = dataPlain[OFFSET_FLAGS];
 			boolean deliveredPart = ((flags & (1 << 7)) == 0) ? false : true;
@@ -142,13 +171,26 @@ class MessageDataPart {
 			saveToFile();
 		}
 
-		synchronized (cacheMessageDataPart) {
-			cacheMessageDataPart.add(this);
-		}
+		cacheMessageDataPart.put(mEntryIndex, this);
 	}
 
 	// FUNCTIONS
 	
+	/**
+	 * Pins this instance in the cache, so that it isn't evicted until unpinned.
+	 * Every call has to be matched by a call to unpin().
+	 */
+	public void pin() {
+		cacheMessageDataPart.pin(mEntryIndex, this);
+	}
+	
+	/**
+	 * Releases a pin of this instance in the cache.
+	 */
+	public void unpin() {
+		cacheMessageDataPart.unpin(mEntryIndex);
+	}
+	
 	/**
 	 * Save contents of the class to the storage file.
 	 *
@@ -175,13 +217,7 @@ class MessageDataPart {
 		msgBuffer.put(LowLevel.getBytesUnsignedInt(this.mIndexPrev));
 		msgBuffer.put(LowLevel.getBytesUnsignedInt(this.mIndexNext));
 		
-		byte[] dataEncrypted = null;
-		try {
-			dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(msgBuffer.array());
-		} catch (EncryptionException e) {
-			throw new StorageFileException(e);
-		}
-		Storage.getStorage().setEntry(mEntryIndex, dataEncrypted);
+		Storage.getStorage().setEntry(mEntryIndex, Storage.encryptEntry(msgBuffer.array()));
 	}
 
 	/**
@@ -217,38 +253,99 @@ class MessageDataPart {
 	 * @throws StorageFileException the storage file exception
 	 */
 	void delete() throws StorageFileException {
-		MessageDataPart prev = this.getPreviousMessageDataPart();
-		MessageDataPart next = this.getNextMessageDataPart(); 
-
-		if (prev != null) {
-			// this is not the first message part in the list
-			// update the previous one
-			prev.setIndexNext(this.getIndexNext());
-			prev.saveToFile();
-		} else {
-			// this IS the first message part in the list
-			// update parent
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			MessageDataPart prev = this.getPreviousMessageDataPart();
+			MessageDataPart next = this.getNextMessageDataPart(); 
 			MessageData parent = this.getParent();
-			parent.setIndexMessageParts(this.getIndexNext());
-			parent.saveToFile();
-		}
+			
+			// the list of parts is about to change
+			if (parent != null)
+				parent.invalidatePartIndices();
+
+			if (prev != null) {
+				// this is not the first message part in the list
+				// update the previous one
+				prev.setIndexNext(this.getIndexNext());
+				prev.saveToFile();
+			} else {
+				// this IS the first message part in the list
+				// update parent
+				parent.setIndexMessageParts(this.getIndexNext());
+				parent.saveToFile();
+			}
 		
-		// update next one
-		if (next != null) {
-			next.setIndexPrev(this.getIndexPrev());
-			next.saveToFile();
-		}
+			// update next one
+			if (next != null) {
+				next.setIndexPrev(this.getIndexPrev());
+				next.saveToFile();
+			}
 		
-		// delete this message
-		Empty.replaceWithEmpty(mEntryIndex);
+			// delete this message
+			Empty.replaceWithEmpty(mEntryIndex);
 				
-		// remove from cache
-		synchronized (cacheMessageDataPart) {
-			cacheMessageDataPart.remove(this);
-		}
+			// remove from cache
+			cacheMessageDataPart.remove(mEntryIndex);
 		
-		// make this instance invalid
-		this.mEntryIndex = -1L;
+			// make this instance invalid
+			this.mEntryIndex = -1L;
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+	
+	/**
+	 * Moves the part to a different entry of the file and updates all the indices 
+	 * pointing to it. The target entry has to be taken out of the free space beforehand, 
+	 * the original one is replaced with an Empty entry.
+	 *
+	 * @param index 	Index of the target entry
+	 * @throws StorageFileException the storage file exception
+	 */
+	void moveTo(long index) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			long indexOld = mEntryIndex;
+			MessageDataPart prev = this.getPreviousMessageDataPart();
+			MessageDataPart next = this.getNextMessageDataPart();
+			MessageData parent = this.getParent();
+
+			// the indices of parts are about to change
+			if (parent != null)
+				parent.invalidatePartIndices();
+
+			mEntryIndex = index;
+			cacheMessageDataPart.move(indexOld, index);
+			saveToFile();
+
+			if (prev != null) {
+				prev.setIndexNext(index);
+				prev.saveToFile();
+			} else {
+				parent.setIndexMessageParts(index);
+				parent.saveToFile();
+			}
+			if (next != null) {
+				next.setIndexPrev(index);
+				next.saveToFile();
+			}
+
+			Empty.replaceWithEmpty(indexOld);
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}
 	
 	// GETTERS / SETTERS
@@ -0,0 +1,72 @@
+/*
+ *   Copyright 2011 David Brazdil
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+package uk.ac.cam.db538.cryptosms.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Storage file backend doing a seek and read/write on a RandomAccessFile for each access
+ *
+ * @author David Brazdil
+ *
+ */
+class RandomAccessStorageFile extends StorageFile {
+	private RandomAccessFile mFile;
+
+	/**
+	 * Instantiates a new storage file.
+	 *
+	 * @param filename the filename
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	RandomAccessStorageFile(String filename) throws IOException {
+		mFile = new RandomAccessFile(filename, "rw");
+	}
+
+	@Override
+	long length() throws IOException {
+		return mFile.length();
+	}
+
+	@Override
+	void read(long offset, byte[] data) throws IOException {
+		mFile.seek(offset);
+		mFile.readFully(data);
+	}
+
+	@Override
+	void write(long offset, byte[] data) throws IOException {
+		mFile.seek(offset);
+		mFile.write(data);
+	}
+
+	@Override
+	void truncate(long length) throws IOException {
+		if (length < mFile.length())
+			mFile.setLength(length);
+	}
+
+	@Override
+	void sync() throws IOException {
+		mFile.getFD().sync();
+	}
+
+	@Override
+	void close() throws IOException {
+		mFile.close();
+	}
+}
@@ -16,10 +16,11 @@
 package uk.ac.cam.db538.cryptosms.storage;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 
 import uk.ac.cam.db538.cryptosms.crypto.EllipticCurveDeffieHellman;
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
-import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
+import uk.ac.cam.db538.cryptosms.crypto.KeyRatchet;
 import uk.ac.cam.db538.cryptosms.utils.Charset;
 import uk.ac.cam.db538.cryptosms.utils.LowLevel;
 import uk.ac.cam.db538.cryptosms.utils.SimNumber;
@@ -59,16 +60,33 @@ public class SessionKeys {
 	
 	// STATIC
 	
-	private static ArrayList<SessionKeys> cacheSessionKeys = new ArrayList<SessionKeys>();
+	private static EntryCache<SessionKeys> cacheSessionKeys = new EntryCache<SessionKeys>(Storage.getCacheCapacity());
+	private static KeyRatchet ratchetIn = new KeyRatchet(KeyRatchet.DEFAULT_CAPACITY);
 	
 	/**
 	 * Removes all instances from the list of cached objects.
 	 * Be sure you don't use the instances afterwards.
 	 */
 	public static void forceClearCache() {
-		synchronized (cacheSessionKeys) {
-			cacheSessionKeys = new ArrayList<SessionKeys>();
-		}
+		cacheSessionKeys.clear();
+	}
+	
+	/**
+	 * Sets how many instances are kept in memory when they're not in use.
+	 *
+	 * @param capacity the capacity, zero for unlimited
+	 */
+	static void setCacheCapacity(int capacity) {
+		cacheSessionKeys.setCapacity(capacity);
+	}
+	
+	/**
+	 * Returns the hit/miss/eviction counters of the session keys cache.
+	 *
+	 * @return the cache statistics
+	 */
+	public static CacheStatistics getCacheStatistics() {
+		return cacheSessionKeys.getStatistics();
 	}
 
 	/**
@@ -79,9 +97,20 @@ public class SessionKeys {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public static SessionKeys createSessionKeys(Conversation parent) throws StorageFileException {
-		SessionKeys keys = new SessionKeys(Empty.getEmptyIndex(), false);
-		parent.attachSessionKeys(keys);
-		return keys;
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			SessionKeys keys = new SessionKeys(Empty.getEmptyIndex(parent.getEntryIndex()), false);
+			parent.attachSessionKeys(keys);
+			success = true;
+			return keys;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}
 
 	/**
@@ -96,11 +125,9 @@ public class SessionKeys {
 			return null;
 		
 		// try looking it up
-		synchronized (cacheSessionKeys) {
-			for (SessionKeys keys: cacheSessionKeys)
-				if (keys.getEntryIndex() == index)
-					return keys; 
-		}
+		SessionKeys cached = cacheSessionKeys.get(index);
+		if (cached != null)
+			return cached;
 		
 		// create a new one
 		return new SessionKeys(index, true);
@@ -131,13 +158,7 @@ public class SessionKeys {
 		mEntryIndex = index;
 		
 		if (readFromFile) {
-			byte[] dataEncrypted = Storage.getStorage().getEntry(index);
-			byte[] dataPlain;
-			try {
-				dataPlain = Encryption.getEncryption().decryptSymmetricWithMasterKey(dataEncrypted);
-			} catch (EncryptionException e) {
-				throw new StorageFileException(e);
-			}
+			byte[] dataPlain = EntryPrefetcher.getDecryptedEntry(index);
 
 			byte flags = dataPlain[OFFSET_FLAGS];
 			boolean keysSent = ((flags & (1 << 7)) == 0) ? false : true;
@@ -171,13 +192,26 @@ public class SessionKeys {
 			saveToFile();
 		}
 
-		synchronized (cacheSessionKeys) {
-			cacheSessionKeys.add(this);
-		}
+		cacheSessionKeys.put(mEntryIndex, this);
 	}
 
 	// FUNCTIONS
 
+	/**
+	 * Pins this instance in the cache, so that it isn't evicted until unpinned.
+	 * Every call has to be matched by a call to unpin().
+	 */
+	public void pin() {
+		cacheSessionKeys.pin(mEntryIndex, this);
+	}
+	
+	/**
+	 * Releases a pin of this instance in the cache.
+	 */
+	public void unpin() {
+		cacheSessionKeys.unpin(mEntryIndex);
+	}
+	
 	/**
 	 * Saves contents of the class to the storage file.
 	 *
@@ -214,13 +248,7 @@ public class SessionKeys {
 		System.arraycopy(LowLevel.getBytesUnsignedInt(this.mIndexNext), 0, keysBuffer, OFFSET_NEXTINDEX, 4);
 		
 		// encrypt and save
-		byte[] dataEncrypted = null;
-		try {
-			dataEncrypted = Encryption.getEncryption().encryptSymmetricWithMasterKey(keysBuffer);
-		} catch (EncryptionException e) {
-			throw new StorageFileException(e);
-		}
-		Storage.getStorage().setEntry(mEntryIndex, dataEncrypted);
+		Storage.getStorage().setEntry(mEntryIndex, Storage.encryptEntry(keysBuffer));
 	}
 
 	/**
@@ -262,38 +290,91 @@ public class SessionKeys {
 	 * @throws StorageFileException the storage file exception
 	 */
 	public void delete() throws StorageFileException {
-		SessionKeys prev = this.getPreviousSessionKeys();
-		SessionKeys next = this.getNextSessionKeys(); 
-
-		if (prev != null) {
-			// this is not the first message in the list
-			// update the previous one
-			prev.setIndexNext(this.getIndexNext());
-			prev.saveToFile();
-		} else {
-			// this IS the first message in the list
-			// update parent
-			Conversation parent = this.getParent();
-			parent.setIndexSessionKeys(this.getIndexNext());
-			parent.saveToFile();
-		}
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			SessionKeys prev = this.getPreviousSessionKeys();
+			SessionKeys next = this.getNextSessionKeys(); 
+
+			if (prev != null) {
+				// this is not the first message in the list
+				// update the previous one
+				prev.setIndexNext(this.getIndexNext());
+				prev.saveToFile();
+			} else {
+				// this IS the first message in the list
+				// update parent
+				Conversation parent = this.getParent();
+				parent.setIndexSessionKeys(this.getIndexNext());
+				parent.saveToFile();
+			}
 		
-		// update next one
-		if (next != null) {
-			next.setIndexPrev(this.getIndexPrev());
-			next.saveToFile();
-		}
+			// update next one
+			if (next != null) {
+				next.setIndexPrev(this.getIndexPrev());
+				next.saveToFile();
+			}
 		
-		// delete this message
-		Empty.replaceWithEmpty(mEntryIndex);
+			// delete this message
+			Empty.replaceWithEmpty(mEntryIndex);
 				
-		// remove from cache
-		synchronized (cacheSessionKeys) {
-			cacheSessionKeys.remove(this);
-		}
+			// remove from cache
+			cacheSessionKeys.remove(mEntryIndex);
 		
-		// make this instance invalid
-		this.mEntryIndex = -1L;
+			// make this instance invalid
+			this.mEntryIndex = -1L;
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
+	}
+
+	/**
+	 * Moves the keys to a different entry of the file and updates all the indices 
+	 * pointing to them. The target entry has to be taken out of the free space beforehand, 
+	 * the original one is replaced with an Empty entry.
+	 *
+	 * @param index 	Index of the target entry
+	 * @throws StorageFileException the storage file exception
+	 */
+	void moveTo(long index) throws StorageFileException {
+		Storage storage = Storage.getStorage();
+		storage.beginTransaction();
+		boolean success = false;
+		try {
+			long indexOld = mEntryIndex;
+			SessionKeys prev = this.getPreviousSessionKeys();
+			SessionKeys next = this.getNextSessionKeys();
+
+			mEntryIndex = index;
+			cacheSessionKeys.move(indexOld, index);
+			saveToFile();
+
+			if (prev != null) {
+				prev.setIndexNext(index);
+				prev.saveToFile();
+			} else {
+				Conversation parent = this.getParent();
+				parent.setIndexSessionKeys(index);
+				parent.saveToFile();
+			}
+			if (next != null) {
+				next.setIndexPrev(index);
+				next.saveToFile();
+			}
+
+			Empty.replaceWithEmpty(indexOld);
+			success = true;
+		} finally {
+			if (success)
+				storage.commit();
+			else
+				storage.rollback();
+		}
 	}
 
 	public enum SessionKeysStatus {
@@ -334,18 +415,72 @@ public class SessionKeys {
 	 * @param count the count
 	 */
 	public void incrementOut(int count) {
-		for (int i = 0; i < count; ++i)
-			setSessionKey_Out(Encryption.getEncryption().getHash(getSessionKey_Out()));
+		setSessionKey_Out(KeyRatchet.advance(getSessionKey_Out(), count));
 	}
 	
 	/**
 	 * Increments incoming session key
 	 *
 	 * @param count the count
+	 * @throws StorageFileException the storage file exception
 	 */
-	public void incrementIn(int count) {
-		for (int i = 0; i < count; ++i)
-			setSessionKey_In(Encryption.getEncryption().getHash(getSessionKey_In()));
+	public void incrementIn(int count) throws StorageFileException {
+		incrementIn(count, null);
+	}
+	
+	/**
+	 * Increments incoming session key. The keys skipped over are remembered,
+	 * so that messages encrypted with them can still be decrypted when they arrive late.
+	 *
+	 * @param count the count
+	 * @param used which of the skipped keys have been used already, counted from the current one; null if none
+	 * @throws StorageFileException the storage file exception
+	 */
+	public void incrementIn(int count, BitSet used) throws StorageFileException {
+		setSessionKey_In(ratchetIn.advance(getChainId(), getSessionKey_In(), count, used));
+	}
+	
+	/**
+	 * Returns the incoming keys skipped over by incrementIn() and not used yet, the most recent first.
+	 *
+	 * @return the keys
+	 * @throws StorageFileException the storage file exception
+	 */
+	public ArrayList<byte[]> getSkippedKeys_In() throws StorageFileException {
+		return ratchetIn.getSkipped(getChainId());
+	}
+	
+	/**
+	 * Marks a skipped incoming key as used, so that it can't be used again.
+	 *
+	 * @param key the key
+	 * @return true, if it was one of the skipped keys
+	 * @throws StorageFileException the storage file exception
+	 */
+	public boolean useSkippedKey_In(byte[] key) throws StorageFileException {
+		return ratchetIn.removeSkipped(getChainId(), key);
+	}
+	
+	/**
+	 * Forgets the skipped incoming keys of this conversation and SIM,
+	 * must be called when the incoming key is replaced by a new key exchange.
+	 *
+	 * @throws StorageFileException the storage file exception
+	 */
+	public void forgetSkippedKeys_In() throws StorageFileException {
+		ratchetIn.clear(getChainId());
+	}
+	
+	/**
+	 * Forgets all the skipped incoming keys of all the conversations.
+	 */
+	public static void forgetSkippedKeys() {
+		ratchetIn.clear();
+	}
+	
+	private String getChainId() throws StorageFileException {
+		Conversation parent = getParent();
+		return ((parent == null) ? "" : parent.getPhoneNumber()) + "/" + mSimNumber.getNumber();
 	}
 
 	// GETTERS / SETTERS
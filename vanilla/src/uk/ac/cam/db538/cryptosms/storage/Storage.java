@@ -15,22 +15,48 @@
  */
 package uk.ac.cam.db538.cryptosms.storage;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
 
 import uk.ac.cam.db538.cryptosms.crypto.Encryption;
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface;
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.EncryptionException;
+import uk.ac.cam.db538.cryptosms.crypto.EncryptionInterface.WrongKeyDecryptionException;
 
 public final class Storage {
 	static final int CHUNK_SIZE = 256;
 	static final int ALIGN_SIZE = 256 * 32; // 8KB
 	static final int ENCRYPTED_ENTRY_SIZE = CHUNK_SIZE - Encryption.SYM_OVERHEAD;
 	
+	static final String JOURNAL_SUFFIX = "-journal";
+	static final int JOURNAL_MAGIC = 0x534D534A; // SMSJ
+	static final int JOURNAL_MAGIC_TRUNCATE = 0x534D5354; // SMST, followed by the new length
+	static final int JOURNAL_HEADER_SIZE = 8;
+	static final int JOURNAL_RECORD_SIZE = 4 + CHUNK_SIZE;
+	static final int JOURNAL_TRUNCATE_SIZE = 8;
+	static final int JOURNAL_CHECKSUM_SIZE = 8;
+	
+	static final int CONVERSION_BATCH = 256; // entries re-encrypted in one transaction
+	static final int MODIFICATION_LOG_SIZE = 4096; // last writes remembered for getModifiedEntries()
+	
 	// SINGLETON STUFF
 	
 	private static Storage mSingleton = null;
 	private static String mFilename = null;
+	private static boolean mMemoryMapped = true;
+	private static int mCacheCapacity = 256;
+	private static boolean mFreeSpaceMap = false;
+	private static boolean mCounterMode = false;
+	private static int mDecryptionThreads = Runtime.getRuntime().availableProcessors();
 	
 	/**
 	 * Returns the instance of the Database singleton class.
@@ -40,8 +66,30 @@ public final class Storage {
 	 * @throws IOException 
 	 */
 	public static Storage getStorage() throws StorageFileException {
-		if (mSingleton == null) 
-			mSingleton = new Storage();
+		if (mSingleton == null) {
+			Storage storage = new Storage();
+			// the singleton has to be set before the file is populated,
+			// otherwise the entries would call back into a second instance
+			mSingleton = storage;
+			boolean success = false;
+			try {
+				if (storage.mNewFile)
+					storage.createFile();
+				storage.updateFormat();
+				storage.updateFreeSpaceMap();
+				success = true;
+			} finally {
+				if (!success) {
+					// a half-converted file mustn't be used, the next call tries again
+					mSingleton = null;
+					try {
+						storage.closeFile();
+					} catch (StorageFileException e) {
+					}
+					clearCaches();
+				}
+			}
+		}
 		return mSingleton;
 	}
 	
@@ -55,9 +103,96 @@ public final class Storage {
 		mFilename = filename;
 	}
 	
+	/**
+	 * Sets whether the storage file should be accessed through memory mapping
+	 * or through seeks on a RandomAccessFile. Takes effect the next time the singleton is created.
+	 * Memory mapping is the default.
+	 * @param memoryMapped
+	 */
+	public static void setMemoryMapped(boolean memoryMapped) {
+		mMemoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Sets how many decrypted instances of each entity type are kept in memory
+	 * when nobody is using them. Instances still in use are never dropped,
+	 * so there's always at most one instance per entry.
+	 * Zero means that the caches are unlimited.
+	 * @param capacity
+	 */
+	public static void setCacheCapacity(int capacity) {
+		mCacheCapacity = capacity;
+		Conversation.setCacheCapacity(capacity);
+		SessionKeys.setCacheCapacity(capacity);
+		MessageData.setCacheCapacity(capacity);
+		MessageDataPart.setCacheCapacity(capacity);
+	}
+
+	/**
+	 * Returns how many decrypted instances of each entity type are kept in memory.
+	 * @return the capacity, zero for unlimited
+	 */
+	public static int getCacheCapacity() {
+		return mCacheCapacity;
+	}
+
+	/**
+	 * Sets whether free entries should be tracked in an encrypted bitmap
+	 * instead of the linked list of Empty entries. The bitmap can hand out
+	 * runs of contiguous entries and grows the file in bulk.
+	 * Takes effect the next time the singleton is created, when the file gets converted if necessary.
+	 * The linked list is the default.
+	 * @param freeSpaceMap
+	 */
+	public static void setFreeSpaceMap(boolean freeSpaceMap) {
+		mFreeSpaceMap = freeSpaceMap;
+	}
+	
+	/**
+	 * Sets whether entries should be encrypted with AES in the counter mode instead of CBC,
+	 * both followed by a MAC. In the counter mode, parts of the entries can be decrypted
+	 * without the rest, e.g. only the index of the next entry in a list.
+	 * Takes effect the next time the singleton is created, when the file gets converted if necessary.
+	 * CBC is the default.
+	 * @param counterMode
+	 */
+	public static void setCounterMode(boolean counterMode) {
+		mCounterMode = counterMode;
+	}
+	
+	/**
+	 * Returns the version of the file format the files are converted to,
+	 * depending on the settings.
+	 * @return the version
+	 */
+	static int getFormatVersion() {
+		return mCounterMode ? Header.VERSION_COUNTER_MODE : Header.CURRENT_VERSION;
+	}
+	
+	/**
+	 * Sets how many threads decrypt entries read ahead while walking the lists.
+	 * One means that everything is decrypted on the calling thread.
+	 * The number of processors is the default.
+	 * @param threads
+	 */
+	public static void setDecryptionThreads(int threads) {
+		mDecryptionThreads = Math.max(1, threads);
+		EntryPrefetcher.setThreads(mDecryptionThreads);
+	}
+	
+	/**
+	 * Returns how many threads decrypt entries read ahead.
+	 * @return the number of threads
+	 */
+	public static int getDecryptionThreads() {
+		return mDecryptionThreads;
+	}
+	
 	// FILE MANIPULATION
 	
 	private StorageFile smsFile;
+	private RandomAccessFile mJournal;
+	private boolean mNewFile;
 
 	/**
 	 * Constructor
@@ -69,17 +204,19 @@ public final class Storage {
 		if (mFilename == null)
 			throw new StorageFileException("No filename was set");
 		
-		boolean exists = true;
 		try {
 			File f = new File(mFilename);
-			exists = f.exists();
-			smsFile = new StorageFile(mFilename);
+			File journal = new File(mFilename + JOURNAL_SUFFIX);
+			mNewFile = !f.exists();
+			if (mNewFile)
+				// can't belong to this file
+				journal.delete();
+			smsFile = StorageFile.openFile(mFilename, mMemoryMapped);
+			mJournal = new RandomAccessFile(journal, "rw");
+			replayJournal();
 		} catch (IOException ex) {
 			throw new StorageFileException(ex);
 		}
-		
-		if (!exists)
-			createFile();
 	}
 	
 	/**
@@ -90,20 +227,148 @@ public final class Storage {
 	 */
 	private synchronized void createFile() throws StorageFileException {
 		int countFreeEntries = ALIGN_SIZE / CHUNK_SIZE - 1;
-		// create an empty instance of the header
-		Header.createHeader();
-		// add some empty entries
-		Empty.addEmptyEntries(countFreeEntries);
+		beginTransaction();
+		boolean success = false;
+		try {
+			// create an empty instance of the header
+			Header.createHeader();
+			// add some empty entries
+			Empty.addEmptyEntries(countFreeEntries);
+			success = true;
+		} finally {
+			if (success)
+				commit();
+			else
+				rollback();
+		}
+	}
+	
+	/**
+	 * Re-encrypts all the entries of a file written by an older version,
+	 * or in the other mode, in the format chosen by the settings.
+	 * The entries are converted in batches, each committed on its own together with 
+	 * the progress stored in the header, so an interrupted conversion continues where it stopped. 
+	 * Only free entries of the free space map, which hold random data, are left alone 
+	 * if they can't be decrypted, any other such entry stops the conversion.
+	 * @throws StorageFileException
+	 */
+	private synchronized void updateFormat() throws StorageFileException {
+		while (true) {
+			Header header = Header.getHeader();
+			if (header.getIndexConversion() == 0L) {
+				int version = header.getVersion();
+				int versionNew = getFormatVersion();
+				if (version == versionNew || version > Header.VERSION_COUNTER_MODE)
+					// nothing to do, or written by a newer version
+					return;
+				beginConversion(version, versionNew);
+			} else
+				convertBatch();
+		}
+	}
+	
+	/**
+	 * Re-encrypts the header and the chunks of the free space map, 
+	 * so that the rest of the entries can be checked against the map while they are converted.
+	 * @throws StorageFileException
+	 */
+	private void beginConversion(int version, int versionNew) throws StorageFileException {
+		beginTransaction();
+		boolean success = false;
+		try {
+			FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+			if (map != null)
+				for (long index : map.getChunkIndices())
+					setEntry(index, encryptEntry(decryptEntry(getEntry(index), version), versionNew));
+			
+			Header header = Header.getHeader();
+			header.setVersion(versionNew);
+			header.setConversion(version, Math.min(1L, getEntriesCount() - 1)); // the header is at index 0
+			header.saveToFile();
+			success = true;
+		} finally {
+			if (success)
+				commit();
+			else
+				rollback();
+		}
 	}
 	
 	/**
-	 * Close file.
+	 * Re-encrypts the next batch of entries.
+	 * @throws StorageFileException
+	 */
+	private void convertBatch() throws StorageFileException {
+		beginTransaction();
+		boolean success = false;
+		try {
+			Header header = Header.getHeader();
+			int version = header.getConversionVersion();
+			int versionNew = header.getVersion();
+			long start = header.getIndexConversion();
+			long count = getEntriesCount();
+			long end = Math.min(count, start + CONVERSION_BATCH);
+			
+			FreeSpaceMap map = FreeSpaceMap.getFreeSpaceMap();
+			long[] chunks = (map == null) ? new long[0] : map.getChunkIndices();
+			Arrays.sort(chunks);
+			
+			for (long index = start; index < end; ++index) {
+				if (Arrays.binarySearch(chunks, index) >= 0)
+					// already converted
+					continue;
+				
+				byte[] dataPlain;
+				try {
+					dataPlain = decryptEntry(getEntry(index), version);
+				} catch (StorageFileException e) {
+					if (map != null && map.isFree(index))
+						// random data
+						continue;
+					throw new StorageFileException("Entry " + index + " can't be converted to the new format");
+				}
+				setEntry(index, encryptEntry(dataPlain, versionNew));
+			}
+			
+			header.setConversion((end < count) ? version : 0, (end < count) ? end : 0L);
+			header.saveToFile();
+			success = true;
+		} finally {
+			if (success)
+				commit();
+			else
+				rollback();
+		}
+	}
+	
+	/**
+	 * Converts the file between the free space map and the linked list of empty entries,
+	 * depending on the setting.
+	 * @throws StorageFileException
+	 */
+	void updateFreeSpaceMap() throws StorageFileException {
+		if (mFreeSpaceMap)
+			FreeSpaceMap.createFreeSpaceMap();
+		else
+			FreeSpaceMap.dropFreeSpaceMap();
+	}
+	
+	/**
+	 * Close file. 
+	 * Pending writes of an unfinished transaction are discarded.
 	 *
 	 * @throws StorageFileException the storage file exception
 	 */
 	public synchronized void closeFile() throws StorageFileException {
+		if (mTransactionDepth > 0) {
+			mTransactionDepth = 0;
+			discardTransaction();
+			endTransaction();
+		}
 		try {
-			smsFile.mFile.close();
+			smsFile.close();
+			mJournal.close();
+			new File(mFilename + JOURNAL_SUFFIX).delete();
 		} catch (IOException ex) {
 			throw new StorageFileException(ex);
 		}
@@ -114,6 +379,7 @@ public final class Storage {
 	 */
 	public synchronized void deleteFile() {
 		new File(mFilename).delete();
+		new File(mFilename + JOURNAL_SUFFIX).delete();
 	}
 	
 	/**
@@ -122,8 +388,20 @@ public final class Storage {
 	 * @throws StorageFileException 
 	 */
 	public synchronized long getEntriesCount() throws StorageFileException {
+		return getLength() / CHUNK_SIZE;
+	}
+	
+	/**
+	 * Returns length of the file, including entries appended in the write-back cache.
+	 * @return
+	 * @throws StorageFileException
+	 */
+	private long getLength() throws StorageFileException {
 		try {
-			return smsFile.mFile.length() / CHUNK_SIZE;
+			long length = (mTruncateLength >= 0) ? mTruncateLength : smsFile.length();
+			if (!mDirtyEntries.isEmpty())
+				length = Math.max(length, (mDirtyEntries.lastKey() + 1) * CHUNK_SIZE);
+			return length;
 		} catch (IOException ex) {
 			throw new StorageFileException(ex);
 		}
@@ -139,38 +417,539 @@ public final class Storage {
 	synchronized byte[] getEntry(long index) throws StorageFileException {
 		try {
 			long offset = index * CHUNK_SIZE;
-			if (offset > smsFile.mFile.length() - CHUNK_SIZE)
+			if (offset > getLength() - CHUNK_SIZE)
 				throw new StorageFileException("Index in history file out of bounds");
 			
-			byte[] data = new byte[CHUNK_SIZE];
-			smsFile.mFile.seek(offset);
-			smsFile.mFile.read(data);
+			byte[] data = mDirtyEntries.get(index);
+			if (data != null)
+				return data.clone();
+			
+			data = new byte[CHUNK_SIZE];
+			smsFile.read(offset, data);
 			return data;
 		} catch (IOException ex) {
 			throw new StorageFileException(ex);
 		}
 	}
 	
+	/**
+	 * Reads data from several entries in one pass over the file,
+	 * in the order of their offsets. Adjacent entries are read at once.
+	 *
+	 * @param indices the indices, in ascending order
+	 * @return the entries, in the same order as the indices
+	 * @throws StorageFileException the storage file exception
+	 */
+	synchronized byte[][] getEntries(long[] indices) throws StorageFileException {
+		try {
+			long length = getLength();
+			byte[][] entries = new byte[indices.length][];
+			int i = 0;
+			while (i < indices.length) {
+				long offset = indices[i] * CHUNK_SIZE;
+				if (offset > length - CHUNK_SIZE)
+					throw new StorageFileException("Index in history file out of bounds");
+				
+				byte[] data = mDirtyEntries.get(indices[i]);
+				if (data != null) {
+					entries[i++] = data.clone();
+					continue;
+				}
+				
+				// run of adjacent entries not in the write-back cache
+				int end = i + 1;
+				while (end < indices.length && indices[end] == indices[end - 1] + 1 && 
+				       indices[end] * CHUNK_SIZE <= length - CHUNK_SIZE && !mDirtyEntries.containsKey(indices[end]))
+					++end;
+				data = new byte[(end - i) * CHUNK_SIZE];
+				smsFile.read(offset, data);
+				for (int j = i; j < end; ++j) {
+					entries[j] = new byte[CHUNK_SIZE];
+					System.arraycopy(data, (j - i) * CHUNK_SIZE, entries[j], 0, CHUNK_SIZE);
+				}
+				i = end;
+			}
+			return entries;
+		} catch (IOException ex) {
+			throw new StorageFileException(ex);
+		}
+	}
+	
 	/**
 	 * Saves data to specified entry index the file.
+	 * Inside a transaction, the data is only put into the write-back cache
+	 * and the array must not be modified afterwards.
+	 * Waits while another thread has a transaction open.
 	 *
 	 * @param index the index
 	 * @param data the data
 	 * @throws StorageFileException the storage file exception
 	 */
 	synchronized void setEntry(long index, byte[] data) throws StorageFileException {
+		waitForTransaction();
+		long offset = index * CHUNK_SIZE;
+		if (offset > getLength())
+			throw new StorageFileException("Index in history file out of bounds");
+		
+		logModification(index);
+		if (mTransactionDepth == 0) {
+			// no transaction => write through
+			try {
+				smsFile.write(offset, data);
+			} catch (IOException ex) {
+				throw new StorageFileException(ex);
+			}
+		} else
+			// replaces any previous write to the same entry
+			mDirtyEntries.put(index, data);
+	}
+	
+	/**
+	 * Cuts the file down to given number of entries. Inside a transaction, 
+	 * the file is only cut when the outermost transaction is committed, 
+	 * atomically with the rest of it, and entries can be appended behind the new end again.
+	 * Waits while another thread has a transaction open.
+	 *
+	 * @param count 	Number of entries to keep
+	 * @throws StorageFileException the storage file exception
+	 */
+	synchronized void truncateEntries(long count) throws StorageFileException {
+		waitForTransaction();
+		long length = count * CHUNK_SIZE;
+		if (length >= getLength())
+			return;
+		
+		logModification(-1L);
+		if (mTransactionDepth == 0) {
+			try {
+				smsFile.truncate(length);
+				smsFile.sync();
+			} catch (IOException ex) {
+				throw new StorageFileException(ex);
+			}
+		} else {
+			mDirtyEntries.tailMap(count).clear();
+			mTruncateLength = length;
+		}
+	}
+	
+	/**
+	 * Returns a counter that changes with every write to the file, 
+	 * so that long-running operations can tell whether the file changed in the meantime.
+	 * 
+	 * @return the counter
+	 */
+	synchronized long getModificationCount() {
+		return mModificationCount;
+	}
+	
+	/**
+	 * Returns the indices of the entries written since the modification counter had given value,
+	 * possibly with duplicates, or null if they aren't known any more or the file was truncated.
+	 * 
+	 * @param modificationCount 	Earlier value of the counter
+	 * @return the indices
+	 */
+	synchronized long[] getModifiedEntries(long modificationCount) {
+		long count = mModificationCount - modificationCount;
+		if (count < 0 || count > MODIFICATION_LOG_SIZE)
+			return null;
+		
+		long[] indices = new long[(int) count];
+		for (int i = 0; i < indices.length; ++i) {
+			indices[i] = mModificationLog[(int) ((modificationCount + i) % MODIFICATION_LOG_SIZE)];
+			if (indices[i] < 0)
+				return null;
+		}
+		return indices;
+	}
+	
+	private void logModification(long index) {
+		mModificationLog[(int) (mModificationCount % MODIFICATION_LOG_SIZE)] = index;
+		++mModificationCount;
+	}
+	
+	// ENCRYPTION
+	
+	/**
+	 * Encrypts the data of an entry with the master key,
+	 * in the format of the current file.
+	 *
+	 * @param dataPlain the plain data, ENCRYPTED_ENTRY_SIZE bytes long
+	 * @return the encrypted entry
+	 * @throws StorageFileException the storage file exception
+	 */
+	static byte[] encryptEntry(byte[] dataPlain) throws StorageFileException {
+		return encryptEntry(dataPlain, Header.getHeader().getVersion());
+	}
+
+	/**
+	 * Encrypts the data of an entry with the master key,
+	 * in the format of given version of the file.
+	 *
+	 * @param dataPlain the plain data
+	 * @param version the version of the file
+	 * @return the encrypted data
+	 * @throws StorageFileException the storage file exception
+	 */
+	static byte[] encryptEntry(byte[] dataPlain, int version) throws StorageFileException {
+		EncryptionInterface crypto = Encryption.getEncryption();
 		try {
-			long offset = index * CHUNK_SIZE;
-			long fileSize = smsFile.mFile.length();
-			if (offset > fileSize)
-				throw new StorageFileException("Index in history file out of bounds");
+			if (version < Header.VERSION_ENCRYPT_THEN_MAC)
+				return crypto.encryptSymmetricWithMasterKey(dataPlain);
+			
+			byte[] dataEncrypted = new byte[crypto.getSymmetricEncryptedLength(dataPlain.length)];
+			if (version == Header.VERSION_COUNTER_MODE)
+				crypto.encryptCounterWithMasterKey(dataPlain, 0, dataPlain.length, dataEncrypted, 0);
+			else
+				crypto.encryptAuthenticatedWithMasterKey(dataPlain, 0, dataPlain.length, dataEncrypted, 0);
+			return dataEncrypted;
+		} catch (EncryptionException e) {
+			throw new StorageFileException(e);
+		}
+	}
+
+	/**
+	 * Decrypts an entry with the master key,
+	 * expecting the format of the current file.
+	 *
+	 * @param dataEncrypted the encrypted entry
+	 * @return the plain data
+	 * @throws StorageFileException if the data don't decrypt
+	 */
+	static byte[] decryptEntry(byte[] dataEncrypted) throws StorageFileException {
+		return decryptEntry(dataEncrypted, Header.getHeader().getVersion());
+	}
+
+	/**
+	 * Decrypts an entry with the master key,
+	 * expecting the format of given version of the file.
+	 *
+	 * @param dataEncrypted the encrypted entry
+	 * @param version the version of the file
+	 * @return the plain data
+	 * @throws StorageFileException if the data don't decrypt
+	 */
+	static byte[] decryptEntry(byte[] dataEncrypted, int version) throws StorageFileException {
+		return decryptEntry(dataEncrypted, 0, dataEncrypted.length, version);
+	}
+
+	/**
+	 * Decrypts a range of data with the master key,
+	 * expecting the format of given version of the file.
+	 *
+	 * @param data the array holding the encrypted data
+	 * @param offset the offset of the encrypted data
+	 * @param length the length of the encrypted data, including the overhead
+	 * @param version the version of the file
+	 * @return the plain data
+	 * @throws StorageFileException if the data don't decrypt
+	 */
+	static byte[] decryptEntry(byte[] data, int offset, int length, int version) throws StorageFileException {
+		EncryptionInterface crypto = Encryption.getEncryption();
+		try {
+			if (version < Header.VERSION_ENCRYPT_THEN_MAC) {
+				byte[] dataEncrypted = data;
+				if (offset != 0 || length != data.length) {
+					dataEncrypted = new byte[length];
+					System.arraycopy(data, offset, dataEncrypted, 0, length);
+				}
+				return crypto.decryptSymmetricWithMasterKey(dataEncrypted);
+			}
+			
+			if (length < Encryption.SYM_OVERHEAD)
+				throw new StorageFileException("Entry too short");
+			byte[] dataPlain = new byte[length - Encryption.SYM_OVERHEAD];
+			if (version == Header.VERSION_COUNTER_MODE)
+				crypto.decryptCounterWithMasterKey(data, offset, length, 0, dataPlain.length, dataPlain, 0);
+			else
+				crypto.decryptAuthenticatedWithMasterKey(data, offset, length, dataPlain, 0);
+			return dataPlain;
+		} catch (EncryptionException e) {
+			throw new StorageFileException(e);
+		} catch (WrongKeyDecryptionException e) {
+			throw new StorageFileException(e);
+		}
+	}
+
+	/**
+	 * Decrypts only a part of an entry with the master key, expecting the format of the current file.
+	 * The whole entry is still authenticated, but in the counter mode
+	 * only the requested part is decrypted.
+	 *
+	 * @param dataEncrypted the encrypted entry
+	 * @param from the offset of the part, within the plain data
+	 * @param count the length of the part
+	 * @return the plain part
+	 * @throws StorageFileException if the data don't decrypt
+	 */
+	static byte[] decryptEntryPart(byte[] dataEncrypted, int from, int count) throws StorageFileException {
+		int version = Header.getHeader().getVersion();
+		if (version != Header.VERSION_COUNTER_MODE) {
+			byte[] dataPlain = decryptEntry(dataEncrypted, version);
+			byte[] dataPart = new byte[count];
+			System.arraycopy(dataPlain, from, dataPart, 0, count);
+			return dataPart;
+		}
+		
+		if (dataEncrypted.length < Encryption.SYM_OVERHEAD)
+			throw new StorageFileException("Entry too short");
+		byte[] dataPart = new byte[count];
+		try {
+			Encryption.getEncryption().decryptCounterWithMasterKey(dataEncrypted, 0, dataEncrypted.length, from, count, dataPart, 0);
+		} catch (EncryptionException e) {
+			throw new StorageFileException(e);
+		} catch (WrongKeyDecryptionException e) {
+			throw new StorageFileException(e);
+		}
+		return dataPart;
+	}
+	
+	// TRANSACTIONS
+	
+	private TreeMap<Long, byte[]> mDirtyEntries = new TreeMap<Long, byte[]>();
+	private long mTruncateLength = -1L; // pending truncation, -1 if none
+	private long mModificationCount = 0L;
+	private long[] mModificationLog = new long[MODIFICATION_LOG_SIZE]; // indices of the last writes, -1 for truncation
+	private int mTransactionDepth = 0;
+	private boolean mRollbackOnly = false;
+	private Thread mTransactionOwner = null; // thread that began the outermost transaction
+	
+	/**
+	 * Starts a transaction. Until the outermost transaction is committed, 
+	 * entries are only stored in the write-back cache, so that repeated
+	 * writes to the same entry get merged. Transactions can be nested, 
+	 * all the nested ones become part of the outermost one.
+	 * Each beginTransaction() has to be matched by exactly one commit() or rollback(),
+	 * called by the same thread.
+	 * 
+	 * The transaction belongs to the thread that started it. Other threads wait
+	 * until it is finished before they start their own or write anything,
+	 * so that their writes can't be rolled back with it.
+	 */
+	public synchronized void beginTransaction() {
+		waitForTransaction();
+		if (mTransactionDepth++ == 0) {
+			mTransactionOwner = Thread.currentThread();
+			mRollbackOnly = false;
+		}
+	}
 	
-			smsFile.mFile.seek(offset);
-			smsFile.mFile.write(data);
+	/**
+	 * Waits until there is no transaction open by another thread.
+	 */
+	private void waitForTransaction() {
+		boolean interrupted = false;
+		while (mTransactionDepth > 0 && mTransactionOwner != Thread.currentThread()) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// the transaction has to be waited for anyway
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Releases the file for the threads waiting for the outermost transaction to finish.
+	 */
+	private void endTransaction() {
+		mTransactionOwner = null;
+		notifyAll();
+	}
+	
+	private boolean isTransactionOwner() {
+		return mTransactionDepth > 0 && mTransactionOwner == Thread.currentThread();
+	}
+	
+	/**
+	 * Commits the innermost transaction. When the outermost transaction is committed,
+	 * all the pending writes are stored in the journal and then written to the file 
+	 * in one sequential pass, sorted by their offset.
+	 * 
+	 * @throws StorageFileException	If the transaction couldn't be committed 
+	 * 								or a nested transaction was rolled back.
+	 * 								The transaction is rolled back in that case.
+	 */
+	public synchronized void commit() throws StorageFileException {
+		if (!isTransactionOwner())
+			throw new StorageFileException("No transaction to commit");
+		if (--mTransactionDepth > 0)
+			return;
+
+		boolean success = false;
+		try {
+			if (mRollbackOnly)
+				throw new StorageFileException("Transaction was rolled back");
+			
+			if (!mDirtyEntries.isEmpty() || mTruncateLength >= 0) {
+				// a single entry can't break the structure
+				boolean journal = (mDirtyEntries.size() > 1 || mTruncateLength >= 0);
+				if (journal)
+					writeJournal();
+				if (mTruncateLength >= 0)
+					smsFile.truncate(mTruncateLength);
+				applyDirtyEntries();
+				if (journal)
+					clearJournal();
+			}
+			success = true;
 		} catch (IOException ex) {
 			throw new StorageFileException(ex);
+		} finally {
+			if (success) {
+				mDirtyEntries.clear();
+				mTruncateLength = -1L;
+			} else
+				// the cached entries don't have to match the file any more
+				discardTransaction();
+			endTransaction();
+		}
+	}
+	
+	/**
+	 * Rolls back the innermost transaction, which makes the whole outermost transaction
+	 * roll back. Pending writes are discarded and all the cached entries are dropped,
+	 * because their contents no longer have to match the file.
+	 */
+	public synchronized void rollback() {
+		if (!isTransactionOwner())
+			return;
+		mRollbackOnly = true;
+		if (--mTransactionDepth == 0) {
+			discardTransaction();
+			endTransaction();
 		}
 	}
+	
+	private void discardTransaction() {
+		mDirtyEntries.clear();
+		mTruncateLength = -1L;
+		mRollbackOnly = false;
+		// including the entries decrypted ahead from the discarded writes
+		clearCaches();
+	}
+	
+	private static void clearCaches() {
+		Header.forceClearCache();
+		FreeSpaceMap.forceClearCache();
+		Empty.forceClearCache();
+		Conversation.forceClearCache();
+		SessionKeys.forceClearCache();
+		MessageData.forceClearCache();
+		MessageDataPart.forceClearCache();
+		EntryPrefetcher.forceClearCache();
+	}
+	
+	private void applyDirtyEntries() throws IOException {
+		// consecutive entries are merged into a single write
+		long runStart = -1L, runEnd = -1L;
+		ByteArrayOutputStream run = new ByteArrayOutputStream();
+		for (Map.Entry<Long, byte[]> entry : mDirtyEntries.entrySet()) {
+			long index = entry.getKey();
+			if (index != runEnd) {
+				if (runStart >= 0)
+					smsFile.write(runStart * CHUNK_SIZE, run.toByteArray());
+				run.reset();
+				runStart = index;
+			}
+			run.write(entry.getValue());
+			runEnd = index + 1;
+		}
+		if (runStart >= 0)
+			smsFile.write(runStart * CHUNK_SIZE, run.toByteArray());
+		smsFile.sync();
+	}
+	
+	// JOURNAL
+	
+	/**
+	 * Stores all the pending writes in the journal file and syncs it to the disk.
+	 * Journal format: magic, number of records, records (entry index + entry data), 
+	 * new length of the file if the magic says the file is truncated, CRC32 of all that
+	 * 
+	 * @throws IOException
+	 */
+	private void writeJournal() throws IOException {
+		boolean truncate = (mTruncateLength >= 0);
+		ByteBuffer journal = ByteBuffer.allocate(JOURNAL_HEADER_SIZE + mDirtyEntries.size() * JOURNAL_RECORD_SIZE + 
+		                                         (truncate ? JOURNAL_TRUNCATE_SIZE : 0) + JOURNAL_CHECKSUM_SIZE);
+		journal.putInt(truncate ? JOURNAL_MAGIC_TRUNCATE : JOURNAL_MAGIC);
+		journal.putInt(mDirtyEntries.size());
+		for (Map.Entry<Long, byte[]> entry : mDirtyEntries.entrySet()) {
+			journal.putInt((int) entry.getKey().longValue());
+			journal.put(entry.getValue());
+		}
+		if (truncate)
+			journal.putLong(mTruncateLength);
+		CRC32 crc = new CRC32();
+		crc.update(journal.array(), 0, journal.position());
+		journal.putLong(crc.getValue());
+		
+		mJournal.seek(0);
+		mJournal.write(journal.array());
+		mJournal.setLength(journal.capacity());
+		mJournal.getFD().sync();
+	}
+	
+	/**
+	 * Marks the journal as applied. 
+	 * Doesn't have to be synced, replaying an applied journal is harmless.
+	 * 
+	 * @throws IOException
+	 */
+	private void clearJournal() throws IOException {
+		mJournal.setLength(0);
+	}
+	
+	/**
+	 * Writes a complete journal left behind by an interrupted commit into the file.
+	 * An incomplete journal means the commit was interrupted before the file was touched,
+	 * so it is simply thrown away.
+	 * 
+	 * @throws IOException
+	 */
+	private void replayJournal() throws IOException {
+		long length = mJournal.length();
+		if (length == 0)
+			return;
+		
+		if (length >= JOURNAL_HEADER_SIZE + JOURNAL_CHECKSUM_SIZE && length <= Integer.MAX_VALUE) {
+			byte[] data = new byte[(int) length];
+			mJournal.seek(0);
+			mJournal.readFully(data);
+			
+			ByteBuffer journal = ByteBuffer.wrap(data);
+			int magic = journal.getInt();
+			int count = journal.getInt();
+			boolean truncate = (magic == JOURNAL_MAGIC_TRUNCATE);
+			if ((magic == JOURNAL_MAGIC || truncate) && count >= 0 &&
+			    length == JOURNAL_HEADER_SIZE + (long) count * JOURNAL_RECORD_SIZE + 
+			              (truncate ? JOURNAL_TRUNCATE_SIZE : 0) + JOURNAL_CHECKSUM_SIZE) {
+				CRC32 crc = new CRC32();
+				crc.update(data, 0, data.length - JOURNAL_CHECKSUM_SIZE);
+				journal.position(data.length - JOURNAL_CHECKSUM_SIZE);
+				if (journal.getLong() == crc.getValue()) {
+					if (truncate) {
+						journal.position(data.length - JOURNAL_CHECKSUM_SIZE - JOURNAL_TRUNCATE_SIZE);
+						smsFile.truncate(journal.getLong());
+					}
+					journal.position(JOURNAL_HEADER_SIZE);
+					for (int i = 0; i < count; ++i) {
+						long index = journal.getInt() & 0xFFFFFFFFL;
+						byte[] entry = new byte[CHUNK_SIZE];
+						journal.get(entry);
+						smsFile.write(index * CHUNK_SIZE, entry);
+					}
+					smsFile.sync();
+				}
+			}
+		}
+		
+		clearJournal();
+	}
 
 	// LISTENERS
 	
@@ -217,7 +996,7 @@ public final class Storage {
 	static void freeSingleton() {
 		if (mSingleton != null)
 			try {
-				mSingleton.smsFile.mFile.close();
+				mSingleton.closeFile();
 			} catch (Exception e) {
 			}
 		mSingleton = null;
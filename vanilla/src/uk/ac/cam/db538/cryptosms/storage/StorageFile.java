@@ -17,41 +17,82 @@ package uk.ac.cam.db538.cryptosms.storage;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 /**
- * Represents the opened secure storage file 
- * 
+ * Represents the opened secure storage file.
+ * Subclasses provide the actual I/O backend.
+ *
  * @author David Brazdil
  *
  */
-class StorageFile {
-	RandomAccessFile mFile;
-//	FileLock mLock;
+abstract class StorageFile {
 
 	/**
- * Instantiates a new storage file.
- *
- * @param filename the filename
- * @throws IOException Signals that an I/O exception has occurred.
- */
-StorageFile(String filename) throws IOException {
+	 * Opens the storage file with the requested backend.
+	 * Creates the parent directory if it doesn't exist.
+	 *
+	 * @param filename the filename
+	 * @param memoryMapped whether to use the memory-mapped backend
+	 * @return the storage file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	static StorageFile openFile(String filename, boolean memoryMapped) throws IOException {
 		String directory = new File(filename).getParent();
-		new File(directory).mkdirs();
-		mFile = new RandomAccessFile(filename, "rw");
-//		mLock = null;
+		if (directory != null)
+			new File(directory).mkdirs();
+
+		if (memoryMapped)
+			return new MappedStorageFile(filename);
+		else
+			return new RandomAccessStorageFile(filename);
 	}
 
-//	void lock() throws IOException {
-//		mLock = mFile.getChannel().lock();
-//	}
-//	
-//	void unlock() {
-//		try {
-//			if (mLock.isValid())
-//				mLock.release();
-//		} catch (IOException e) {
-//			e.printStackTrace();
-//		}
-//	}
-}
\ No newline at end of file
+	/**
+	 * Returns the length of the file in bytes.
+	 *
+	 * @return the length
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	abstract long length() throws IOException;
+
+	/**
+	 * Fills the whole array with data from given offset in the file.
+	 *
+	 * @param offset the offset
+	 * @param data the data
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	abstract void read(long offset, byte[] data) throws IOException;
+
+	/**
+	 * Writes the whole array to given offset in the file.
+	 * Offset may point right behind the end of the file, in which case the file grows.
+	 *
+	 * @param offset the offset
+	 * @param data the data
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	abstract void write(long offset, byte[] data) throws IOException;
+
+	/**
+	 * Cuts the file down to given length. Does nothing if it isn't longer.
+	 *
+	 * @param length the new length
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	abstract void truncate(long length) throws IOException;
+
+	/**
+	 * Forces all the written data to the storage device.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	abstract void sync() throws IOException;
+
+	/**
+	 * Closes the file.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	abstract void close() throws IOException;
+}
@@ -199,6 +199,24 @@ public class LowLevel {
 			return new byte[0];
 	}
 
+	/**
+	 * Compares two ranges of bytes. Always looks at all of them, so the time
+	 * it takes doesn't tell where they differ. Meant for comparing MACs.
+	 *
+	 * @param a the first array
+	 * @param aOffset the offset in the first array
+	 * @param b the second array
+	 * @param bOffset the offset in the second array
+	 * @param length the length of the ranges
+	 * @return true, if the ranges are equal
+	 */
+	public static boolean equalsConstantTime(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		int difference = 0;
+		for (int i = 0; i < length; ++i)
+			difference |= a[aOffset + i] ^ b[bOffset + i];
+		return difference == 0;
+	}
+
 	/**
 	 * Takes string containing HEX data and returns byte array that represents it.
 	 *
@@ -201,7 +201,41 @@ public class PhoneNumber
         Matcher match = GLOBAL_PHONE_NUMBER_PATTERN.matcher(phoneNumber);
         return match.matches();
     }
-    
+
+    /**
+     * Returns the last MIN_MATCH dialable characters of the network portion
+     * of the number (or all of them if there are fewer). Two numbers can only
+     * be equal according to compare() if their match keys are equal, so the key
+     * can be used for hashing phone numbers.
+     * Returns null if the number is empty or contains a WILD character,
+     * which can match anything.
+     *
+     * @param phoneNumber the phone number
+     * @return the match key
+     */
+    public static String getMatchKey(String phoneNumber) {
+        if (phoneNumber == null || phoneNumber.length() == 0) {
+            return null;
+        }
+
+        char[] key = new char[MIN_MATCH];
+        int len = 0;
+        for (int i = indexOfLastNetworkChar(phoneNumber); i >= 0 && len < MIN_MATCH; i--) {
+            char c = phoneNumber.charAt(i);
+            if (c == WILD) {
+                return null;
+            } else if (isDialable(c)) {
+                key[MIN_MATCH - 1 - len] = c;
+                len++;
+            }
+        }
+
+        if (len == 0) {
+            return null;
+        }
+        return new String(key, MIN_MATCH - len, len);
+    }
+
     /**
      * Compare phone numbers a and b, return true if they're identical enough for caller ID purposes.
      *